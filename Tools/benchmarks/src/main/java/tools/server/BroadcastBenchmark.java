@@ -0,0 +1,78 @@
+package tools.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes {@link TServer#sendToAll(long, Object)} to reach every connected {@link TClient} over loopback, timed from the
+ * call until the last client has received the message.
+ *
+ * @author Sebastian Troy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class BroadcastBenchmark
+	{
+		private static final int PORT = 10312;
+
+		@Param({ "10", "100", "1000" })
+		public int clients;
+
+		@Param({ "THREAD_PER_CONNECTION", "SELECTOR" })
+		public TSettings.Engine engine;
+
+		@Param({ "true" })
+		public boolean framed;
+
+		private final ArrayList<LoopbackClient> connected = new ArrayList<LoopbackClient>();
+		private LoopbackServer server;
+		private volatile CountDownLatch delivered;
+
+		@Setup(Level.Trial)
+		public void setup() throws InterruptedException
+			{
+				server = new LoopbackServer(PORT, new TSettings().setEngine(engine).setFramed(framed));
+				for (int i = 0; i < clients; i++)
+					connected.add(new LoopbackClient(PORT, new TSettings().setFramed(framed), m -> delivered.countDown()));
+				for (LoopbackClient c : connected)
+					c.awaitID();
+				while (server.getClientCount() < clients)
+					Thread.sleep(1);
+			}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+			{
+				for (LoopbackClient c : connected)
+					c.disconnect();
+				server.close();
+			}
+
+		@Benchmark
+		public void sendToAll() throws InterruptedException
+			{
+				CountDownLatch latch = new CountDownLatch(clients);
+				delivered = latch;
+				server.broadcast("broadcast");
+				latch.await();
+			}
+	}
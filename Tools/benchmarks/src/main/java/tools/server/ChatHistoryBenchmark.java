@@ -0,0 +1,105 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tools.server.chat.ChatClient;
+import tools.server.chat.ChatServer;
+import tools.server.chat.HistoryPage;
+
+/**
+ * How long a new {@link ChatClient} takes to connect to a {@link ChatServer} and receive its whole message history, the latest messages as
+ * it joins and the rest a page at a time.
+ *
+ * @author Sebastian Troy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatHistoryBenchmark
+	{
+		@Param({ "100", "1000" })
+		public int history;
+
+		@Param({ "THREAD_PER_CONNECTION", "SELECTOR" })
+		public TSettings.Engine engine;
+
+		private ChatServer server;
+		private Path logDirectory;
+
+		@Setup(Level.Trial)
+		public void setup() throws InterruptedException, IOException
+			{
+				// A fresh log for each trial, so that the history is only what this trial sends
+				logDirectory = Files.createTempDirectory("chat-history-benchmark");
+				server = new ChatServer(ChatServer.PORT, new TSettings().setEngine(engine), logDirectory);
+
+				// Fill the history, the writer receives each message back once the server has logged it
+				ChatClient writer = new ChatClient("localhost", "writer");
+				for (int i = 0; i < history; i++)
+					writer.sendMessage("History message number " + i);
+				for (int received = 0; received < history;)
+					{
+						received += writer.getMessages().size();
+						Thread.sleep(1);
+					}
+				writer.disconnect();
+			}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException
+			{
+				server.closeServer(false);
+				try (Stream<Path> files = Files.walk(logDirectory))
+					{
+						files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+					}
+			}
+
+		@Benchmark
+		public int replay() throws Exception
+			{
+				ChatClient client = new ChatClient("localhost", "reader");
+				// Only the latest messages are sent on joining, the rest are fetched a page at a time
+				int joined = Math.min(history, ChatServer.JOIN_MESSAGES), received = 0;
+				while (received < joined)
+					{
+						received += client.getMessages().size();
+						if (received < joined)
+							Thread.yield();
+					}
+
+				HistoryPage page;
+				long before = client.getHistoryStart();
+				do
+					{
+						page = client.fetchHistory(before, ChatServer.MAX_PAGE_MESSAGES).get();
+						received += page.getMessages().size();
+						before = page.getFirst();
+					}
+				while (page.hasOlder());
+				client.disconnect();
+				return received;
+			}
+	}
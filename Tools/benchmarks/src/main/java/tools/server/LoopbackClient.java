@@ -0,0 +1,47 @@
+package tools.server;
+
+import java.util.function.Consumer;
+
+/**
+ * A {@link TClient} for the loopback benchmarks, which hands every message it receives to the benchmark.
+ *
+ * @author Sebastian Troy
+ */
+final class LoopbackClient extends TClient<String>
+	{
+		private final Consumer<String> received;
+
+		LoopbackClient(int port, TSettings settings, Consumer<String> received)
+			{
+				super("localhost", port, new StringCodec(), settings);
+				this.received = received;
+			}
+
+		final void send(String message)
+			{
+				sendObject(message);
+			}
+
+		/**
+		 * Waits until the server has told this client its uniqueID, after which the server will send it objects.
+		 */
+		final void awaitID() throws InterruptedException
+			{
+				while (getUniqueID() == -1L)
+					Thread.sleep(1);
+			}
+
+		@Override
+		protected void processObject(long senderID, String object, boolean personal)
+			{
+				received.accept(object);
+			}
+
+		@Override
+		protected void serverDisconnected()
+			{}
+
+		@Override
+		protected void kickedFromServer(String reason)
+			{}
+	}
@@ -0,0 +1,43 @@
+package tools.server;
+
+/**
+ * A {@link TServer} for the loopback benchmarks, which echoes whatever a client sends it back to that client alone.
+ *
+ * @author Sebastian Troy
+ */
+final class LoopbackServer extends TServer<String>
+	{
+		LoopbackServer(int port, TSettings settings)
+			{
+				super(port, new StringCodec(), settings);
+			}
+
+		/**
+		 * Sends a copy of the message to every connected client, see {@link TServer#sendToAll(long, Object)}.
+		 */
+		final void broadcast(String message)
+			{
+				sendToAll(0L, message);
+			}
+
+		final void close()
+			{
+				closeServer();
+			}
+
+		@Override
+		protected void processObject(long senderID, String object)
+			{
+				sendToClient(senderID, object, senderID);
+			}
+
+		@Override
+		protected boolean clientConnected(long uniqueID)
+			{
+				return true;
+			}
+
+		@Override
+		protected void clientDisconnected(long uniqueID)
+			{}
+	}
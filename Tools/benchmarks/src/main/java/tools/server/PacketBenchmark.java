@@ -0,0 +1,102 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of turning a {@link TPacket} into bytes and back again, with each protocol and codec a server can use.
+ *
+ * @author Sebastian Troy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark
+	{
+		@Param({ "16", "1024", "65536" })
+		public int length;
+
+		private final Protocol framedSerial = Protocol.framed(new SerialCodec<String>());
+		private final Protocol framedString = Protocol.framed(new StringCodec());
+		private final Protocol framedCompressed = Protocol.framed(new StringCodec(), 512);
+		private TPacket packet;
+		private ByteBuffer legacyBytes, framedSerialBytes, framedStringBytes, framedCompressedBytes;
+
+		@Setup
+		public void setup() throws IOException
+			{
+				StringBuilder message = new StringBuilder(length);
+				for (int i = 0; i < length; i++)
+					message.append((char) ('a' + i % 26));
+				packet = new TPacket(1234L, message.toString(), false);
+
+				legacyBytes = Protocol.LEGACY.encodeToClient(packet);
+				framedSerialBytes = framedSerial.encodeToClient(packet);
+				framedStringBytes = framedString.encodeToClient(packet);
+				framedCompressedBytes = framedCompressed.encodeToClient(packet);
+			}
+
+		@Benchmark
+		public ByteBuffer encodeLegacy() throws IOException
+			{
+				return Protocol.LEGACY.encodeToClient(packet);
+			}
+
+		@Benchmark
+		public ByteBuffer encodeFramedSerial() throws IOException
+			{
+				return framedSerial.encodeToClient(packet);
+			}
+
+		@Benchmark
+		public ByteBuffer encodeFramedString() throws IOException
+			{
+				return framedString.encodeToClient(packet);
+			}
+
+		@Benchmark
+		public ByteBuffer encodeFramedCompressed() throws IOException
+			{
+				return framedCompressed.encodeToClient(packet);
+			}
+
+		@Benchmark
+		public TPacket decodeLegacy() throws IOException, ClassNotFoundException
+			{
+				return Protocol.LEGACY.decodeFromServer(legacyBytes.duplicate());
+			}
+
+		@Benchmark
+		public TPacket decodeFramedSerial() throws IOException, ClassNotFoundException
+			{
+				return framedSerial.decodeFromServer(framedSerialBytes.duplicate());
+			}
+
+		@Benchmark
+		public TPacket decodeFramedString() throws IOException, ClassNotFoundException
+			{
+				return framedString.decodeFromServer(framedStringBytes.duplicate());
+			}
+
+		@Benchmark
+		public TPacket decodeFramedCompressed() throws IOException, ClassNotFoundException
+			{
+				return framedCompressed.decodeFromServer(framedCompressedBytes.duplicate());
+			}
+	}
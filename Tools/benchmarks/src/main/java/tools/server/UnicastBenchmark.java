@@ -0,0 +1,78 @@
+package tools.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The round trip of one message over loopback: a {@link TClient} sends it, the {@link TServer} sends it back with
+ * {@link TServer#sendToClient(long, Object, long)} and the client receives it. Sampled, so JMH reports p50/p99/p999 as well as
+ * throughput.
+ *
+ * @author Sebastian Troy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnicastBenchmark
+	{
+		private static final int PORT = 10311;
+
+		@Param({ "THREAD_PER_CONNECTION", "SELECTOR" })
+		public TSettings.Engine engine;
+
+		@Param({ "false", "true" })
+		public boolean framed;
+
+		@Param({ "64" })
+		public int length;
+
+		private final BlockingQueue<String> echoes = new ArrayBlockingQueue<String>(16);
+		private LoopbackServer server;
+		private LoopbackClient client;
+		private String message;
+
+		@Setup(Level.Trial)
+		public void setup() throws InterruptedException
+			{
+				char[] chars = new char[length];
+				Arrays.fill(chars, 'x');
+				message = new String(chars);
+
+				server = new LoopbackServer(PORT, new TSettings().setEngine(engine).setFramed(framed));
+				client = new LoopbackClient(PORT, new TSettings().setFramed(framed), echoes::add);
+				client.awaitID();
+			}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+			{
+				client.disconnect();
+				server.close();
+			}
+
+		@Benchmark
+		public String roundTrip() throws InterruptedException
+			{
+				client.send(message);
+				return echoes.take();
+			}
+	}
@@ -0,0 +1,73 @@
+package tools.server;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Malformed frames of the framed protocol. Each must be rejected with a {@link StreamCorruptedException}, which the reader of a connection
+ * handles by disconnecting it, rather than escaping as an unchecked exception.
+ * <p>
+ * Run by Surefire as a plain class, each public <code>test</code> method failing by throwing.
+ *
+ * @author Sebastian Troy
+ */
+public class ProtocolTest
+	{
+		private final Protocol framed = Protocol.framed(new StringCodec());
+
+		public void testTruncatedRequestFromClient() throws Exception
+			{
+				// A correlated data frame needs 8 bytes of correlation ID, only 4 follow
+				expectCorrupted(() -> framed.decodeFromClient(frame(Protocol.OP_DATA, Protocol.FLAG_CORRELATED, 4)));
+			}
+
+		public void testTruncatedReplyFromServer() throws Exception
+			{
+				// A correlated data frame from the server needs a correlation ID and a uniqueID, only 12 bytes follow
+				expectCorrupted(() -> framed.decodeFromServer(frame(Protocol.OP_DATA, Protocol.FLAG_CORRELATED, 12)));
+			}
+
+		public void testTruncatedPacketFromServer() throws Exception
+			{
+				expectCorrupted(() -> framed.decodeFromServer(frame(Protocol.OP_DATA, (byte) 0, 4)));
+			}
+
+		public void testWholeRequestFromClient() throws Exception
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(16);
+				buffer.putInt(12).put(Protocol.OP_DATA).put(Protocol.FLAG_CORRELATED).putLong(7L).put((byte) 'a').put((byte) 'b').flip();
+				TPacket request = (TPacket) framed.decodeFromClient(buffer);
+				if (request.correlationID != 7L || !"ab".equals(request.object))
+					throw new AssertionError("Decoded " + request.correlationID + " " + request.object);
+			}
+
+		/**
+		 * @return - A whole frame with the given header followed by a body of zeroes.
+		 */
+		private static ByteBuffer frame(byte opcode, byte flags, int bodyBytes)
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(6 + bodyBytes);
+				buffer.putInt(2 + bodyBytes).put(opcode).put(flags);
+				buffer.position(buffer.limit());
+				buffer.flip();
+				return buffer;
+			}
+
+		private static void expectCorrupted(Decode decode) throws Exception
+			{
+				try
+					{
+						decode.run();
+					}
+				catch (StreamCorruptedException e)
+					{
+						return;
+					}
+				throw new AssertionError("Expected a StreamCorruptedException");
+			}
+
+		private interface Decode
+			{
+				void run() throws Exception;
+			}
+	}
@@ -0,0 +1,25 @@
+package tools.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends arrays of bytes exactly as they are.
+ * 
+ * @author Sebastian Troy
+ */
+public class BytesCodec implements Codec<byte[]>
+	{
+		@Override
+		public ByteBuffer encode(byte[] object, ByteBuffer buffer)
+			{
+				return Codec.ensureRemaining(buffer, object.length).put(object);
+			}
+
+		@Override
+		public byte[] decode(ByteBuffer buffer)
+			{
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				return bytes;
+			}
+	}
@@ -0,0 +1,56 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the objects a {@link TServer} and its {@link TClient}s pass between each other into bytes and back again, for use with the framed
+ * protocol (see {@link TSettings#setFramed(boolean)}). A codec written for a particular type can be far smaller and faster than Java
+ * serialisation, which is used by {@link SerialCodec} when no other codec is given.
+ * <p>
+ * Codecs are shared between threads, so should not keep any state between calls.
+ * 
+ * @author Sebastian Troy
+ *
+ * @param <DataType>
+ *            - The class of object the codec can encode.
+ */
+public interface Codec<DataType>
+	{
+		/**
+		 * Writes the object into the buffer, starting at its current position. If the buffer is too small then
+		 * {@link Codec#ensureRemaining(ByteBuffer, int)} should be used to get a larger one.
+		 * 
+		 * @param object
+		 *            - The object to encode.
+		 * @param buffer
+		 *            - The buffer to write to.
+		 * @return - The buffer that was written to, with its position just after the encoded object.
+		 */
+		public ByteBuffer encode(DataType object, ByteBuffer buffer) throws IOException;
+
+		/**
+		 * @param buffer
+		 *            - A buffer whose remaining bytes are exactly those written by {@link #encode(Object, ByteBuffer)}.
+		 * @return - A copy of the encoded object.
+		 */
+		public DataType decode(ByteBuffer buffer) throws IOException;
+
+		/**
+		 * @param buffer
+		 *            - A buffer in write mode.
+		 * @param bytes
+		 *            - The number of bytes about to be written.
+		 * @return - The buffer if it has room for the bytes, otherwise a larger buffer holding the same bytes with the same position.
+		 */
+		public static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes)
+			{
+				if (buffer.remaining() >= bytes)
+					return buffer;
+
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+				buffer.flip();
+				larger.put(buffer);
+				return larger;
+			}
+	}
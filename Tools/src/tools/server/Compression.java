@@ -0,0 +1,134 @@
+package tools.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the bodies of frames of the framed protocol. A compressed frame has {@link Protocol#FLAG_COMPRESSED} set in its
+ * header, and its body is replaced by the length of the original body followed by the deflated bytes.
+ * <p>
+ * Deflaters and inflaters hold native memory and are slow to create, so rather than one per message they are kept in small pools and
+ * reused. Any thread encoding or decoding a frame borrows one for just as long as it needs it, so a packet broadcast to many clients is
+ * still only compressed once. Each thread which reads frames inflates them into a buffer of its own, which only grows when a frame is larger
+ * than any before it.
+ *
+ * @author Sebastian Troy
+ */
+final class Compression
+	{
+		/**
+		 * Sent in a HELLO by a peer which is able to inflate compressed frames.
+		 */
+		static final byte CAP_DEFLATE = 1;
+
+		private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+		private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+		private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+		/**
+		 * The most deflate can shrink its input by, so a frame claiming to inflate to more than this many times its size is lying.
+		 */
+		private static final int MAX_RATIO = 1032;
+		private static final ThreadLocal<ByteBuffer> INFLATED = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+
+		private Compression()
+			{}
+
+		/**
+		 * @param frame
+		 *            - A whole frame in read mode.
+		 * @param threshold
+		 *            - Frames with bodies no larger than this are left as they are.
+		 * @return - The frame with its body compressed, or the frame itself if it is too small or would not get any smaller.
+		 */
+		static ByteBuffer compress(ByteBuffer frame, int threshold)
+			{
+				int bodyLength = frame.remaining() - Protocol.HEADER_LENGTH;
+				if (bodyLength <= threshold)
+					return frame;
+
+				ByteBuffer body = frame.duplicate();
+				body.position(frame.position() + Protocol.HEADER_LENGTH);
+
+				// No bigger than the original, if the deflated body doesn't fit it isn't worth sending
+				ByteBuffer compressed = ByteBuffer.allocate(frame.remaining());
+				compressed.position(Protocol.HEADER_LENGTH + 4);
+
+				Deflater deflater = DEFLATERS.poll();
+				if (deflater == null)
+					deflater = new Deflater(Deflater.BEST_SPEED);
+				try
+					{
+						deflater.setInput(body);
+						deflater.finish();
+						while (!deflater.finished() && compressed.hasRemaining())
+							deflater.deflate(compressed);
+						if (!deflater.finished())
+							return frame;
+					}
+				finally
+					{
+						deflater.reset();
+						if (!DEFLATERS.offer(deflater))
+							deflater.end();
+					}
+
+				compressed.flip();
+				compressed.putInt(0, compressed.limit() - 4);
+				compressed.put(4, frame.get(frame.position() + 4));
+				compressed.put(5, (byte) (frame.get(frame.position() + 5) | Protocol.FLAG_COMPRESSED));
+				compressed.putInt(Protocol.HEADER_LENGTH, bodyLength);
+				return compressed;
+			}
+
+		/**
+		 * @param body
+		 *            - The body of a compressed frame, positioned just after its header. All of its bytes are consumed.
+		 * @return - The original body, in read mode. It is only valid until the same thread decompresses another frame, as each frame is
+		 *         acted on before the next is decoded.
+		 */
+		static ByteBuffer decompress(ByteBuffer body) throws IOException
+			{
+				int length = body.getInt();
+				if (length < 0 || length > Math.min(Protocol.MAX_FRAME_LENGTH, (long) body.remaining() * MAX_RATIO))
+					throw new StreamCorruptedException("Invalid compressed length " + length);
+
+				ByteBuffer original = INFLATED.get();
+				if (original.capacity() < length)
+					{
+						original = ByteBuffer.allocate((int) Math.min(Protocol.MAX_FRAME_LENGTH, Math.max(length, 2L * original.capacity())));
+						INFLATED.set(original);
+					}
+				original.clear().limit(length);
+				Inflater inflater = INFLATERS.poll();
+				if (inflater == null)
+					inflater = new Inflater();
+				try
+					{
+						inflater.setInput(body);
+						while (!inflater.finished() && original.hasRemaining())
+							if (inflater.inflate(original) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+								break;
+						if (original.hasRemaining() || !inflater.finished())
+							throw new StreamCorruptedException("Compressed frame does not match its length");
+					}
+				catch (DataFormatException e)
+					{
+						throw new StreamCorruptedException(e.getMessage());
+					}
+				finally
+					{
+						inflater.reset();
+						if (!INFLATERS.offer(inflater))
+							inflater.end();
+					}
+
+				body.position(body.limit());
+				original.flip();
+				return original;
+			}
+	}
@@ -0,0 +1,199 @@
+package tools.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from primitive <code>long</code> keys to values, used by {@link TServer} to find a connection from its client's uniqueID in
+ * constant time however many clients are connected.
+ * <p>
+ * Lookups never lock, they probe an open addressed table which is only ever replaced, never resized in place. Changes are made one at a
+ * time, as clients connect and disconnect far less often than they are sent to. {@link #values()} returns a snapshot which is shared by
+ * every caller until the map next changes, so broadcasting to every client neither locks nor copies.
+ * <p>
+ * The key 0 is reserved to mark empty slots and cannot be used.
+ *
+ * @author Sebastian Troy
+ */
+final class ConcurrentLongMap<V>
+	{
+		private static final int MIN_CAPACITY = 16;
+
+		private volatile Table<V> table = new Table<V>(MIN_CAPACITY);
+		private volatile List<V> snapshot = Collections.emptyList();
+		private int size = 0, used = 0;
+
+		/**
+		 * @return - The value for the key, or <code>null</code> if there is none.
+		 */
+		final V get(long key)
+			{
+				Table<V> t = table;
+				int mask = t.values.length() - 1;
+				for (int i = hash(key) & mask;; i = (i + 1) & mask)
+					{
+						// The value is read first, as it is always written after its key
+						V value = t.values.get(i);
+						long k = t.keys.get(i);
+						if (k == key)
+							return value;
+						if (k == 0L)
+							return null;
+					}
+			}
+
+		/**
+		 * Adds the value unless the key is already in use.
+		 *
+		 * @return - The value already held for the key, or <code>null</code> if the value was added.
+		 */
+		final synchronized V putIfAbsent(long key, V value)
+			{
+				if (key == 0L)
+					throw new IllegalArgumentException("The key 0 is reserved");
+				if (value == null)
+					throw new IllegalArgumentException("value must not be null");
+
+				int slot = find(table, key);
+				if (slot >= 0)
+					{
+						V existing = table.values.get(slot);
+						if (existing != null)
+							return existing;
+						// Reuse the slot left behind when the key was last removed
+						table.values.set(slot, value);
+					}
+				else
+					{
+						if ((used + 1) * 2 > table.values.length())
+							rebuild();
+						insert(table, key, value);
+						used++;
+					}
+				size++;
+				snapshot = null;
+				return null;
+			}
+
+		/**
+		 * Removes the key, but only if it still holds the given value.
+		 *
+		 * @return - <code>true</code> if the value was removed.
+		 */
+		final synchronized boolean remove(long key, V value)
+			{
+				int slot = find(table, key);
+				if (slot < 0 || table.values.get(slot) != value)
+					return false;
+
+				// The key is left in place so that lookups carry on probing past it
+				table.values.set(slot, null);
+				size--;
+				snapshot = null;
+				return true;
+			}
+
+		/**
+		 * @return - The number of keys in the map.
+		 */
+		final synchronized int size()
+			{
+				return size;
+			}
+
+		/**
+		 * @return - An unmodifiable snapshot of every value in the map. Changes made to the map afterwards are not reflected in it.
+		 */
+		final List<V> values()
+			{
+				List<V> values = snapshot;
+				if (values != null)
+					return values;
+
+				synchronized (this)
+					{
+						if (snapshot == null)
+							{
+								ArrayList<V> list = new ArrayList<V>(size);
+								for (int i = 0; i < table.values.length(); i++)
+									{
+										V value = table.values.get(i);
+										if (value != null)
+											list.add(value);
+									}
+								snapshot = Collections.unmodifiableList(list);
+							}
+						return snapshot;
+					}
+			}
+
+		/**
+		 * Replaces the table with one large enough for twice the number of values held, leaving behind the keys of removed values.
+		 */
+		private final void rebuild()
+			{
+				int capacity = MIN_CAPACITY;
+				while (capacity < (size + 1) * 4)
+					capacity *= 2;
+
+				Table<V> old = table, replacement = new Table<V>(capacity);
+				for (int i = 0; i < old.values.length(); i++)
+					{
+						V value = old.values.get(i);
+						if (value != null)
+							insert(replacement, old.keys.get(i), value);
+					}
+				used = size;
+				table = replacement;
+			}
+
+		/**
+		 * @return - The slot holding the key, or -1 if the key has never been added to the table.
+		 */
+		private static final int find(Table<?> t, long key)
+			{
+				int mask = t.values.length() - 1;
+				for (int i = hash(key) & mask;; i = (i + 1) & mask)
+					{
+						long k = t.keys.get(i);
+						if (k == key)
+							return i;
+						if (k == 0L)
+							return -1;
+					}
+			}
+
+		private static final <V> void insert(Table<V> t, long key, V value)
+			{
+				int mask = t.values.length() - 1;
+				int i = hash(key) & mask;
+				while (t.keys.get(i) != 0L)
+					i = (i + 1) & mask;
+				t.keys.set(i, key);
+				t.values.set(i, value);
+			}
+
+		private static final int hash(long key)
+			{
+				key *= 0x9E3779B97F4A7C15L;
+				return (int) (key ^ (key >>> 32));
+			}
+
+		/**
+		 * The keys and values of the map, held in separate arrays so that keys stay primitive.
+		 */
+		private static final class Table<V>
+			{
+				private final AtomicLongArray keys;
+				private final AtomicReferenceArray<V> values;
+
+				private Table(int capacity)
+					{
+						keys = new AtomicLongArray(capacity);
+						values = new AtomicReferenceArray<V>(capacity);
+					}
+			}
+	}
@@ -0,0 +1,72 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The wire format of the datagrams a {@link TServer} and its {@link TClient}s may exchange alongside their connection, see
+ * {@link TSettings#setDatagrams(boolean)}. Datagrams may be lost, duplicated or arrive out of order, but are never held up behind one
+ * another the way a stream is, which suits state that is soon superseded such as the positions of players.
+ * <ul>
+ * <li>To the server - The client's uniqueID and the token the server gave it, which together prove who sent the datagram, a sequence
+ * number, a byte saying whether it is a {@link #BIND} or {@link #DATA}, and then the object as written by a {@link Codec}.</li>
+ * <li>To a client - A sequence number, the uniqueID of the sender and then the object.</li>
+ * </ul>
+ * Sequence numbers only ever increase, so a datagram which arrives after a later one from the same sender is stale and dropped.
+ *
+ * @author Sebastian Troy
+ */
+final class Datagrams
+	{
+		/**
+		 * The capability a client sends in its HELLO if it wants a datagram channel.
+		 */
+		static final byte CAP_DATAGRAMS = 2;
+
+		/**
+		 * The largest datagram which can be sent over IPv4. Those much over 1200 bytes are likely to be fragmented, and so lost more often.
+		 */
+		static final int MAX_LENGTH = 65507;
+
+		/**
+		 * The kinds of datagram a client sends. A BIND tells the server where to send the client's datagrams, and is sent until the server
+		 * confirms it over the connection.
+		 */
+		static final byte BIND = 0, DATA = 1;
+
+		static final int TO_SERVER_HEADER_LENGTH = 25, TO_CLIENT_HEADER_LENGTH = 16;
+
+		private Datagrams()
+			{}
+
+		/**
+		 * @return - A datagram from the server, in read mode.
+		 */
+		static <DataType> ByteBuffer encodeToClient(Codec<DataType> codec, long sequence, long senderID, DataType object) throws IOException
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(256);
+				buffer.putLong(sequence).putLong(senderID);
+				return finish(codec.encode(object, buffer));
+			}
+
+		/**
+		 * @param object
+		 *            - The object to send, or <code>null</code> for a {@link #BIND}.
+		 * @return - A datagram from a client, in read mode.
+		 */
+		static <DataType> ByteBuffer encodeToServer(Codec<DataType> codec, long uniqueID, long token, long sequence, byte kind, DataType object)
+				throws IOException
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(256);
+				buffer.putLong(uniqueID).putLong(token).putLong(sequence).put(kind);
+				return finish(object == null ? buffer : codec.encode(object, buffer));
+			}
+
+		private static ByteBuffer finish(ByteBuffer buffer) throws IOException
+			{
+				buffer.flip();
+				if (buffer.remaining() > MAX_LENGTH)
+					throw new IOException("A datagram of " + buffer.remaining() + " bytes is too large to send");
+				return buffer;
+			}
+	}
@@ -0,0 +1,93 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link TPacket} which is encoded at most once for each protocol, however many clients it is sent to. Every connection is handed its
+ * own view of the same bytes, so a broadcast costs one encoding rather than one per client.
+ * 
+ * @author Sebastian Troy
+ */
+final class EncodedPacket
+	{
+		final TPacket packet;
+		final long coalesceKey;
+		final boolean hidden;
+		private final ReentrantLock lock = new ReentrantLock();
+		private ByteBuffer legacy, framed, compressed;
+
+		/**
+		 * @param packet
+		 *            - The packet to send.
+		 * @param coalesceKey
+		 *            - Packets with the same key supersede each other, see {@link TSettings.Overflow#COALESCE}.
+		 */
+		EncodedPacket(TPacket packet, long coalesceKey)
+			{
+				this(packet, coalesceKey, null);
+			}
+
+		/**
+		 * @param packet
+		 *            - The packet to send.
+		 * @param coalesceKey
+		 *            - Packets with the same key supersede each other, see {@link TSettings.Overflow#COALESCE}.
+		 * @param framed
+		 *            - The packet already encoded for the framed protocol without compression, e.g. as it was relayed by a peer, or
+		 *            <code>null</code> if it is yet to be encoded.
+		 */
+		EncodedPacket(TPacket packet, long coalesceKey, ByteBuffer framed)
+			{
+				this.packet = packet;
+				this.coalesceKey = coalesceKey;
+				this.framed = framed;
+				// A reply is never dropped either, its client is waiting for it, nor is a batch which would leave a gap in what it carries
+				this.hidden = packet.object instanceof TControl || packet.object instanceof TBatch || packet.correlationID != 0L;
+			}
+
+		/**
+		 * @param protocol
+		 *            - The protocol spoken by the client the packet is about to be written to.
+		 * @param metrics
+		 *            - Told how long the packet took to encode, if it hasn't been encoded for the protocol before.
+		 * @return - A buffer in read mode holding the encoded packet. The bytes are shared, but the position and limit belong to the caller.
+		 */
+		final ByteBuffer bytesFor(Protocol protocol, TMetrics metrics) throws IOException
+			{
+				lock.lock();
+				try
+					{
+						if (protocol == Protocol.LEGACY)
+							{
+								if (legacy == null)
+									legacy = encode(protocol, metrics);
+								return legacy.duplicate();
+							}
+
+						if (protocol.compresses())
+							{
+								if (compressed == null)
+									compressed = encode(protocol, metrics);
+								return compressed.duplicate();
+							}
+
+						if (framed == null)
+							framed = encode(protocol, metrics);
+						return framed.duplicate();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		private final ByteBuffer encode(Protocol protocol, TMetrics metrics) throws IOException
+			{
+				long start = System.nanoTime();
+				ByteBuffer bytes = protocol.encodeToClient(packet);
+				metrics.encodeNanos.record(System.nanoTime() - start);
+				return bytes;
+			}
+	}
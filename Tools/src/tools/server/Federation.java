@@ -0,0 +1,344 @@
+package tools.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links a {@link TServer} to its peers, see {@link TSettings#setFederation(int, int, String...)}. The server opens a link to every peer,
+ * over which it relays what it sends to all of its clients or to a topic, and listens on its peer port for the links of its peers.
+ * <p>
+ * Links use the framed protocol. The linking server sends {@link Protocol#MAGIC} and a PEER frame holding its node ID, followed by a RELAY
+ * frame for each object. The body of a RELAY frame is the length of the topic's name (-1 for an object sent to every client), the name in
+ * UTF-8, and then the object's data frame exactly as it is written to framed clients, so a relayed object is never encoded again.
+ * <p>
+ * What a server receives from a peer is sent to its own clients but never relayed on, so in a full mesh each object reaches every server
+ * exactly once.
+ *
+ * @author Sebastian Troy
+ */
+final class Federation
+	{
+		/**
+		 * How long to wait before trying again to link to a peer which could not be reached.
+		 */
+		private static final long RECONNECT_MILLIS = 1000L;
+
+		private final TServer<?> server;
+		private final Protocol framed;
+		private final int nodeID, queueLength;
+		private final ServerSocket serverSocket;
+		private final Link[] links;
+		private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+		private volatile boolean running = true;
+
+		/**
+		 * Starts listening for peers and linking to them.
+		 *
+		 * @param framed
+		 *            - The server's framed protocol, without compression, used to decode what is relayed.
+		 */
+		Federation(TServer<?> server, Protocol framed, TSettings settings) throws IOException
+			{
+				this.server = server;
+				this.framed = framed;
+				this.nodeID = settings.nodeID;
+				this.queueLength = settings.outboundPackets;
+
+				serverSocket = new ServerSocket();
+				serverSocket.setReuseAddress(true);
+				serverSocket.bind(new InetSocketAddress(settings.peerPort));
+				new Thread(this::acceptPeers, "TServer-Federation-" + nodeID).start();
+
+				links = new Link[settings.peers.length];
+				for (int i = 0; i < links.length; i++)
+					{
+						String peer = settings.peers[i];
+						int colon = peer.lastIndexOf(':');
+						links[i] = new Link(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+						links[i].thread.start();
+					}
+			}
+
+		/**
+		 * Relays an object to every peer. Never waits, a peer which has fallen so far behind that its queue is full is unlinked, and linked
+		 * to again afresh.
+		 *
+		 * @param topic
+		 *            - The topic the object was sent to, or <code>null</code> if it was sent to every client.
+		 * @param frame
+		 *            - The object's data frame, encoded for the framed protocol without compression.
+		 */
+		final void relay(String topic, ByteBuffer frame)
+			{
+				byte[] name = topic == null ? null : topic.getBytes(StandardCharsets.UTF_8);
+				int bodyLength = 2 + 4 + (name == null ? 0 : name.length) + frame.remaining();
+
+				ByteBuffer relay = ByteBuffer.allocate(4 + bodyLength);
+				relay.putInt(bodyLength).put(Protocol.OP_RELAY).put((byte) 0);
+				if (name == null)
+					relay.putInt(-1);
+				else
+					relay.putInt(name.length).put(name);
+				relay.put(frame.duplicate());
+				relay.flip();
+
+				// Every link shares the same bytes
+				for (Link link : links)
+					link.send(relay.duplicate());
+			}
+
+		/**
+		 * Unlinks from every peer and stops listening for them.
+		 */
+		final void close()
+			{
+				running = false;
+				try
+					{
+						serverSocket.close();
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				for (Link link : links)
+					link.close();
+				for (Socket socket : inbound)
+					try
+						{
+							socket.close();
+						}
+					catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		private final void acceptPeers()
+			{
+				while (running)
+					try
+						{
+							Socket socket = serverSocket.accept();
+							inbound.add(socket);
+							new Thread(() -> readPeer(socket), "TServer-Peer").start();
+						}
+					catch (IOException e)
+						{
+							// Closing the server socket is how we are told to stop
+							if (running)
+								e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Reads everything a peer relays to us and passes it on to the server, until the peer goes away.
+		 */
+		private final void readPeer(Socket socket)
+			{
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream())))
+					{
+						if (in.readInt() != Protocol.MAGIC)
+							throw new StreamCorruptedException("Peer link did not start with the framed protocol");
+
+						while (running)
+							{
+								int length = in.readInt();
+								if (length < 2 || length > Protocol.MAX_FRAME_LENGTH)
+									throw new StreamCorruptedException("Invalid frame length " + length);
+								ByteBuffer body = ByteBuffer.allocate(length);
+								in.readFully(body.array());
+
+								byte opcode = body.get();
+								body.get();
+								// A PEER frame only says who is linking to us, there is nothing to do with it
+								if (opcode != Protocol.OP_RELAY)
+									continue;
+
+								int nameLength = body.getInt();
+								String topic = null;
+								if (nameLength >= 0)
+									{
+										topic = new String(body.array(), body.position(), nameLength, StandardCharsets.UTF_8);
+										body.position(body.position() + nameLength);
+									}
+
+								ByteBuffer frame = body.slice();
+								TPacket packet = framed.decodeFromServer(frame.duplicate());
+								if (packet != null)
+									server.relayed(topic, packet, frame);
+							}
+					}
+				catch (EOFException | SocketException e)
+					{
+						// The peer has gone, it will link to us again once it is back
+					}
+				catch (IOException | ClassNotFoundException e)
+					{
+						if (running)
+							e.printStackTrace();
+					}
+				finally
+					{
+						inbound.remove(socket);
+					}
+			}
+
+		/**
+		 * The link to a single peer. Its thread connects to the peer, writes whatever is relayed until the connection fails, and then tries
+		 * again.
+		 */
+		private final class Link implements Runnable
+			{
+				private final String host;
+				private final int port;
+				private final Thread thread;
+				// Only present while linked, whatever is relayed while the peer cannot be reached is lost
+				private volatile SendQueue queue;
+				private volatile Socket socket;
+
+				private Link(String host, int port)
+					{
+						this.host = host;
+						this.port = port;
+						this.thread = new Thread(this, "TServer-Link-" + host + ":" + port);
+					}
+
+				private final void send(ByteBuffer relay)
+					{
+						SendQueue queue = this.queue;
+						if (queue != null)
+							try
+								{
+									if (queue.offer(relay, null, false) == SendQueue.FULL)
+										unlink();
+								}
+							catch (InterruptedException e)
+								{
+									Thread.currentThread().interrupt();
+								}
+					}
+
+				@Override
+				public final void run()
+					{
+						Object[] relays = new Object[64];
+						@SuppressWarnings({ "unchecked", "rawtypes" })
+						CompletableFuture<Void>[] futures = new CompletableFuture[64];
+
+						while (running)
+							{
+								SendQueue queue = new SendQueue(queueLength);
+								try (Socket socket = new Socket(host, port))
+									{
+										this.socket = socket;
+										OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+										new DataOutputStream(out).writeInt(Protocol.MAGIC);
+										write(out, Protocol.encodeControl(new TControl(Protocol.OP_PEER, nodeID)));
+										out.flush();
+										this.queue = queue;
+										// A peer never writes to a link, so the watcher hears straight away when it goes rather than when we next relay
+										new Thread(() -> watch(socket), "TServer-Link-Watcher").start();
+
+										int n;
+										while ((n = queue.drainTo(relays, futures)) >= 0)
+											{
+												for (int i = 0; i < n; i++)
+													{
+														write(out, (ByteBuffer) relays[i]);
+														relays[i] = null;
+													}
+												out.flush();
+											}
+									}
+								catch (IOException e)
+									{
+										// The peer is not there yet, or has gone
+									}
+								catch (InterruptedException e)
+									{
+										// Closing
+									}
+								finally
+									{
+										this.queue = null;
+										queue.close();
+									}
+
+								if (running)
+									try
+										{
+											Thread.sleep(RECONNECT_MILLIS);
+										}
+									catch (InterruptedException e)
+										{
+											// Closing
+										}
+							}
+					}
+
+				/**
+				 * Waits for the peer to close the link, then unlinks.
+				 */
+				private final void watch(Socket socket)
+					{
+						try
+							{
+								while (socket.getInputStream().read() >= 0)
+									;
+							}
+						catch (IOException e)
+							{
+								// Closed
+							}
+						if (this.socket == socket)
+							unlink();
+					}
+
+				private final void write(OutputStream out, ByteBuffer buffer) throws IOException
+					{
+						out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					}
+
+				/**
+				 * Drops the current connection to the peer, which the link's thread will then make again.
+				 */
+				private final void unlink()
+					{
+						SendQueue queue = this.queue;
+						if (queue != null)
+							queue.close();
+						Socket socket = this.socket;
+						if (socket != null)
+							try
+								{
+									socket.close();
+								}
+							catch (IOException e)
+								{
+									e.printStackTrace();
+								}
+					}
+
+				private final void close()
+					{
+						unlink();
+						thread.interrupt();
+					}
+			}
+	}
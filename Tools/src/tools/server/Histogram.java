@@ -0,0 +1,125 @@
+package tools.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a value, such as how long something takes in nanoseconds, in the same way as an HDR histogram. Every power
+ * of two is split into 32 buckets, so any value can be read back to within about 3%, from 0 up to roughly 36 minutes worth of
+ * nanoseconds. Larger values are recorded as the largest that fits.
+ * <p>
+ * Recording never allocates or locks, so it is safe to do from any number of threads on every message.
+ *
+ * @author Sebastian Troy
+ */
+public final class Histogram
+	{
+		private static final int SUB_BITS = 5, SUB_BUCKETS = 1 << SUB_BITS, MAX_EXPONENT = 40;
+		private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1L;
+		private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+		private final AtomicLongArray counts;
+		private final AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong();
+
+		public Histogram()
+			{
+				counts = new AtomicLongArray(BUCKETS);
+			}
+
+		/**
+		 * Records a single value, negative values are recorded as 0.
+		 */
+		public final void record(long value)
+			{
+				value = Math.min(Math.max(0L, value), MAX_VALUE);
+				counts.incrementAndGet(index(value));
+				count.incrementAndGet();
+				total.addAndGet(value);
+
+				long current;
+				while (value > (current = max.get()) && !max.compareAndSet(current, value))
+					;
+			}
+
+		/**
+		 * @return - A copy of the histogram as it is now, which will not change as more values are recorded.
+		 */
+		public final Histogram copy()
+			{
+				Histogram copy = new Histogram();
+				for (int i = 0; i < BUCKETS; i++)
+					copy.counts.set(i, counts.get(i));
+				copy.count.set(count.get());
+				copy.total.set(total.get());
+				copy.max.set(max.get());
+				return copy;
+			}
+
+		/**
+		 * @return - The number of values recorded.
+		 */
+		public final long getCount()
+			{
+				return count.get();
+			}
+
+		/**
+		 * @return - The largest value recorded, exactly.
+		 */
+		public final long getMax()
+			{
+				return max.get();
+			}
+
+		/**
+		 * @return - The mean of the values recorded, or 0 if there are none.
+		 */
+		public final double getMean()
+			{
+				long n = count.get();
+				return n == 0L ? 0.0 : (double) total.get() / n;
+			}
+
+		/**
+		 * @param percentile
+		 *            - Between 0 and 100, e.g. 99 for the value which 99% of values are no larger than.
+		 * @return - The value at the given percentile, or 0 if nothing has been recorded.
+		 */
+		public final long getValueAtPercentile(double percentile)
+			{
+				long n = 0L;
+				for (int i = 0; i < BUCKETS; i++)
+					n += counts.get(i);
+				if (n == 0L)
+					return 0L;
+
+				long target = Math.max(1L, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * n));
+				long seen = 0L;
+				for (int i = 0; i < BUCKETS; i++)
+					{
+						seen += counts.get(i);
+						if (seen >= target)
+							return Math.min(highestValue(i), max.get());
+					}
+				return max.get();
+			}
+
+		private static int index(long value)
+			{
+				if (value < SUB_BUCKETS)
+					return (int) value;
+				int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+				return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+			}
+
+		/**
+		 * @return - The largest value which is recorded in the bucket.
+		 */
+		private static long highestValue(int index)
+			{
+				if (index < SUB_BUCKETS)
+					return index;
+				int shift = (index >>> SUB_BITS) - 1;
+				return ((SUB_BUCKETS + (long) (index & (SUB_BUCKETS - 1))) << shift) + (1L << shift) - 1L;
+			}
+	}
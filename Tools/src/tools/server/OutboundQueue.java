@@ -0,0 +1,454 @@
+package tools.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import tools.server.TSettings.Overflow;
+
+/**
+ * The bytes waiting to be written to a single client. Any thread may add to the queue, but only the connection's writer removes from it, so
+ * a client which is slow to read only ever holds up its own queue.
+ * <p>
+ * The writer is either a thread which waits on {@link #take()}, or an event loop which is told to start writing whenever
+ * {@link #offer(ByteBuffer, long, boolean, boolean)} returns {@link #SCHEDULE} and stops again once {@link #descheduleIfEmpty()} returns
+ * <code>true</code>.
+ * <p>
+ * The queue is limited both in the number of packets and the number of bytes it holds. What happens to a packet which would take it over
+ * either limit is decided by its {@link Overflow} policy. Hidden messages from the server, and replies to requests, are always
+ * accepted and never dropped, as are the chunks of a stream.
+ * <p>
+ * A chunk of a file, see {@link OutboundStream}, is queued as just the start of its frame. Once that has been written the writer sends the
+ * rest straight from the file, and only then moves on.
+ *
+ * @author Sebastian Troy
+ */
+final class OutboundQueue
+	{
+		/**
+		 * Returned by {@link #offer(ByteBuffer, long, boolean, boolean)}.
+		 */
+		static final int QUEUED = 0, SCHEDULE = 1, DROPPED = 2, FULL = 3, CLOSED = 4;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+		private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+		private final int maxPackets;
+		private final long maxBytes;
+		private final Overflow overflow;
+		private long bytes = 0L, dropped = 0L;
+		private boolean scheduled = false, shutdown = false, closed = false;
+
+		/**
+		 * @param maxPackets
+		 *            - The most packets which may be waiting at any one time.
+		 * @param maxBytes
+		 *            - The most bytes which may be waiting at any one time.
+		 * @param overflow
+		 *            - What to do with a packet which would break either limit.
+		 */
+		OutboundQueue(int maxPackets, long maxBytes, Overflow overflow)
+			{
+				this.maxPackets = maxPackets;
+				this.maxBytes = maxBytes;
+				this.overflow = overflow;
+			}
+
+		/**
+		 * @param buffer
+		 *            - A buffer in read mode which no other thread will change.
+		 * @param coalesceKey
+		 *            - Used by {@link Overflow#COALESCE}, a waiting packet with the same key may be replaced by this one.
+		 * @param hidden
+		 *            - <code>true</code> if this is a hidden message from the server or a reply, which must never be dropped.
+		 * @param mayBlock
+		 *            - <code>false</code> if the calling thread must not wait for room, even if the policy is {@link Overflow#BLOCK}.
+		 * @return - {@link #SCHEDULE} if the buffer was queued and the writer needs to be woken, {@link #QUEUED} if it was queued and the
+		 *         writer is already busy, {@link #DROPPED} if the overflow policy threw it away, {@link #FULL} if the client should be
+		 *         disconnected or {@link #CLOSED} if nothing more will be written.
+		 */
+		final int offer(ByteBuffer buffer, long coalesceKey, boolean hidden, boolean mayBlock) throws InterruptedException
+			{
+				return offer(new Entry(buffer, null, coalesceKey, hidden), mayBlock);
+			}
+
+		/**
+		 * @param chunk
+		 *            - The next chunk of a stream, which like a hidden message is never dropped. The stream itself limits how many of its
+		 *            chunks are waiting.
+		 * @return - As {@link #offer(ByteBuffer, long, boolean, boolean)}.
+		 */
+		final int offer(OutboundStream.Chunk chunk, boolean mayBlock) throws InterruptedException
+			{
+				return offer(new Entry(chunk.header, chunk, 0L, true), mayBlock);
+			}
+
+		private final int offer(Entry entry, boolean mayBlock) throws InterruptedException
+			{
+				lock.lock();
+				try
+					{
+						if (shutdown || closed)
+							return CLOSED;
+
+						if (!entry.hidden && !fits(entry.length))
+							switch (overflow)
+								{
+									case BLOCK:
+										long wait = TimeUnit.MILLISECONDS.toNanos(TServer.TIMEOUT_MILLIS);
+										while (!fits(entry.length) && !closed && !shutdown && wait > 0L && mayBlock)
+											wait = notFull.awaitNanos(wait);
+										if (closed || shutdown)
+											return CLOSED;
+										if (!fits(entry.length))
+											return FULL;
+										break;
+									case DROP_NEWEST:
+										dropped++;
+										return DROPPED;
+									case COALESCE:
+										if (removeLast(entry.coalesceKey))
+											dropped++;
+										if (!fits(entry.length) && !dropOldest(entry.length))
+											return DROPPED;
+										break;
+									case DROP_OLDEST:
+										if (!dropOldest(entry.length))
+											return DROPPED;
+										break;
+									case DISCONNECT:
+										return FULL;
+								}
+
+						queue.add(entry);
+						bytes += entry.length;
+						notEmpty.signal();
+						if (scheduled)
+							return QUEUED;
+						scheduled = true;
+						return SCHEDULE;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * An empty queue always has room, so that a single packet larger than the byte limit can still be sent.
+		 */
+		private final boolean fits(long length)
+			{
+				return queue.isEmpty() || (queue.size() < maxPackets && bytes + length <= maxBytes);
+			}
+
+		/**
+		 * Removes the newest waiting packet with the given key which the writer has not yet started.
+		 */
+		private final boolean removeLast(long coalesceKey)
+			{
+				Iterator<Entry> entries = queue.descendingIterator();
+				while (entries.hasNext())
+					{
+						Entry entry = entries.next();
+						if (!entry.hidden && !entry.started && entry.coalesceKey == coalesceKey)
+							{
+								entries.remove();
+								bytes -= entry.length;
+								return true;
+							}
+					}
+				return false;
+			}
+
+		/**
+		 * Removes the oldest waiting packets, which the writer has not yet started, until there is room for the new one.
+		 *
+		 * @return - <code>false</code> if there is nothing left that can be removed and still no room.
+		 */
+		private final boolean dropOldest(long length)
+			{
+				Iterator<Entry> entries = queue.iterator();
+				while (!fits(length) && entries.hasNext())
+					{
+						Entry entry = entries.next();
+						if (!entry.hidden && !entry.started)
+							{
+								entries.remove();
+								bytes -= entry.length;
+								dropped++;
+							}
+					}
+				return fits(length);
+			}
+
+		/**
+		 * Used by an event loop to write several buffers with a single gathering write. The event loop may only manage to write part of
+		 * them, so they are removed with {@link #poll()} once written.
+		 *
+		 * @param buffers
+		 *            - Filled with the buffers at the front of the queue, without removing them. From now on they will not be dropped by the
+		 *            overflow policy. The start of a chunk of a file is always the last, see {@link #peekChunk()}.
+		 * @return - The number of buffers filled in.
+		 */
+		final int peek(ByteBuffer[] buffers)
+			{
+				lock.lock();
+				try
+					{
+						int count = 0;
+						for (Entry entry : queue)
+							{
+								if (count == buffers.length)
+									break;
+								entry.started = true;
+								buffers[count++] = entry.buffer;
+								// The rest of the chunk has to be written before anything behind it
+								if (entry.chunk != null)
+									break;
+							}
+						return count;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * Used by a writer thread when batching, waits for more packets to join those already waiting.
+		 *
+		 * @param nanos
+		 *            - The longest time to wait.
+		 * @param batchBytes
+		 *            - Stops waiting as soon as this many bytes are waiting.
+		 */
+		final void awaitBatch(long nanos, long batchBytes) throws InterruptedException
+			{
+				lock.lock();
+				try
+					{
+						while (bytes < batchBytes && !shutdown && !closed && nanos > 0L)
+							nanos = notEmpty.awaitNanos(nanos);
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The chunk at the front of the queue, or <code>null</code> if the packet at the front is not a chunk.
+		 */
+		final OutboundStream.Chunk peekChunk()
+			{
+				lock.lock();
+				try
+					{
+						Entry entry = queue.peek();
+						return entry == null ? null : entry.chunk;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The entry at the front of the queue, or <code>null</code> if the queue is empty.
+		 */
+		final Entry poll()
+			{
+				lock.lock();
+				try
+					{
+						return remove();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * Waits until there is something to write.
+		 *
+		 * @return - The entry at the front of the queue, or <code>null</code> once the queue has been closed, or shut down and emptied.
+		 */
+		final Entry take() throws InterruptedException
+			{
+				lock.lock();
+				try
+					{
+						while (queue.isEmpty() && !shutdown && !closed)
+							notEmpty.await();
+						return closed ? null : remove();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		private final Entry remove()
+			{
+				Entry entry = queue.poll();
+				if (entry == null)
+					return null;
+
+				bytes -= entry.length;
+				notFull.signalAll();
+				return entry;
+			}
+
+		/**
+		 * Called by an event loop once it has written everything it could find.
+		 *
+		 * @return - <code>true</code> if the queue really is empty, in which case the next offer will return {@link #SCHEDULE}.
+		 */
+		final boolean descheduleIfEmpty()
+			{
+				lock.lock();
+				try
+					{
+						if (!queue.isEmpty())
+							return false;
+						scheduled = false;
+						return true;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * Stops anything new being queued, but lets the writer finish what is already waiting.
+		 */
+		final void shutdown()
+			{
+				lock.lock();
+				try
+					{
+						shutdown = true;
+						notEmpty.signalAll();
+						notFull.signalAll();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * Throws away anything waiting and stops anything new being queued.
+		 */
+		final void close()
+			{
+				lock.lock();
+				try
+					{
+						closed = true;
+						queue.clear();
+						bytes = 0L;
+						notEmpty.signalAll();
+						notFull.signalAll();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * @return - <code>true</code> once the queue has been shut down and everything in it written, or the queue has been closed.
+		 */
+		final boolean isFinished()
+			{
+				lock.lock();
+				try
+					{
+						return closed || (shutdown && queue.isEmpty());
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The number of packets waiting to be written.
+		 */
+		final int size()
+			{
+				lock.lock();
+				try
+					{
+						return queue.size();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The number of bytes waiting to be written.
+		 */
+		final long bytes()
+			{
+				lock.lock();
+				try
+					{
+						return bytes;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The number of packets thrown away by the overflow policy so far.
+		 */
+		final long dropped()
+			{
+				lock.lock();
+				try
+					{
+						return dropped;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * A single packet waiting to be written.
+		 */
+		static final class Entry
+			{
+				final ByteBuffer buffer;
+				/**
+				 * The chunk of a file which follows the buffer, or <code>null</code>.
+				 */
+				final OutboundStream.Chunk chunk;
+				private final long length;
+				private final long coalesceKey;
+				private final boolean hidden;
+				private boolean started = false;
+
+				private Entry(ByteBuffer buffer, OutboundStream.Chunk chunk, long coalesceKey, boolean hidden)
+					{
+						this.buffer = buffer;
+						this.chunk = chunk;
+						this.length = buffer.remaining() + (chunk == null ? 0L : chunk.remaining());
+						this.coalesceKey = coalesceKey;
+						this.hidden = hidden;
+					}
+			}
+	}
\ No newline at end of file
@@ -0,0 +1,254 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A stream being sent to a single client, asked for with {@link TClient#download(String, java.nio.file.Path)}. The stream is cut into
+ * chunks which are queued for the client along with everything else it is sent, so other messages still get through while a large file is
+ * on its way. Only a few chunks are ever waiting at once, so the memory used is the same however large the stream is.
+ * <p>
+ * A chunk of a {@link FileChannel} holds no bytes at all, the file is written straight to the socket with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} once the chunk reaches the front of the queue. Which is only free of
+ * copying when the client is serviced by {@link TSettings.Engine#SELECTOR}, the default engine's sockets have no channel. Any other source
+ * is read into one of a few buffers which are reused once their chunks have been written.
+ *
+ * @author Sebastian Troy
+ */
+final class OutboundStream implements Runnable
+	{
+		/**
+		 * The most bytes sent in a single chunk.
+		 */
+		static final int CHUNK_LENGTH = 64 * 1024;
+		/**
+		 * The most chunks waiting to be written at once.
+		 */
+		private static final int WINDOW = 4;
+
+		private final TServer<?>.Connection connection;
+		private final long streamID, offset;
+		private final ReadableByteChannel source;
+		private final Semaphore window = new Semaphore(WINDOW);
+		private volatile boolean cancelled = false;
+
+		/**
+		 * @param streamID
+		 *            - The ID the client gave the stream.
+		 * @param source
+		 *            - What to send, which is closed once it has been sent.
+		 * @param offset
+		 *            - How many bytes of the source to skip, which the client already has.
+		 */
+		OutboundStream(TServer<?>.Connection connection, long streamID, ReadableByteChannel source, long offset)
+			{
+				this.connection = connection;
+				this.streamID = streamID;
+				this.source = source;
+				this.offset = offset;
+			}
+
+		@Override
+		public final void run()
+			{
+				String failure = null;
+				try
+					{
+						if (source instanceof FileChannel)
+							sendFile((FileChannel) source);
+						else
+							sendStream();
+					}
+				catch (IOException e)
+					{
+						failure = e.getMessage() == null ? e.toString() : e.getMessage();
+					}
+				catch (InterruptedException e)
+					{
+						cancelled = true;
+					}
+
+				try
+					{
+						// The end follows the last chunk, so it can be queued straight away
+						if (!cancelled)
+							send(new TControl(Protocol.OP_STREAM_END, streamID, failure));
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+
+				try
+					{
+						// But the file must stay open until the last chunk has been written, or the connection has gone
+						window.acquire(WINDOW);
+					}
+				catch (InterruptedException e)
+					{
+						// Close the source anyway
+					}
+				finally
+					{
+						connection.streamFinished(streamID, this);
+						try
+							{
+								source.close();
+							}
+						catch (IOException e)
+							{
+								e.printStackTrace();
+							}
+					}
+			}
+
+		private final void sendFile(FileChannel file) throws IOException, InterruptedException
+			{
+				long length = file.size();
+				if (offset > length)
+					throw new IOException("Cannot resume from " + offset + ", the stream is only " + length + " bytes long");
+				send(new TControl(Protocol.OP_STREAM, streamID, length, (String) null));
+
+				for (long position = offset; position < length && !cancelled;)
+					{
+						window.acquire();
+						int count = (int) Math.min(CHUNK_LENGTH, length - position);
+						ByteBuffer header = ByteBuffer.allocate(Protocol.CHUNK_HEADER_LENGTH);
+						Protocol.putChunkHeader(header, streamID, count);
+						header.flip();
+						if (!connection.send(new Chunk(this, header, file, position, count)))
+							{
+								// The connection has closed
+								abandon();
+								return;
+							}
+						position += count;
+					}
+			}
+
+		private final void sendStream() throws IOException, InterruptedException
+			{
+				ByteBuffer[] buffers = new ByteBuffer[WINDOW];
+				for (int i = 0; i < WINDOW; i++)
+					buffers[i] = ByteBuffer.allocate(Protocol.CHUNK_HEADER_LENGTH + CHUNK_LENGTH);
+
+				// Skip what the client already has, a byte channel cannot be positioned
+				for (long skipped = 0L; skipped < offset;)
+					{
+						buffers[0].clear().limit((int) Math.min(buffers[0].capacity(), offset - skipped));
+						int read = source.read(buffers[0]);
+						if (read < 0)
+							throw new IOException("Cannot resume from " + offset + ", the stream is only " + skipped + " bytes long");
+						skipped += read;
+					}
+				send(new TControl(Protocol.OP_STREAM, streamID, -1L, (String) null));
+
+				// Chunks are written in the order they are queued, so once a permit is free the oldest buffer is too
+				for (int next = 0; !cancelled; next = (next + 1) % WINDOW)
+					{
+						window.acquire();
+						ByteBuffer buffer = buffers[next];
+						buffer.clear().position(Protocol.CHUNK_HEADER_LENGTH);
+						int read;
+						while (buffer.hasRemaining() && (read = source.read(buffer)) >= 0)
+							if (read == 0)
+								Thread.yield();
+						int count = buffer.position() - Protocol.CHUNK_HEADER_LENGTH;
+						if (count == 0)
+							{
+								window.release();
+								return;
+							}
+
+						buffer.flip();
+						Protocol.putChunkHeader(buffer.duplicate(), streamID, count);
+						if (!connection.send(new Chunk(this, buffer, null, 0L, 0L)))
+							{
+								abandon();
+								return;
+							}
+					}
+			}
+
+		private final void send(TControl control) throws IOException
+			{
+				connection.send(new EncodedPacket(new TPacket(0L, control, true), 0L));
+			}
+
+		/**
+		 * Stops queuing chunks because the client has cancelled the stream. Those already queued are still written, the client ignores
+		 * them.
+		 */
+		final void cancel()
+			{
+				cancelled = true;
+			}
+
+		/**
+		 * Stops queuing chunks because the connection has closed.
+		 */
+		final void abandon()
+			{
+				cancelled = true;
+				// Chunks which were queued will never be written now, so don't wait for them
+				window.release(WINDOW);
+			}
+
+		/**
+		 * A single chunk of a stream, waiting in a client's {@link OutboundQueue}.
+		 */
+		static final class Chunk
+			{
+				private final OutboundStream stream;
+				/**
+				 * The start of the chunk's frame, or for a chunk which is not part of a file the whole frame.
+				 */
+				final ByteBuffer header;
+				private final FileChannel file;
+				private long position, remaining;
+
+				private Chunk(OutboundStream stream, ByteBuffer header, FileChannel file, long position, long count)
+					{
+						this.stream = stream;
+						this.header = header;
+						this.file = file;
+						this.position = position;
+						this.remaining = count;
+					}
+
+				/**
+				 * @return - The number of bytes which follow the header.
+				 */
+				final long remaining()
+					{
+						return remaining;
+					}
+
+				/**
+				 * Called by the connection's writer once the header has been written, writes as much of the rest of the chunk as the target
+				 * will take.
+				 *
+				 * @return - The number of bytes written.
+				 */
+				final long transferTo(WritableByteChannel target) throws IOException
+					{
+						long written = 0L;
+						while (remaining > 0L)
+							{
+								long n = file.transferTo(position, remaining, target);
+								if (n <= 0L)
+									break;
+								position += n;
+								remaining -= n;
+								written += n;
+							}
+						if (remaining == 0L)
+							stream.window.release();
+						return written;
+					}
+			}
+	}
@@ -0,0 +1,516 @@
+package tools.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the objects passed between a {@link TServer} and its {@link TClient}s into bytes and back again. Two wire formats are understood:
+ * <ul>
+ * <li>{@link #LEGACY} - Every object is written with its own {@link ObjectOutputStream}, as {@link TServer} and {@link TClient} always have.
+ * Every message carries a stream header and the full description of each class it contains.</li>
+ * <li>{@link #framed(Codec) Framed} - The client starts by sending {@link #MAGIC}, after which every message is a frame made up of its
+ * length, a one byte opcode, a byte of flags and then its body. The body of a data frame holds the sender's uniqueID (server to client
+ * only) followed by the object as written by a {@link Codec}. A request, or the reply to one, starts with its correlation ID instead. The
+ * client follows {@link #MAGIC} with a HELLO frame saying what it is able to do, which the server answers with one of its own. Bodies
+ * larger than a threshold may then be compressed, see {@link Compression}.</li>
+ * </ul>
+ * A {@link TServer} detects which format each client is using from the first bytes it sends, so old and new clients can share a server.
+ *
+ * @author Sebastian Troy
+ */
+abstract class Protocol
+	{
+		/**
+		 * Sent by a client using {@link #framed(Codec)} before anything else. Java serialisation streams always start with 0xACED, so the
+		 * two formats cannot be confused.
+		 */
+		static final int MAGIC = 0x54465201;
+
+		/**
+		 * The largest frame that will be accepted, anything larger is assumed to be a corrupt or malicious stream.
+		 */
+		static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+		/**
+		 * The opcodes of the framed protocol. Every opcode other than {@link #OP_DATA}, {@link #OP_RELAY} and {@link #OP_BATCH} carries a
+		 * {@link TControl}:
+		 * <ul>
+		 * <li>{@link #OP_HELLO} - A byte of capabilities, sent by each side when a client connects.</li>
+		 * <li>{@link #OP_PING} - The server asking if the client is still there, with no body.</li>
+		 * <li>{@link #OP_PONG} - The client's answer to a ping, with no body.</li>
+		 * <li>{@link #OP_ID} - The uniqueID the server has given the client.</li>
+		 * <li>{@link #OP_KICK} - The reason the client has been kicked, in UTF-8.</li>
+		 * <li>{@link #OP_BYE} - The client disconnecting, with no body.</li>
+		 * <li>{@link #OP_SUBSCRIBE} - The client asking for what is sent to a topic, the name of which is in UTF-8.</li>
+		 * <li>{@link #OP_UNSUBSCRIBE} - The client no longer wanting what is sent to a topic, the name of which is in UTF-8.</li>
+		 * <li>{@link #OP_PEER} - The node ID of a server linking to one of its peers, see {@link Federation}.</li>
+		 * <li>{@link #OP_RELAY} - An object relayed from one server to a peer, see {@link Federation}.</li>
+		 * <li>{@link #OP_FETCH} - The client asking for a stream, with the ID it has chosen for it, the offset to start from and then the
+		 * stream's name in UTF-8.</li>
+		 * <li>{@link #OP_STREAM} - The start of a stream, its ID followed by its length, or -1 if that is not known.</li>
+		 * <li>{@link #OP_CHUNK} - The ID of a stream followed by its next bytes, see {@link OutboundStream}.</li>
+		 * <li>{@link #OP_STREAM_END} - The ID of a stream followed by the reason it failed in UTF-8, or nothing if it is complete. Sent by
+		 * the client to cancel a stream.</li>
+		 * <li>{@link #OP_DATAGRAM} - The token a client puts in its datagrams to prove who sent them, see {@link Datagrams}.</li>
+		 * <li>{@link #OP_DATAGRAM_BOUND} - The server confirming it has heard a client's datagrams, with no body.</li>
+		 * <li>{@link #OP_STATE} - A version of the server's state, its number followed by the number of the version it is a delta from, or
+		 * 0 for a full snapshot, and then the delta, see {@link StateDelta}. The only control message which may be compressed.</li>
+		 * <li>{@link #OP_STATE_ACK} - The client confirming the version of the state it now holds.</li>
+		 * <li>{@link #OP_BATCH} - Many objects from the same sender, see {@link TBatch}.</li>
+		 * </ul>
+		 */
+		static final byte OP_DATA = 0, OP_HELLO = 1, OP_PING = 2, OP_PONG = 3, OP_ID = 4, OP_KICK = 5, OP_BYE = 6, OP_SUBSCRIBE = 7, OP_UNSUBSCRIBE = 8,
+				OP_PEER = 9, OP_RELAY = 10, OP_FETCH = 11, OP_STREAM = 12, OP_CHUNK = 13, OP_STREAM_END = 14,
+				OP_DATAGRAM = 15, OP_DATAGRAM_BOUND = 16, OP_STATE = 17, OP_STATE_ACK = 18, OP_BATCH = 19;
+
+		/**
+		 * The flags of a frame. {@link #FLAG_CORRELATED} marks a data frame which is a request from a client or the server's reply to one,
+		 * the body of which starts with the request's correlation ID.
+		 */
+		static final byte FLAG_PERSONAL = 1, FLAG_COMPRESSED = 2, FLAG_CORRELATED = 4;
+
+		/**
+		 * The size of the fixed part of a frame, its length followed by its opcode and flags.
+		 */
+		static final int HEADER_LENGTH = 6;
+
+		/**
+		 * The size of the start of a {@link #OP_CHUNK} frame, its header followed by the ID of its stream.
+		 */
+		static final int CHUNK_HEADER_LENGTH = HEADER_LENGTH + 8;
+
+		static final Protocol LEGACY = new Legacy();
+
+		/**
+		 * @param codec
+		 *            - Encodes and decodes the objects carried by data frames.
+		 * @return - The framed protocol, using the given codec.
+		 */
+		static <DataType> Protocol framed(Codec<DataType> codec)
+			{
+				return new Framed<DataType>(codec, -1);
+			}
+
+		/**
+		 * @param codec
+		 *            - Encodes and decodes the objects carried by data frames.
+		 * @param compressAbove
+		 *            - Frames with bodies larger than this many bytes are compressed, or none are if negative. Only use this once the peer
+		 *            has said, in its HELLO, that it can inflate frames.
+		 * @return - The framed protocol, using the given codec.
+		 */
+		static <DataType> Protocol framed(Codec<DataType> codec, int compressAbove)
+			{
+				return new Framed<DataType>(codec, compressAbove);
+			}
+
+		/**
+		 * Encodes a packet being sent from the server to a client.
+		 */
+		abstract ByteBuffer encodeToClient(TPacket packet) throws IOException;
+
+		/**
+		 * Decodes a single packet sent by the server.
+		 *
+		 * @param buffer
+		 *            - A buffer in read mode, if a whole packet is found its bytes are consumed.
+		 * @return - The packet, or <code>null</code> if the whole packet has not yet arrived.
+		 */
+		abstract TPacket decodeFromServer(ByteBuffer buffer) throws IOException, ClassNotFoundException;
+
+		/**
+		 * Encodes an object being sent from a client to the server. A request is sent as a {@link TPacket} holding its correlation ID.
+		 */
+		abstract ByteBuffer encodeToServer(Object object) throws IOException;
+
+		/**
+		 * Decodes a single object sent by a client, a request is returned as a {@link TPacket} holding its correlation ID.
+		 *
+		 * @param buffer
+		 *            - A buffer in read mode, if a whole object is found its bytes are consumed.
+		 * @return - The object, or <code>null</code> if the whole object has not yet arrived.
+		 */
+		abstract Object decodeFromClient(ByteBuffer buffer) throws IOException, ClassNotFoundException;
+
+		/**
+		 * Works out which format a client is using from the first bytes it has sent. If the client is using the framed protocol the
+		 * {@link #MAGIC} number is consumed.
+		 *
+		 * @param buffer
+		 *            - A buffer in read mode holding the first bytes sent by the client.
+		 * @param framed
+		 *            - The framed protocol to use if the client asks for it.
+		 * @return - The format the client is using, or <code>null</code> if not enough has arrived to tell.
+		 */
+		static Protocol detect(ByteBuffer buffer, Protocol framed) throws IOException
+			{
+				if (buffer.remaining() >= 2 && buffer.getShort(buffer.position()) == ObjectOutputStream.STREAM_MAGIC)
+					return LEGACY;
+				if (buffer.remaining() < 4)
+					return null;
+				if (buffer.getInt() == MAGIC)
+					return framed;
+				throw new StreamCorruptedException("Unrecognised protocol");
+			}
+
+		/**
+		 * @return - <code>true</code> if this protocol compresses large frames. Compressed and uncompressed frames are always understood.
+		 */
+		boolean compresses()
+			{
+				return false;
+			}
+
+		/**
+		 * @return - The control message as a frame of the framed protocol.
+		 */
+		static ByteBuffer encodeControl(TControl control)
+			{
+				byte[] text = control.text != null ? control.text.getBytes(StandardCharsets.UTF_8) : null;
+				boolean carriesLong = control.opcode == OP_ID || control.opcode == OP_PEER || control.opcode == OP_STREAM_END || control.opcode == OP_DATAGRAM
+						|| control.opcode == OP_STATE_ACK;
+				boolean carriesSize = control.opcode == OP_FETCH || control.opcode == OP_STREAM || control.opcode == OP_STATE;
+				ByteBuffer data = control.opcode == OP_STATE ? control.data.duplicate() : null;
+				int bodyLength = control.opcode == OP_HELLO ? 1 : (carriesSize ? 16 : carriesLong ? 8 : 0) + (text != null ? text.length : 0)
+						+ (data != null ? data.remaining() : 0);
+
+				ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+				frame.putInt(bodyLength + 2).put(control.opcode).put((byte) 0);
+				if (control.opcode == OP_HELLO)
+					frame.put((byte) control.value);
+				else
+					{
+						if (carriesLong || carriesSize)
+							frame.putLong(control.value);
+						if (carriesSize)
+							frame.putLong(control.size);
+						if (text != null)
+							frame.put(text);
+						if (data != null)
+							frame.put(data);
+					}
+				frame.flip();
+				return frame;
+			}
+
+		/**
+		 * Writes the start of a {@link #OP_CHUNK} frame, which the chunk's bytes then follow.
+		 *
+		 * @param buffer
+		 *            - Has room for {@link #CHUNK_HEADER_LENGTH} bytes at its position.
+		 * @param streamID
+		 *            - The ID the client gave the stream.
+		 * @param length
+		 *            - The number of bytes in the chunk.
+		 */
+		static void putChunkHeader(ByteBuffer buffer, long streamID, int length)
+			{
+				buffer.putInt(length + CHUNK_HEADER_LENGTH - 4).put(OP_CHUNK).put((byte) 0).putLong(streamID);
+			}
+
+		/**
+		 * @param opcode
+		 *            - The opcode of a frame other than {@link #OP_DATA}.
+		 * @param body
+		 *            - The body of the frame.
+		 * @return - The control message carried by the frame.
+		 */
+		static TControl decodeControl(byte opcode, ByteBuffer body) throws IOException
+			{
+				switch (opcode)
+					{
+						case OP_HELLO:
+							return new TControl(opcode, body.hasRemaining() ? body.get() : 0);
+						case OP_ID:
+						case OP_PEER:
+						case OP_DATAGRAM:
+						case OP_STATE_ACK:
+							if (body.remaining() < 8)
+								throw new StreamCorruptedException("Truncated frame, opcode " + opcode);
+							return new TControl(opcode, body.getLong());
+						case OP_FETCH:
+						case OP_STREAM:
+							if (body.remaining() < 16)
+								throw new StreamCorruptedException("Truncated frame, opcode " + opcode);
+							return new TControl(opcode, body.getLong(), body.getLong(), StandardCharsets.UTF_8.decode(body).toString());
+						case OP_STATE:
+							if (body.remaining() < 16)
+								throw new StreamCorruptedException("Truncated frame, opcode " + opcode);
+							return new TControl(opcode, body.getLong(), body.getLong(), body.slice());
+						case OP_CHUNK:
+							if (body.remaining() < 8)
+								throw new StreamCorruptedException("Truncated frame, opcode " + opcode);
+							return new TControl(opcode, body.getLong(), body.slice());
+						case OP_STREAM_END:
+							if (body.remaining() < 8)
+								throw new StreamCorruptedException("Truncated frame, opcode " + opcode);
+							long streamID = body.getLong();
+							return new TControl(opcode, streamID, body.hasRemaining() ? StandardCharsets.UTF_8.decode(body).toString() : null);
+						case OP_KICK:
+						case OP_SUBSCRIBE:
+						case OP_UNSUBSCRIBE:
+							return new TControl(opcode, StandardCharsets.UTF_8.decode(body).toString());
+						case OP_PING:
+						case OP_PONG:
+						case OP_BYE:
+						case OP_DATAGRAM_BOUND:
+							return new TControl(opcode);
+						default:
+							throw new StreamCorruptedException("Unknown opcode " + opcode);
+					}
+			}
+
+		/**
+		 * @return - The buffer if it has space left in it, otherwise a buffer twice the size holding the same bytes.
+		 */
+		static ByteBuffer ensureSpace(ByteBuffer buffer)
+			{
+				return Codec.ensureRemaining(buffer, 1);
+			}
+
+		/**
+		 * Java serialisation, one stream per object. Control messages are sent as the {@link TString}s understood by clients and servers
+		 * older than {@link TControl}. Those which have no such string, such as subscribing to a topic, are sent as the {@link TControl}
+		 * itself, which only newer servers understand.
+		 */
+		private static final class Legacy extends Protocol
+			{
+				private static final String PING = "Server: Are_You_There?", PONG = "Client_Still_Here_0123456789",
+						BYE = "Client_Disconnected_0123456789", ID = "ID:", KICK = "Kicked: ";
+
+				@Override
+				final ByteBuffer encodeToClient(TPacket packet) throws IOException
+					{
+						if (packet.object instanceof TControl)
+							{
+								TControl control = (TControl) packet.object;
+								String message = control.opcode == OP_PING ? PING : control.opcode == OP_ID ? ID + control.value
+										: control.opcode == OP_KICK ? KICK + control.text : null;
+								if (message == null)
+									throw new StreamCorruptedException("Opcode " + control.opcode + " cannot be sent to a legacy client");
+								packet = new TPacket(packet.uniqueID, new TString(message), packet.personal);
+							}
+						else if (packet.object instanceof TBatch)
+							{
+								// One serialised packet after another, just as if each object had been sent on its own
+								ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+								for (TPacket p : ((TBatch) packet.object).unbatch(packet))
+									{
+										ByteBuffer serialised = serialise(p);
+										bytes.write(serialised.array(), serialised.arrayOffset(), serialised.remaining());
+									}
+								return ByteBuffer.wrap(bytes.toByteArray());
+							}
+						return serialise(packet);
+					}
+
+				@Override
+				final TPacket decodeFromServer(ByteBuffer buffer) throws IOException, ClassNotFoundException
+					{
+						TPacket packet = (TPacket) deserialise(buffer);
+						if (packet == null || !packet.personal || !(packet.object instanceof TString))
+							return packet;
+
+						String message = ((TString) packet.object).string;
+						if (message.equals(PING))
+							return new TPacket(0L, new TControl(OP_PING), true);
+						if (message.startsWith(ID))
+							return new TPacket(0L, new TControl(OP_ID, Long.parseLong(message.substring(ID.length()))), true);
+						if (message.startsWith(KICK))
+							return new TPacket(0L, new TControl(OP_KICK, message.substring(KICK.length())), true);
+						return packet;
+					}
+
+				@Override
+				final ByteBuffer encodeToServer(Object object) throws IOException
+					{
+						if (object instanceof TControl)
+							{
+								byte opcode = ((TControl) object).opcode;
+								if (opcode == OP_PONG)
+									object = new TString(PONG);
+								else if (opcode == OP_BYE)
+									object = new TString(BYE);
+								else if (opcode != OP_SUBSCRIBE && opcode != OP_UNSUBSCRIBE)
+									throw new StreamCorruptedException("Opcode " + opcode + " cannot be sent to a legacy server");
+							}
+						return serialise(object);
+					}
+
+				@Override
+				final Object decodeFromClient(ByteBuffer buffer) throws IOException, ClassNotFoundException
+					{
+						Object object = deserialise(buffer);
+						if (object instanceof TString)
+							{
+								String message = ((TString) object).string;
+								if (message.equals(PONG))
+									return new TControl(OP_PONG);
+								if (message.equals(BYE))
+									return new TControl(OP_BYE);
+							}
+						return object;
+					}
+
+				private static ByteBuffer serialise(Object object) throws IOException
+					{
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						ObjectOutputStream oos = new ObjectOutputStream(bytes);
+						oos.writeObject(object);
+						oos.flush();
+						return ByteBuffer.wrap(bytes.toByteArray());
+					}
+
+				private static Object deserialise(ByteBuffer buffer) throws IOException, ClassNotFoundException
+					{
+						if (!buffer.hasRemaining())
+							return null;
+
+						ByteArrayInputStream bytes = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+						try
+							{
+								Object object = new ObjectInputStream(bytes).readObject();
+								buffer.position(buffer.limit() - bytes.available());
+								return object;
+							}
+						catch (EOFException e)
+							{
+								// Only part of the object has arrived so far
+								return null;
+							}
+					}
+			}
+
+		/**
+		 * Length prefixed frames, see {@link Protocol}.
+		 */
+		private static final class Framed<DataType> extends Protocol
+			{
+				private final Codec<DataType> codec;
+				private final int compressAbove;
+
+				private Framed(Codec<DataType> codec, int compressAbove)
+					{
+						this.codec = codec;
+						this.compressAbove = compressAbove;
+					}
+
+				@Override
+				final boolean compresses()
+					{
+						return compressAbove >= 0;
+					}
+
+				@Override
+				final ByteBuffer encodeToClient(TPacket packet) throws IOException
+					{
+						if (packet.object instanceof TControl)
+							{
+								TControl control = (TControl) packet.object;
+								// A snapshot of the state may be large, and compresses as well as any object
+								return control.opcode == OP_STATE ? compress(encodeControl(control)) : encodeControl(control);
+							}
+						if (packet.object instanceof TBatch)
+							return compress(TBatch.encode(codec, packet));
+
+						return compress(packet.encode(codec));
+					}
+
+				@Override
+				final TPacket decodeFromServer(ByteBuffer buffer) throws IOException
+					{
+						ByteBuffer body = nextFrame(buffer);
+						if (body == null)
+							return null;
+
+						byte opcode = body.get(), flags = body.get();
+						if ((flags & FLAG_COMPRESSED) != 0)
+							body = Compression.decompress(body);
+						if (opcode == OP_BATCH)
+							return TBatch.decode(codec, flags, body);
+						if (opcode != OP_DATA)
+							return new TPacket(0L, decodeControl(opcode, body), true);
+
+						return TPacket.decode(codec, flags, body);
+					}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				final ByteBuffer encodeToServer(Object object) throws IOException
+					{
+						if (object instanceof TControl)
+							return encodeControl((TControl) object);
+
+						ByteBuffer frame = ByteBuffer.allocate(256);
+						frame.position(4);
+						if (object instanceof TPacket)
+							{
+								TPacket request = (TPacket) object;
+								frame.put(OP_DATA).put(FLAG_CORRELATED).putLong(request.correlationID);
+								object = request.object;
+							}
+						else
+							frame.put(OP_DATA).put((byte) 0);
+						frame = codec.encode((DataType) object, frame);
+						frame.flip();
+						frame.putInt(0, frame.limit() - 4);
+						return compress(frame);
+					}
+
+				@Override
+				final Object decodeFromClient(ByteBuffer buffer) throws IOException
+					{
+						ByteBuffer body = nextFrame(buffer);
+						if (body == null)
+							return null;
+
+						byte opcode = body.get(), flags = body.get();
+						if ((flags & FLAG_COMPRESSED) != 0)
+							body = Compression.decompress(body);
+						if (opcode != OP_DATA)
+							return decodeControl(opcode, body);
+
+						if ((flags & FLAG_CORRELATED) != 0)
+							{
+								if (body.remaining() < 8)
+									throw new StreamCorruptedException("Truncated request");
+								long correlationID = body.getLong();
+								return new TPacket(0L, codec.decode(body), false, correlationID);
+							}
+						return codec.decode(body);
+					}
+
+				private final ByteBuffer compress(ByteBuffer frame)
+					{
+						return compressAbove < 0 ? frame : Compression.compress(frame, compressAbove);
+					}
+
+				/**
+				 * @return - A view of the next whole frame in the buffer, starting at its opcode, or <code>null</code> if the whole frame has
+				 *         not yet arrived.
+				 */
+				private static ByteBuffer nextFrame(ByteBuffer buffer) throws IOException
+					{
+						if (buffer.remaining() < 4)
+							return null;
+
+						int length = buffer.getInt(buffer.position());
+						if (length < 2 || length > MAX_FRAME_LENGTH)
+							throw new StreamCorruptedException("Invalid frame length " + length);
+						if (buffer.remaining() < 4 + length)
+							return null;
+
+						ByteBuffer body = buffer.duplicate();
+						body.position(buffer.position() + 4).limit(buffer.position() + 4 + length);
+						buffer.position(body.limit());
+						return body;
+					}
+			}
+	}
\ No newline at end of file
@@ -0,0 +1,298 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Services the {@link TServer.Connection}s of a {@link TServer} using a small fixed pool of event loops, each of which multiplexes many
+ * non-blocking {@link SocketChannel}s with a single {@link Selector}. Used when a server is started with
+ * {@link TSettings.Engine#SELECTOR}.
+ *
+ * @author Sebastian Troy
+ */
+final class SelectorEngine
+	{
+		private final TServer<?> server;
+		private final EventLoop[] loops;
+		private final AtomicInteger nextLoop = new AtomicInteger();
+		private final long batchNanos, batchBytes;
+
+		/**
+		 * The most buffers handed to a single gathering write.
+		 */
+		private static final int GATHER = 64;
+
+		SelectorEngine(TServer<?> server, TSettings settings) throws IOException
+			{
+				this.server = server;
+				batchNanos = settings.batchMillis < 0 ? -1L : TimeUnit.MILLISECONDS.toNanos(settings.batchMillis);
+				batchBytes = settings.batchBytes;
+				int eventLoops = settings.eventLoops;
+				loops = new EventLoop[eventLoops];
+				for (int i = 0; i < eventLoops; i++)
+					loops[i] = new EventLoop(Selector.open());
+				for (int i = 0; i < eventLoops; i++)
+					{
+						loops[i].thread = new Thread(loops[i], "TServer-EventLoop-" + i);
+						loops[i].thread.start();
+					}
+			}
+
+		/**
+		 * Hands a newly accepted connection to one of the event loops, which will begin reading from it.
+		 */
+		final void register(TServer<?>.Connection connection) throws IOException
+			{
+				connection.channel.configureBlocking(false);
+				EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+				connection.loop = loop;
+				loop.newConnections.add(connection);
+				loop.selector.wakeup();
+			}
+
+		/**
+		 * Called when a connection has bytes waiting to be written, so that its event loop writes them once the socket is ready.
+		 */
+		final void requestWrite(TServer<?>.Connection connection)
+			{
+				SelectionKey key = connection.key;
+				try
+					{
+						if (key != null)
+							{
+								key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+								key.selector().wakeup();
+							}
+					}
+				catch (CancelledKeyException e)
+					{
+						// The connection has been closed, there is no-one left to write to
+					}
+			}
+
+		/**
+		 * Called when a connection's outbound queue goes from idle to having something to write. Unless batching, the write is requested
+		 * straight away, otherwise the connection joins its event loop's current batch.
+		 */
+		final void scheduleWrite(TServer<?>.Connection connection)
+			{
+				EventLoop loop = connection.loop;
+				if (batchNanos < 0L || loop == null)
+					requestWrite(connection);
+				else
+					loop.batch(connection);
+			}
+
+		/**
+		 * Called when a packet joins others already waiting for a connection. If batching and enough bytes are now waiting, they are
+		 * written without waiting for the batch to end.
+		 */
+		final void queued(TServer<?>.Connection connection)
+			{
+				if (batchNanos >= 0L && connection.outbound.bytes() >= batchBytes)
+					requestWrite(connection);
+			}
+
+		/**
+		 * @return - <code>true</code> if the thread is one of this engine's event loops.
+		 */
+		final boolean isEventLoop(Thread thread)
+			{
+				for (EventLoop loop : loops)
+					if (loop.thread == thread)
+						return true;
+				return false;
+			}
+
+		/**
+		 * Stops every event loop and closes its selector. The connections themselves are closed by the {@link TServer}.
+		 */
+		final void close()
+			{
+				for (EventLoop loop : loops)
+					{
+						loop.running = false;
+						loop.selector.wakeup();
+					}
+			}
+
+		/**
+		 * A single thread which services every connection registered with its {@link Selector}.
+		 */
+		final class EventLoop implements Runnable
+			{
+				private final Selector selector;
+				private final ConcurrentLinkedQueue<TServer<?>.Connection> newConnections = new ConcurrentLinkedQueue<TServer<?>.Connection>();
+				private volatile boolean running = true;
+				private Thread thread;
+
+				// Connections waiting for the current batch to end before they are written to
+				private final ConcurrentLinkedQueue<TServer<?>.Connection> batched = new ConcurrentLinkedQueue<TServer<?>.Connection>();
+				private final AtomicBoolean batchOpen = new AtomicBoolean();
+				private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+
+				private EventLoop(Selector selector)
+					{
+						this.selector = selector;
+					}
+
+				/**
+				 * Adds the connection to the current batch, starting a new one if there isn't one.
+				 */
+				private final void batch(TServer<?>.Connection connection)
+					{
+						batched.add(connection);
+						// Only the first connection of a batch needs to wake the loop, so that it knows when the batch ends
+						if (batchOpen.compareAndSet(false, true) && Thread.currentThread() != thread)
+							selector.wakeup();
+					}
+
+				@Override
+				public final void run()
+					{
+						long batchDeadline = 0L;
+						try
+							{
+								while (running)
+									{
+										// Sleep until something happens, or the current batch ends
+										long wait = batchDeadline == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(batchDeadline - System.nanoTime() + 999999L);
+										if (batchDeadline == 0L)
+											selector.select();
+										else if (wait > 0L)
+											selector.select(wait);
+										else
+											selector.selectNow();
+
+										TServer<?>.Connection connection;
+										while ((connection = newConnections.poll()) != null)
+											registerWithSelector(connection);
+
+										Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+										while (keys.hasNext())
+											{
+												SelectionKey key = keys.next();
+												keys.remove();
+												serviceKey(key);
+											}
+
+										if (batchOpen.get())
+											{
+												long now = System.nanoTime();
+												if (batchDeadline == 0L)
+													batchDeadline = now + batchNanos;
+												if (now - batchDeadline >= 0L)
+													{
+														flushBatch();
+														batchDeadline = 0L;
+													}
+											}
+									}
+							}
+						catch (IOException | ClosedSelectorException e)
+							{
+								if (server.isRunning())
+									e.printStackTrace();
+							}
+						finally
+							{
+								try
+									{
+										selector.close();
+									}
+								catch (IOException e)
+									{
+										e.printStackTrace();
+									}
+							}
+					}
+
+				private final void registerWithSelector(TServer<?>.Connection connection)
+					{
+						try
+							{
+								connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+								// Anything sent before we were registered may still be waiting to go out
+								if (connection.outbound.size() > 0 || connection.outbound.isFinished())
+									requestWrite(connection);
+							}
+						catch (IOException e)
+							{
+								connection.disconnected();
+							}
+					}
+
+				/**
+				 * Writes to every connection in the current batch.
+				 */
+				private final void flushBatch()
+					{
+						// Closed first, so that a connection added while we are writing starts a new batch rather than being missed
+						batchOpen.set(false);
+						TServer<?>.Connection connection;
+						while ((connection = batched.poll()) != null)
+							try
+								{
+									if (connection.key != null)
+										connection.flushQueue(gather);
+								}
+							catch (IOException | CancelledKeyException e)
+								{
+									connection.disconnected();
+								}
+							catch (RuntimeException e)
+								{
+									// Only this client is lost, the loop carries on serving the others
+									e.printStackTrace();
+									connection.disconnected();
+								}
+					}
+
+				private final void serviceKey(SelectionKey key)
+					{
+						TServer<?>.Connection connection = (TServer<?>.Connection) key.attachment();
+						try
+							{
+								if (key.isValid() && key.isWritable())
+									connection.flushQueue(gather);
+								if (key.isValid() && key.isReadable())
+									read(connection);
+							}
+						catch (IOException | ClassNotFoundException | CancelledKeyException e)
+							{
+								// The client has vanished or sent us something we cannot understand
+								connection.disconnected();
+							}
+						catch (RuntimeException e)
+							{
+								// e.g. a bug in processObject, only this client is lost rather than every client on the loop
+								e.printStackTrace();
+								connection.disconnected();
+							}
+					}
+
+				private final void read(TServer<?>.Connection connection) throws IOException, ClassNotFoundException
+					{
+						connection.inbound = Protocol.ensureSpace(connection.inbound);
+						int read = connection.channel.read(connection.inbound);
+						if (read < 0)
+							{
+								connection.disconnected();
+								return;
+							}
+						server.getMetrics().read(connection.counters, read);
+
+						connection.consume();
+					}
+			}
+	}
\ No newline at end of file
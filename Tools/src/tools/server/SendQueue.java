@@ -0,0 +1,125 @@
+package tools.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The objects a {@link TClient} has been asked to send but has not yet written. Any thread may add to the queue, but only the client's
+ * writer removes from it, encoding each object and completing its future once the bytes have been written.
+ * <p>
+ * The queue is a fixed ring of slots, so adding to it never allocates.
+ *
+ * @author Sebastian Troy
+ */
+final class SendQueue
+	{
+		/**
+		 * Returned by {@link #offer(Object, CompletableFuture, boolean)}.
+		 */
+		static final int QUEUED = 0, FULL = 1, CLOSED = 2;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+		private final Object[] objects;
+		private final CompletableFuture<Void>[] futures;
+		private int head = 0, size = 0;
+		private boolean closed = false;
+
+		/**
+		 * @param capacity
+		 *            - The most objects which may be waiting at any one time.
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		SendQueue(int capacity)
+			{
+				objects = new Object[capacity];
+				futures = new CompletableFuture[capacity];
+			}
+
+		/**
+		 * @param object
+		 *            - The object to send.
+		 * @param future
+		 *            - Completed by the writer once the object has been written, or <code>null</code> if nobody is waiting on it.
+		 * @param mayBlock
+		 *            - <code>true</code> to wait for room if the queue is full.
+		 * @return - {@link #QUEUED}, {@link #FULL} if there was no room or {@link #CLOSED} if nothing more will be written.
+		 */
+		final int offer(Object object, CompletableFuture<Void> future, boolean mayBlock) throws InterruptedException
+			{
+				lock.lock();
+				try
+					{
+						while (size == objects.length && mayBlock && !closed)
+							notFull.await();
+						if (closed)
+							return CLOSED;
+						if (size == objects.length)
+							return FULL;
+
+						int tail = (head + size) % objects.length;
+						objects[tail] = object;
+						futures[tail] = future;
+						size++;
+						notEmpty.signal();
+						return QUEUED;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * Waits until at least one object is waiting, then moves as many as fit into the given arrays.
+		 *
+		 * @return - The number of objects moved, or -1 once the queue has been closed and everything in it taken.
+		 */
+		final int drainTo(Object[] objects, CompletableFuture<Void>[] futures) throws InterruptedException
+			{
+				lock.lock();
+				try
+					{
+						while (size == 0 && !closed)
+							notEmpty.await();
+						if (size == 0)
+							return -1;
+
+						int n = Math.min(size, objects.length);
+						for (int i = 0; i < n; i++)
+							{
+								objects[i] = this.objects[head];
+								futures[i] = this.futures[head];
+								this.objects[head] = null;
+								this.futures[head] = null;
+								head = (head + 1) % this.objects.length;
+							}
+						size -= n;
+						notFull.signalAll();
+						return n;
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+
+		/**
+		 * Stops the queue accepting objects. Whatever is already waiting can still be taken by {@link #drainTo(Object[], CompletableFuture[])}.
+		 */
+		final void close()
+			{
+				lock.lock();
+				try
+					{
+						closed = true;
+						notEmpty.signalAll();
+						notFull.signalAll();
+					}
+				finally
+					{
+						lock.unlock();
+					}
+			}
+	}
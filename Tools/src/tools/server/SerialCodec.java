@@ -0,0 +1,90 @@
+package tools.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes objects using Java serialisation, so works with any {@link java.io.Serializable} class. This is the codec used when none is
+ * given, but as every message carries a description of each class it contains a codec written for the DataType will be smaller and
+ * faster.
+ * 
+ * @author Sebastian Troy
+ *
+ * @param <DataType>
+ *            - The class of object the codec can encode.
+ */
+public class SerialCodec<DataType> implements Codec<DataType>
+	{
+		@Override
+		public ByteBuffer encode(DataType object, ByteBuffer buffer) throws IOException
+			{
+				BufferOutputStream out = new BufferOutputStream(buffer);
+				ObjectOutputStream oos = new ObjectOutputStream(out)
+					{
+						@Override
+						protected void writeStreamHeader()
+							{
+								// Each object is framed on its own, so the stream header would only waste bytes
+							}
+					};
+				oos.writeObject(object);
+				oos.flush();
+				return out.buffer;
+			}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public DataType decode(ByteBuffer buffer) throws IOException
+			{
+				ByteArrayInputStream bytes = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				try
+					{
+						DataType object = (DataType) new ObjectInputStream(bytes)
+							{
+								@Override
+								protected void readStreamHeader()
+									{
+										// Objects are written without a stream header
+									}
+							}.readObject();
+						buffer.position(buffer.limit());
+						return object;
+					}
+				catch (ClassNotFoundException e)
+					{
+						StreamCorruptedException corrupt = new StreamCorruptedException("Unexpected object");
+						corrupt.initCause(e);
+						throw corrupt;
+					}
+			}
+
+		/**
+		 * Writes into a {@link ByteBuffer}, growing it as needed.
+		 */
+		private static final class BufferOutputStream extends OutputStream
+			{
+				private ByteBuffer buffer;
+
+				private BufferOutputStream(ByteBuffer buffer)
+					{
+						this.buffer = buffer;
+					}
+
+				@Override
+				public final void write(int b)
+					{
+						buffer = Codec.ensureRemaining(buffer, 1).put((byte) b);
+					}
+
+				@Override
+				public final void write(byte[] bytes, int offset, int length)
+					{
+						buffer = Codec.ensureRemaining(buffer, length).put(bytes, offset, length);
+					}
+			}
+	}
@@ -0,0 +1,135 @@
+package tools.server;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary deltas used to keep each {@link TClient}'s copy of a {@link TServer}'s state up to date, see
+ * {@link TServer#publishState(Object)}. A delta describes the encoded bytes of one version of the state in terms of an earlier version:
+ * <ul>
+ * <li>The length of the new version.</li>
+ * <li>Then, until the new version is complete, a number of bytes which are the same as those at the same position in the earlier version,
+ * a number of bytes which are not, and those bytes.</li>
+ * </ul>
+ * Every number is a variable length integer, 7 bits to a byte. A full snapshot is simply a delta from no bytes at all. As most of a world
+ * stays the same from one tick to the next, and what does change tends to stay in place, a delta is usually a small fraction of the state.
+ *
+ * @author Sebastian Troy
+ */
+final class StateDelta
+	{
+		/**
+		 * Sent in a HELLO by a client which is able to apply deltas.
+		 */
+		static final byte CAP_STATE = 4;
+
+		static final byte[] EMPTY = new byte[0];
+
+		/**
+		 * The fewest matching bytes worth ending a run of changed bytes for, any fewer cost more to describe than to send again.
+		 */
+		private static final int MIN_MATCH = 4;
+
+		private StateDelta()
+			{}
+
+		/**
+		 * @param base
+		 *            - The version the client already holds, or {@link #EMPTY} for a full snapshot.
+		 * @param target
+		 *            - The version to send.
+		 * @return - The delta, in read mode.
+		 */
+		static ByteBuffer encode(byte[] base, byte[] target)
+			{
+				ByteBuffer delta = ByteBuffer.allocate(Math.min(target.length, 256) + 16);
+				delta = putNumber(delta, target.length);
+
+				int common = Math.min(base.length, target.length), i = 0;
+				while (i < target.length)
+					{
+						int copyStart = i;
+						while (i < common && base[i] == target[i])
+							i++;
+
+						// Changed bytes run on over short matches, until a match long enough to be worth copying or the end
+						int literalStart = i;
+						while (i < target.length)
+							{
+								int match = 0;
+								while (i + match < common && base[i + match] == target[i + match])
+									match++;
+								if (match >= MIN_MATCH || i + match == target.length)
+									break;
+								i += match + 1;
+							}
+
+						delta = putNumber(delta, literalStart - copyStart);
+						delta = putNumber(delta, i - literalStart);
+						delta = Codec.ensureRemaining(delta, i - literalStart);
+						delta.put(target, literalStart, i - literalStart);
+					}
+				delta.flip();
+				return delta;
+			}
+
+		/**
+		 * @param base
+		 *            - The version the delta was made from.
+		 * @param delta
+		 *            - A delta made by {@link #encode(byte[], byte[])}.
+		 * @return - The version the delta describes.
+		 */
+		static byte[] apply(byte[] base, ByteBuffer delta) throws StreamCorruptedException
+			{
+				byte[] target = new byte[getNumber(delta)];
+				int i = 0;
+				while (i < target.length)
+					{
+						int copy = getNumber(delta), literal;
+						if (copy > target.length - i || copy > base.length - i)
+							throw new StreamCorruptedException("State delta copies beyond the end of its base");
+						System.arraycopy(base, i, target, i, copy);
+						i += copy;
+
+						if ((literal = getNumber(delta)) > target.length - i || literal > delta.remaining())
+							throw new StreamCorruptedException("Truncated state delta");
+						if (copy + literal == 0)
+							throw new StreamCorruptedException("State delta makes no progress");
+						delta.get(target, i, literal);
+						i += literal;
+					}
+				return target;
+			}
+
+		private static ByteBuffer putNumber(ByteBuffer buffer, int number)
+			{
+				buffer = Codec.ensureRemaining(buffer, 5);
+				while ((number & ~0x7F) != 0)
+					{
+						buffer.put((byte) ((number & 0x7F) | 0x80));
+						number >>>= 7;
+					}
+				buffer.put((byte) number);
+				return buffer;
+			}
+
+		private static int getNumber(ByteBuffer buffer) throws StreamCorruptedException
+			{
+				int number = 0;
+				for (int shift = 0; shift < 32; shift += 7)
+					{
+						if (!buffer.hasRemaining())
+							throw new StreamCorruptedException("Truncated state delta");
+						byte b = buffer.get();
+						number |= (b & 0x7F) << shift;
+						if (b >= 0)
+							{
+								if (number < 0)
+									throw new StreamCorruptedException("Invalid length in state delta");
+								return number;
+							}
+					}
+				throw new StreamCorruptedException("Invalid length in state delta");
+			}
+	}
@@ -0,0 +1,27 @@
+package tools.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes Strings as their UTF-8 bytes.
+ * 
+ * @author Sebastian Troy
+ */
+public class StringCodec implements Codec<String>
+	{
+		@Override
+		public ByteBuffer encode(String object, ByteBuffer buffer)
+			{
+				byte[] bytes = object.getBytes(StandardCharsets.UTF_8);
+				return Codec.ensureRemaining(buffer, bytes.length).put(bytes);
+			}
+
+		@Override
+		public String decode(ByteBuffer buffer)
+			{
+				String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+				buffer.position(buffer.limit());
+				return string;
+			}
+	}
@@ -0,0 +1,100 @@
+package tools.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many objects from the same sender carried by a single {@link TPacket}, see {@link TServer#sendBatchToClient(long, List, long)}. A batch
+ * is encoded, queued, compressed and written as one, which is far cheaper than doing each of those for every object when there are
+ * thousands of them, such as the history a client is sent as it joins.
+ * <p>
+ * The framed protocol carries a batch in a {@link Protocol#OP_BATCH} frame: the uniqueID of the sender, the number of objects, then each
+ * object as its length followed by what the codec wrote. Clients which did not say in their HELLO that they understand batches are sent
+ * each object on its own, and the legacy protocol sends each as the packet it would have been.
+ *
+ * @author Sebastian Troy
+ */
+final class TBatch
+	{
+		/**
+		 * Sent in a HELLO by a client which understands batches.
+		 */
+		static final byte CAP_BATCH = 8;
+
+		final List<?> objects;
+
+		TBatch(List<?> objects)
+			{
+				this.objects = objects;
+			}
+
+		/**
+		 * @return - The packets the batch stands for, one for each object.
+		 */
+		final List<TPacket> unbatch(TPacket packet)
+			{
+				ArrayList<TPacket> packets = new ArrayList<TPacket>(objects.size());
+				for (Object object : objects)
+					packets.add(new TPacket(packet.uniqueID, object, packet.personal));
+				return packets;
+			}
+
+		/**
+		 * @param packet
+		 *            - A packet carrying a batch.
+		 * @return - A buffer in read mode holding the whole frame.
+		 */
+		@SuppressWarnings("unchecked")
+		static <DataType> ByteBuffer encode(Codec<DataType> codec, TPacket packet) throws IOException
+			{
+				List<?> objects = ((TBatch) packet.object).objects;
+				ByteBuffer frame = ByteBuffer.allocate(1024);
+				frame.position(4);
+				frame.put(Protocol.OP_BATCH).put(packet.personal ? Protocol.FLAG_PERSONAL : 0);
+				frame.putLong(packet.uniqueID).putInt(objects.size());
+				for (Object object : objects)
+					{
+						// Room for the length, which is only known once the codec has written the object
+						frame = Codec.ensureRemaining(frame, 4);
+						int start = frame.position();
+						frame.position(start + 4);
+						frame = codec.encode((DataType) object, frame);
+						frame.putInt(start, frame.position() - start - 4);
+					}
+				frame.flip();
+				frame.putInt(0, frame.limit() - 4);
+				return frame;
+			}
+
+		/**
+		 * Reads a batch written by {@link #encode(Codec, TPacket)}.
+		 *
+		 * @param body
+		 *            - The body of the frame, which follows its header.
+		 */
+		static <DataType> TPacket decode(Codec<DataType> codec, byte flags, ByteBuffer body) throws IOException
+			{
+				if (body.remaining() < 12)
+					throw new StreamCorruptedException("Truncated batch");
+				long uniqueID = body.getLong();
+				int count = body.getInt();
+				if (count < 0 || count > body.remaining() / 4)
+					throw new StreamCorruptedException("Invalid batch of " + count + " objects");
+
+				ArrayList<DataType> objects = new ArrayList<DataType>(count);
+				for (int i = 0; i < count; i++)
+					{
+						int length = body.remaining() >= 4 ? body.getInt() : -1;
+						if (length < 0 || length > body.remaining())
+							throw new StreamCorruptedException("Truncated batch");
+						ByteBuffer object = body.slice();
+						object.limit(length);
+						objects.add(codec.decode(object));
+						body.position(body.position() + length);
+					}
+				return new TPacket(uniqueID, new TBatch(objects), (flags & Protocol.FLAG_PERSONAL) != 0);
+			}
+	}
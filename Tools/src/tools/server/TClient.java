@@ -1,204 +1,902 @@
-package tools.server;
-
-import java.io.EOFException;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.UncheckedIOException;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-
-import tools.WindowTools;
-
-/**
- * A simple client which will connect to a {@link TServer} and listen for objects from the server, until the server closes.
- * 
- * @author Sebastian Troy
- *
- * @param <DataType>
- *            - The class of object which the client will expect from the {@link TServer}.
- */
-public abstract class TClient<DataType> implements Runnable
-	{
-		private Socket socket;
-		private boolean isConnected = true;
-		private long uniqueID = -1L;
-
-		/**
-		 * 
-		 * @param hostAddress
-		 *            - The ip address of the host you wish to connect to.
-		 * @param port
-		 *            - The port at which the {@link TServer} is listening.
-		 */
-		public TClient(String hostAddress, int port)
-			{
-				try
-					{
-						// Connect t server
-						socket = new Socket(hostAddress, port);
-						// Check that the server actually
-						ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-						oos.writeObject(new TString("Testing"));
-						oos.flush();
-					}
-				catch (ConnectException e)
-					{
-						WindowTools
-								.informationWindow(
-										"Server refused connection:\n\nMake sure that the server is running &\nif connecting to an external IP address,\nthat they have port forwading set up.\n\nHelp:\nhttp://troydev.proggle.net/projects-hex-nations.php",
-										"Warning");
-						isConnected = false;
-					}
-				catch (UnknownHostException e)
-					{
-						/* Do nothing, incorrect host name entered */
-						isConnected = false;
-						WindowTools.debugWindow("Invalid host name.");
-					}
-				catch (Exception e)
-					{
-						isConnected = false;
-						WindowTools.debugWindow("Could not connect to server.");
-						e.printStackTrace();
-					}
-
-				if (isConnected)
-					new Thread(this).start();
-			}
-
-		/**
-		 * While connected to the server, wait for messages, then add them to a queue so that they can be requested by another class.
-		 */
-		@SuppressWarnings("unchecked")
-		@Override
-		public final void run()
-			{
-				try
-					{
-						while (true)
-							{
-								ObjectInputStream stream_reader = new ObjectInputStream(socket.getInputStream());
-
-								TPacket packet = (TPacket) stream_reader.readObject();
-								Object object = packet.object;
-
-								// If the object is a secret message from the server
-								if (packet.personal && object instanceof TString)
-									{
-										TString objectString = (TString) object;
-										// These pings are the servers way of knowing we are still here
-										if (objectString.string.equals("Server: Are_You_There?"))
-											// Confirms presence of client
-											sendObject(new TString("Client_Still_Here_0123456789"));
-										// This is the servers way of sending us our uniqueID when we join
-										if (objectString.string.startsWith("ID:"))
-											// Extract the unique ID number from the string
-											uniqueID = Long.parseLong(objectString.string.substring(3));
-										else if (objectString.string.startsWith("Kicked: "))
-											{
-												// Extract the unique ID number from the string
-												kickedFromServer(objectString.string.substring(7));
-												disconnect();
-											}
-										continue;
-									}
-
-								processObject(packet.uniqueID, (DataType) object, packet.personal);
-							}
-					}
-				catch (EOFException | SocketException e)
-					{
-						// If the client has disconnected while we are waiting for an object
-						if (e.toString().equals("java.net.SocketException: Connection reset"))
-							serverDisconnected();
-					}
-				catch (IOException | UncheckedIOException | ClassNotFoundException e)
-					{
-						e.printStackTrace();
-					}
-			}
-
-		/**
-		 * Sends an object to a {@link TServer}. Each {@link TClient} linked to the server will receive a copy of this object, including
-		 * this client.
-		 * 
-		 * @param object
-		 *            - The object to send to the server
-		 */
-		protected final void sendObject(Object object)
-			{
-				// Ignore null objects
-				if (object == null)
-					return;
-				try
-					{
-						ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-						oos.writeObject(object);
-						oos.flush();
-					}
-				catch (IOException e)
-					{
-						e.printStackTrace();
-					}
-			}
-
-		/**
-		 * Called if there is an issue contacting the server which suggests that it has disconnected
-		 */
-		protected abstract void serverDisconnected();
-
-		/**
-		 * 
-		 * @param reason
-		 *            - A string from the server explaining why it forcibly disconnected this client
-		 */
-		protected abstract void kickedFromServer(String reason);
-
-		/**
-		 * Each time an object is returned from the server, this method is called.
-		 * 
-		 * @param object
-		 *            - The object sent to the client from the server
-		 */
-		protected abstract void processObject(long senderID, DataType object, boolean personal);
-
-		/**
-		 * @return - true if there is a valid connection to a {@link TServer} socket.
-		 */
-		public final boolean isConnected()
-			{
-				return (isConnected && socket.isConnected());
-			}
-
-		public final void disconnect()
-			{
-				sendObject(new TString("Client_Disconnected_0123456789"));
-			}
-
-		/**
-		 * @return - The uniqueID assigned to this client by the server (or -1L if not yet recieved).
-		 */
-		public final long getUniqueID()
-			{
-				return uniqueID;
-			}
-
-		/**
-		 * @return - Returns the ip address of the {@link TClient} socket as a String.
-		 */
-		public final String getClientAddress()
-			{
-				return socket.getLocalAddress().getHostAddress();
-			}
-
-		/**
-		 * @return - Returns the ip address of the {@link TServer} socket as a String.
-		 */
-		public final String getServerAddress()
-			{
-				return socket.getInetAddress().getHostAddress();
-			}
+package tools.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tools.WindowTools;
+
+/**
+ * A simple client which will connect to a {@link TServer} and listen for objects from the server, until the server closes.
+ * 
+ * @author Sebastian Troy
+ *
+ * @param <DataType>
+ *            - The class of object which the client will expect from the {@link TServer}.
+ */
+public abstract class TClient<DataType> implements Runnable
+	{
+		/**
+		 * How long, in milliseconds, {@link #request(Object)} waits for a reply.
+		 */
+		public static final long REQUEST_TIMEOUT_MILLIS = 10000L;
+
+		// How often a BIND is sent, and how many are sent, before we give up on the server ever receiving our datagrams
+		private static final long BIND_INTERVAL_MILLIS = 250L;
+		private static final int BIND_ATTEMPTS = 20;
+
+		private Socket socket;
+		private OutputStream out;
+		// Everything sent goes through this queue to a single writer, so that the threads sending never wait for the socket
+		private final SendQueue queue;
+		private volatile Protocol protocol;
+		private final Protocol compressing;
+		private final TMetrics metrics = new TMetrics(null);
+		private boolean isConnected = true;
+		private volatile long uniqueID = -1L;
+
+		// Requests waiting for their replies, keyed by correlation ID
+		private final ConcurrentLongMap<CompletableFuture<DataType>> requests = new ConcurrentLongMap<CompletableFuture<DataType>>();
+		private final AtomicLong correlationIDs = new AtomicLong();
+
+		// Streams being received from the server, keyed by the IDs we gave them
+		private final ConcurrentLongMap<Transfer> transfers = new ConcurrentLongMap<Transfer>();
+		private final AtomicLong streamIDs = new AtomicLong();
+
+		private final Codec<DataType> codec;
+		// Only open if both we and the server use datagrams, and only usable once the server has confirmed our BIND
+		private DatagramChannel datagrams;
+		private volatile long datagramToken = 0L;
+		private volatile boolean datagramBound = false;
+		private final AtomicLong datagramSequence = new AtomicLong();
+
+		// The versions of the server's state we may be sent deltas from, keyed by version and only touched by the reader
+		private final TreeMap<Long, byte[]> states = new TreeMap<Long, byte[]>();
+		private volatile DataType state;
+		private volatile long stateVersion = 0L;
+
+		/**
+		 * 
+		 * @param hostAddress
+		 *            - The ip address of the host you wish to connect to.
+		 * @param port
+		 *            - The port at which the {@link TServer} is listening.
+		 */
+		public TClient(String hostAddress, int port)
+			{
+				this(hostAddress, port, new TSettings());
+			}
+
+		/**
+		 * 
+		 * @param hostAddress
+		 *            - The ip address of the host you wish to connect to.
+		 * @param port
+		 *            - The port at which the {@link TServer} is listening.
+		 * @param settings
+		 *            - Decides how the client talks to the server, see {@link TSettings#setFramed(boolean)}.
+		 */
+		public TClient(String hostAddress, int port, TSettings settings)
+			{
+				this(hostAddress, port, new SerialCodec<DataType>(), settings);
+			}
+
+		/**
+		 * 
+		 * @param hostAddress
+		 *            - The ip address of the host you wish to connect to.
+		 * @param port
+		 *            - The port at which the {@link TServer} is listening.
+		 * @param codec
+		 *            - Encodes the objects sent to and decodes the objects received from the server. Only used by the framed protocol,
+		 *            the legacy protocol always uses Java serialisation.
+		 * @param settings
+		 *            - Decides how the client talks to the server, see {@link TSettings#setFramed(boolean)}.
+		 */
+		public TClient(String hostAddress, int port, Codec<DataType> codec, TSettings settings)
+			{
+				protocol = settings.framed ? Protocol.framed(codec) : Protocol.LEGACY;
+				compressing = settings.framed && settings.compressAbove >= 0 ? Protocol.framed(codec, settings.compressAbove) : null;
+				queue = new SendQueue(settings.outboundPackets);
+				this.codec = codec;
+				try
+					{
+						// Connect t server
+						socket = new Socket(hostAddress, port);
+						out = new BufferedOutputStream(socket.getOutputStream());
+						// Check that the server actually
+						if (protocol != Protocol.LEGACY)
+							{
+								byte capabilities = Compression.CAP_DEFLATE | StateDelta.CAP_STATE | TBatch.CAP_BATCH;
+								if (settings.datagrams)
+									{
+										// The server listens for datagrams on the same port as it accepts connections
+										datagrams = DatagramChannel.open();
+										datagrams.connect(new InetSocketAddress(socket.getInetAddress(), socket.getPort()));
+										capabilities |= Datagrams.CAP_DATAGRAMS;
+									}
+
+								new DataOutputStream(out).writeInt(Protocol.MAGIC);
+								// Let the server know we can inflate compressed frames, apply deltas and unpack batches, and whether we want datagrams
+								ByteBuffer hello = Protocol.encodeControl(new TControl(Protocol.OP_HELLO, capabilities));
+								out.write(hello.array(), hello.arrayOffset() + hello.position(), hello.remaining());
+								out.flush();
+							}
+						else
+							// Queued rather than waited for, the writer is only started once we are connected
+							enqueue(new TString("Testing"), null, false);
+					}
+				catch (ConnectException e)
+					{
+						WindowTools
+								.informationWindow(
+										"Server refused connection:\n\nMake sure that the server is running &\nif connecting to an external IP address,\nthat they have port forwading set up.\n\nHelp:\nhttp://troydev.proggle.net/projects-hex-nations.php",
+										"Warning");
+						isConnected = false;
+					}
+				catch (UnknownHostException e)
+					{
+						/* Do nothing, incorrect host name entered */
+						isConnected = false;
+						WindowTools.debugWindow("Invalid host name.");
+					}
+				catch (Exception e)
+					{
+						isConnected = false;
+						WindowTools.debugWindow("Could not connect to server.");
+						e.printStackTrace();
+					}
+
+				if (isConnected)
+					{
+						settings.newThread(this).start();
+						settings.newThread(this::writeQueued).start();
+						if (datagrams != null)
+							settings.newThread(this::receiveDatagrams).start();
+					}
+				else
+					{
+						queue.close();
+						closeDatagrams();
+					}
+			}
+
+		/**
+		 * While connected to the server, wait for messages, then add them to a queue so that they can be requested by another class.
+		 */
+		@Override
+		public final void run()
+			{
+				try
+					{
+						InputStream in = socket.getInputStream();
+						ByteBuffer inbound = ByteBuffer.allocate(8192);
+
+						while (true)
+							{
+								// Read whatever the server has sent so far, then act on any packets it completes
+								inbound = Protocol.ensureSpace(inbound);
+								int read = in.read(inbound.array(), inbound.arrayOffset() + inbound.position(), inbound.remaining());
+								if (read < 0)
+									throw new EOFException();
+								inbound.position(inbound.position() + read);
+								metrics.read(null, read);
+
+								inbound.flip();
+								TPacket packet;
+								long start = System.nanoTime();
+								while ((packet = protocol.decodeFromServer(inbound)) != null)
+									{
+										metrics.decoded(null, System.nanoTime() - start);
+										received(packet);
+										start = System.nanoTime();
+									}
+								inbound.compact();
+							}
+					}
+				catch (EOFException | SocketException e)
+					{
+						// If the client has disconnected while we are waiting for an object
+						if (e.toString().equals("java.net.SocketException: Connection reset"))
+							serverDisconnected();
+					}
+				catch (IOException | UncheckedIOException | ClassNotFoundException e)
+					{
+						e.printStackTrace();
+					}
+				finally
+					{
+						// Nothing more can be sent, fail anything still waiting rather than leaving it queued
+						queue.close();
+						IOException disconnected = new IOException("Disconnected from the server");
+						List<CompletableFuture<DataType>> waiting = requests.values();
+						for (CompletableFuture<DataType> request : waiting)
+							request.completeExceptionally(disconnected);
+						// What has arrived of each stream stays in its file, so the transfer can be resumed
+						for (Transfer transfer : transfers.values())
+							transfer.fail(disconnected);
+						closeDatagrams();
+					}
+			}
+
+		/**
+		 * Receives the datagrams the server sends until the client disconnects, dropping any which arrive after a later one from the same
+		 * sender.
+		 */
+		private final void receiveDatagrams()
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(Datagrams.MAX_LENGTH);
+				// The latest sequence number seen from each sender, only ever touched by this thread
+				HashMap<Long, Long> latest = new HashMap<Long, Long>();
+				while (true)
+					try
+						{
+							buffer.clear();
+							datagrams.receive(buffer);
+							buffer.flip();
+							if (buffer.remaining() < Datagrams.TO_CLIENT_HEADER_LENGTH)
+								continue;
+							long sequence = buffer.getLong(), senderID = buffer.getLong();
+							metrics.datagramsIn.increment();
+
+							Long last = latest.get(senderID);
+							if (last != null && sequence <= last)
+								{
+									metrics.staleDatagrams.increment();
+									continue;
+								}
+							latest.put(senderID, sequence);
+
+							long start = System.nanoTime();
+							DataType object = codec.decode(buffer);
+							metrics.decodeNanos.record(System.nanoTime() - start);
+							start = System.nanoTime();
+							processUnreliable(senderID, object);
+							metrics.processNanos.record(System.nanoTime() - start);
+						}
+					catch (AsynchronousCloseException e)
+						{
+							// The client has disconnected
+							return;
+						}
+					catch (IOException | RuntimeException e)
+						{
+							// Usually the server refusing datagrams before it has confirmed our BIND
+							if (!datagrams.isOpen())
+								return;
+						}
+			}
+
+		/**
+		 * Sends BIND datagrams until the server confirms one over the connection, as any of them may be lost. The uniqueID is read each
+		 * time, as the server may give it to us after the token.
+		 */
+		private final void bindDatagrams(long token, int attempts)
+			{
+				if (datagramBound || !datagrams.isOpen() || attempts == 0)
+					return;
+				try
+					{
+						datagrams.write(Datagrams.encodeToServer(codec, uniqueID, token, datagramSequence.incrementAndGet(), Datagrams.BIND, null));
+						metrics.datagramsOut.increment();
+					}
+				catch (IOException e)
+					{
+						// Lost like any other datagram, the next attempt may get through
+					}
+				RequestTimer.WHEEL.schedule(() -> bindDatagrams(token, attempts - 1), BIND_INTERVAL_MILLIS);
+			}
+
+		private final void closeDatagrams()
+			{
+				if (datagrams != null)
+					try
+						{
+							datagrams.close();
+						}
+					catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * The writer, which encodes each object in the order it was queued and writes them to the server, flushing once it has written
+		 * everything waiting.
+		 */
+		private final void writeQueued()
+			{
+				Object[] objects = new Object[64];
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				CompletableFuture<Void>[] futures = new CompletableFuture[64];
+				IOException failure = null;
+				try
+					{
+						int n;
+						while ((n = queue.drainTo(objects, futures)) >= 0)
+							{
+								if (failure == null)
+									try
+										{
+											for (int i = 0; i < n; i++)
+												{
+													ByteBuffer bytes;
+													try
+														{
+															long start = System.nanoTime();
+															bytes = protocol.encodeToServer(objects[i]);
+															metrics.encodeNanos.record(System.nanoTime() - start);
+														}
+													catch (IOException e)
+														{
+															// Only this object could not be sent, e.g. it is not serialisable
+															e.printStackTrace();
+															if (futures[i] != null)
+																futures[i].completeExceptionally(e);
+															futures[i] = null;
+															continue;
+														}
+													out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+													metrics.wrote(null, 1L, bytes.remaining());
+												}
+											out.flush();
+										}
+									catch (IOException e)
+										{
+											e.printStackTrace();
+											failure = e;
+											queue.close();
+										}
+
+								for (int i = 0; i < n; i++)
+									{
+										if (futures[i] != null)
+											if (failure == null)
+												futures[i].complete(null);
+											else
+												futures[i].completeExceptionally(failure);
+										objects[i] = null;
+										futures[i] = null;
+									}
+							}
+					}
+				catch (InterruptedException e)
+					{
+						queue.close();
+					}
+			}
+
+		/**
+		 * Acts upon a single packet from the server, either a hidden message or an object for {@link #processObject(long, Object, boolean)}.
+		 */
+		@SuppressWarnings("unchecked")
+		private final void received(TPacket packet)
+			{
+				Object object = packet.object;
+
+				// If the object is a secret message from the server
+				if (object instanceof TControl)
+					{
+						TControl control = (TControl) object;
+						switch (control.opcode)
+							{
+								case Protocol.OP_HELLO:
+									// The server's answer to our HELLO, once we know it can inflate frames we may compress what we send
+									if (compressing != null && (control.value & Compression.CAP_DEFLATE) != 0)
+										protocol = compressing;
+									break;
+								case Protocol.OP_PING:
+									// These pings are the servers way of knowing we are still here, the reader has no need to wait for the answer to be written
+									enqueue(new TControl(Protocol.OP_PONG), null, false);
+									break;
+								case Protocol.OP_ID:
+									// This is the servers way of sending us our uniqueID when we join
+									uniqueID = control.value;
+									break;
+								case Protocol.OP_DATAGRAM:
+									// The server wants datagrams too, it knows where to send them once one of ours arrives
+									if (datagrams != null)
+										{
+											datagramToken = control.value;
+											bindDatagrams(control.value, BIND_ATTEMPTS);
+										}
+									break;
+								case Protocol.OP_DATAGRAM_BOUND:
+									datagramBound = true;
+									break;
+								case Protocol.OP_STATE:
+									receivedState(control);
+									break;
+								case Protocol.OP_KICK:
+									kickedFromServer(control.text);
+									disconnect();
+									break;
+								case Protocol.OP_STREAM:
+									Transfer started = transfers.get(control.value);
+									if (started != null)
+										started.started(control.size);
+									break;
+								case Protocol.OP_CHUNK:
+									// The rest of a stream which has been cancelled may still arrive, and is ignored
+									Transfer transfer = transfers.get(control.value);
+									if (transfer != null)
+										transfer.write(control.data);
+									break;
+								case Protocol.OP_STREAM_END:
+									Transfer finished = transfers.get(control.value);
+									if (finished != null)
+										{
+											transfers.remove(control.value, finished);
+											finished.finish(control.text);
+										}
+									break;
+							}
+						return;
+					}
+
+				// Any other hidden message is from a newer server than us, so is ignored
+				if (packet.personal && object instanceof TString)
+					return;
+
+				// A reply completes its request rather than being processed, unless the request has already timed out
+				if (packet.correlationID != 0L)
+					{
+						CompletableFuture<DataType> request = requests.get(packet.correlationID);
+						if (request != null)
+							request.complete((DataType) object);
+						return;
+					}
+
+				// A batch is processed one object at a time, just as if each had been sent on its own
+				if (object instanceof TBatch)
+					{
+						for (Object batched : ((TBatch) object).objects)
+							{
+								long start = System.nanoTime();
+								processObject(packet.uniqueID, (DataType) batched, packet.personal);
+								metrics.processNanos.record(System.nanoTime() - start);
+							}
+						return;
+					}
+
+				long start = System.nanoTime();
+				processObject(packet.uniqueID, (DataType) object, packet.personal);
+				metrics.processNanos.record(System.nanoTime() - start);
+			}
+
+		/**
+		 * Sends an object to a {@link TServer}. Each {@link TClient} linked to the server will receive a copy of this object, including
+		 * this client. This method is thread safe, and returns straight away, the object is encoded and written by this client's writer.
+		 * 
+		 * @param object
+		 *            - The object to send to the server.
+		 * @return - A future which completes once the object has been written to the server, or completes exceptionally if it could not
+		 *         be, e.g. because too many objects are already waiting to be sent (see {@link TSettings#setOutboundLimits(int, long)}).
+		 */
+		public final CompletableFuture<Void> sendAsync(DataType object)
+			{
+				CompletableFuture<Void> future = new CompletableFuture<Void>();
+				// Ignore null objects
+				if (object == null)
+					future.complete(null);
+				else
+					enqueue(object, future, false);
+				return future;
+			}
+
+		/**
+		 * Asks the {@link TServer} for a copy of every object it sends to a topic. This method is thread safe, and returns straight away.
+		 * 
+		 * @param topic
+		 *            - The name of the topic.
+		 * @return - A future which completes once the subscription has been written to the server.
+		 */
+		public final CompletableFuture<Void> subscribe(String topic)
+			{
+				if (topic == null)
+					throw new IllegalArgumentException("topic must not be null");
+				CompletableFuture<Void> future = new CompletableFuture<Void>();
+				enqueue(new TControl(Protocol.OP_SUBSCRIBE, topic), future, false);
+				return future;
+			}
+
+		/**
+		 * Stops the {@link TServer} sending this client what it sends to a topic. This method is thread safe, and returns straight away.
+		 * 
+		 * @param topic
+		 *            - The name of the topic.
+		 * @return - A future which completes once the request has been written to the server.
+		 */
+		public final CompletableFuture<Void> unsubscribe(String topic)
+			{
+				if (topic == null)
+					throw new IllegalArgumentException("topic must not be null");
+				CompletableFuture<Void> future = new CompletableFuture<Void>();
+				enqueue(new TControl(Protocol.OP_UNSUBSCRIBE, topic), future, false);
+				return future;
+			}
+
+		/**
+		 * Asks the {@link TServer} for a stream, such as a file too large to send as a single object, which it opens in
+		 * {@link TServer#openStream(long, String)}. The stream arrives in chunks on this client's connection, between whatever else the
+		 * server sends, and each chunk is written to the destination as soon as it arrives. This method is thread safe, and returns straight
+		 * away.
+		 * <p>
+		 * If the destination already holds the start of the stream, e.g. from a transfer which was interrupted, only the rest is asked for.
+		 * Only servers and clients using the framed protocol can stream, see {@link TSettings#setFramed(boolean)}.
+		 * 
+		 * @param name
+		 *            - The name of the stream.
+		 * @param destination
+		 *            - The file to write the stream to, which is created if it does not exist.
+		 * @return - A handle on the transfer, which may be used to follow its progress, cancel it, or resume it should it fail.
+		 */
+		public final Transfer download(String name, Path destination)
+			{
+				if (name == null || destination == null)
+					throw new IllegalArgumentException("name and destination must not be null");
+
+				long streamID = streamIDs.incrementAndGet();
+				FileChannel file;
+				long offset;
+				try
+					{
+						file = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+						offset = file.size();
+					}
+				catch (IOException e)
+					{
+						Transfer failed = new Transfer(this, streamID, name, destination, null, 0L);
+						failed.fail(e);
+						return failed;
+					}
+
+				Transfer transfer = new Transfer(this, streamID, name, destination, file, offset);
+				if (protocol == Protocol.LEGACY)
+					{
+						transfer.fail(new IOException("Streams can only be sent using the framed protocol"));
+						return transfer;
+					}
+
+				transfers.putIfAbsent(streamID, transfer);
+				int result = enqueue(new TControl(Protocol.OP_FETCH, streamID, offset, name), null, false);
+				if (result != SendQueue.QUEUED)
+					{
+						transfers.remove(streamID, transfer);
+						transfer.fail(notSent(result));
+					}
+				return transfer;
+			}
+
+		/**
+		 * Called by a {@link Transfer} which has been cancelled, or could not be written, to stop the server sending the rest of it.
+		 */
+		final void stopTransfer(Transfer transfer)
+			{
+				if (transfers.remove(transfer.streamID, transfer))
+					enqueue(new TControl(Protocol.OP_STREAM_END, transfer.streamID), null, false);
+			}
+
+		/**
+		 * Applies a version of the server's state to the version it was made from, acknowledges it, then passes it to
+		 * {@link #processState(Object, long)}.
+		 */
+		private final void receivedState(TControl control)
+			{
+				long version = control.value, base = control.size;
+				byte[] from = base == 0L ? StateDelta.EMPTY : states.get(base);
+				if (from == null)
+					{
+						// Never happens while the server keeps its side of the bargain, but can't be applied if it does
+						WindowTools.debugWindow("State " + version + " is a delta from version " + base + ", which we do not hold.");
+						return;
+					}
+
+				DataType decoded;
+				try
+					{
+						byte[] bytes = StateDelta.apply(from, control.data);
+						long start = System.nanoTime();
+						decoded = codec.decode(ByteBuffer.wrap(bytes));
+						metrics.decodeNanos.record(System.nanoTime() - start);
+						// The server never goes back to a version older than the one this delta was made from
+						states.headMap(base).clear();
+						states.put(version, bytes);
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+						return;
+					}
+
+				enqueue(new TControl(Protocol.OP_STATE_ACK, version), null, false);
+				state = decoded;
+				stateVersion = version;
+				long start = System.nanoTime();
+				processState(decoded, version);
+				metrics.processNanos.record(System.nanoTime() - start);
+			}
+
+		/**
+		 * Sends a request to the {@link TServer}, which answers it in {@link TServer#processRequest(long, Object, TServer.Reply)}. Any number
+		 * of requests may be waiting for replies at once. This method is thread safe, and returns straight away.
+		 * 
+		 * @param object
+		 *            - The request to send to the server.
+		 * @return - A future which completes with the server's reply, or completes exceptionally if there is no reply within
+		 *         {@link #REQUEST_TIMEOUT_MILLIS}.
+		 */
+		public final CompletableFuture<DataType> request(DataType object)
+			{
+				return request(object, REQUEST_TIMEOUT_MILLIS);
+			}
+
+		/**
+		 * Sends a request to the {@link TServer}, see {@link #request(Object)}.
+		 * 
+		 * @param object
+		 *            - The request to send to the server.
+		 * @param timeoutMillis
+		 *            - How long to wait for the reply before the request completes exceptionally with a {@link TimeoutException}.
+		 * @return - A future which completes with the server's reply.
+		 */
+		public final CompletableFuture<DataType> request(DataType object, long timeoutMillis)
+			{
+				CompletableFuture<DataType> request = new CompletableFuture<DataType>();
+				long correlationID = correlationIDs.incrementAndGet();
+				requests.putIfAbsent(correlationID, request);
+
+				// Timeouts share one timer between every client, rather than each request waiting on a thread of its own
+				TimerWheel.Timeout timeout = RequestTimer.WHEEL.schedule(() -> request.completeExceptionally(new TimeoutException("No reply within " + timeoutMillis + "ms")), timeoutMillis);
+				// However it completes, whether replied to, timed out, failed or cancelled, the request is no longer waiting
+				request.whenComplete((reply, failure) ->
+					{
+						requests.remove(correlationID, request);
+						timeout.cancel();
+					});
+
+				int result = enqueue(new TPacket(0L, object, false, correlationID), null, false);
+				if (result != SendQueue.QUEUED)
+					request.completeExceptionally(notSent(result));
+				return request;
+			}
+
+		/**
+		 * Sends an object to a {@link TServer}. Each {@link TClient} linked to the server will receive a copy of this object, including
+		 * this client. Waits until the object has been written, see {@link #sendAsync(Object)} for a version which does not.
+		 * 
+		 * @param object
+		 *            - The object to send to the server
+		 */
+		protected final void sendObject(Object object)
+			{
+				// Ignore null objects
+				if (object == null)
+					return;
+				CompletableFuture<Void> future = new CompletableFuture<Void>();
+				enqueue(object, future, true);
+				try
+					{
+						future.get();
+					}
+				catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				catch (ExecutionException e)
+					{
+						// Either the writer has already reported why, or we are no longer connected
+					}
+			}
+
+		/**
+		 * Sends an object to the {@link TServer} as a datagram, see {@link TSettings#setDatagrams(boolean)}, which the server receives in
+		 * {@link TServer#processUnreliable(long, Object)}. It arrives without waiting for anything sent before it, but may not arrive at
+		 * all, and is dropped if it arrives after a later datagram from this client. This method is thread safe, and returns straight away.
+		 * 
+		 * @param object
+		 *            - The object to send to the server.
+		 * @return - <code>false</code> if the object could not be sent, e.g. because the server has not yet confirmed this client's datagram
+		 *         channel, see {@link #isDatagramBound()}. <code>true</code> does not mean it will arrive.
+		 */
+		public final boolean sendUnreliable(DataType object)
+			{
+				if (object == null || !datagramBound)
+					return false;
+				try
+					{
+						long start = System.nanoTime();
+						ByteBuffer datagram = Datagrams.encodeToServer(codec, uniqueID, datagramToken, datagramSequence.incrementAndGet(), Datagrams.DATA, object);
+						metrics.encodeNanos.record(System.nanoTime() - start);
+						datagrams.write(datagram);
+						metrics.datagramsOut.increment();
+						return true;
+					}
+				catch (IOException e)
+					{
+						return false;
+					}
+			}
+
+		/**
+		 * Adds an object to the queue for the writer, completing the future exceptionally straight away if it cannot be queued.
+		 * 
+		 * @return - What {@link SendQueue#offer(Object, CompletableFuture, boolean)} returned.
+		 */
+		private final int enqueue(Object object, CompletableFuture<Void> future, boolean mayBlock)
+			{
+				int result;
+				try
+					{
+						result = queue.offer(object, future, mayBlock);
+					}
+				catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						result = SendQueue.CLOSED;
+					}
+
+				if (result != SendQueue.QUEUED && future != null)
+					future.completeExceptionally(notSent(result));
+				return result;
+			}
+
+		private static IOException notSent(int result)
+			{
+				return new IOException(result == SendQueue.FULL ? "Too many objects waiting to be sent" : "Not connected to the server");
+			}
+
+		/**
+		 * Called if there is an issue contacting the server which suggests that it has disconnected
+		 */
+		protected abstract void serverDisconnected();
+
+		/**
+		 * 
+		 * @param reason
+		 *            - A string from the server explaining why it forcibly disconnected this client
+		 */
+		protected abstract void kickedFromServer(String reason);
+
+		/**
+		 * Each time an object is returned from the server, this method is called.
+		 * 
+		 * @param object
+		 *            - The object sent to the client from the server
+		 */
+		protected abstract void processObject(long senderID, DataType object, boolean personal);
+
+		/**
+		 * Called for each object the server sends with {@link TServer#sendUnreliable(long, Object, long)}, by default it is passed to
+		 * {@link #processObject(long, Object, boolean)}. Datagrams from a sender are never processed out of order, but some may be missing.
+		 * <p>
+		 * <strong>Warning: </strong>This method is called by the thread receiving datagrams, at the same time as
+		 * {@link #processObject(long, Object, boolean)} is called by the thread reading the connection.
+		 * 
+		 * @param senderID
+		 *            - The uniqueID of whoever the object was sent on behalf of.
+		 * @param object
+		 *            - The object sent to the client from the server.
+		 */
+		protected void processUnreliable(long senderID, DataType object)
+			{
+				processObject(senderID, object, false);
+			}
+
+		/**
+		 * Called with each version of the server's state, see {@link TServer#publishState(Object)}, by default it is passed to
+		 * {@link #processObject(long, Object, boolean)} with a senderID of 0. Versions may be skipped if this client falls behind, but are
+		 * never processed out of order. Only clients using the framed protocol are sent deltas, the legacy protocol is sent the whole state
+		 * as an ordinary object.
+		 * 
+		 * @param state
+		 *            - A copy of the state, the same object then returned by {@link #getState()}.
+		 * @param version
+		 *            - The number of the version, which increases with each one the server publishes.
+		 */
+		protected void processState(DataType state, long version)
+			{
+				processObject(0L, state, false);
+			}
+
+		/**
+		 * @return - true if there is a valid connection to a {@link TServer} socket.
+		 */
+		public final boolean isConnected()
+			{
+				return (isConnected && socket.isConnected());
+			}
+
+		public final void disconnect()
+			{
+				sendObject(new TControl(Protocol.OP_BYE));
+			}
+
+		/**
+		 * @return - The latest version of the server's state this client has received, or <code>null</code> if none has arrived yet, see
+		 *         {@link #processState(Object, long)}.
+		 */
+		public final DataType getState()
+			{
+				return state;
+			}
+
+		/**
+		 * @return - The number of the version returned by {@link #getState()}, or 0 if none has arrived yet.
+		 */
+		public final long getStateVersion()
+			{
+				return stateVersion;
+			}
+
+		/**
+		 * @return - <code>true</code> once the server has confirmed that it receives this client's datagrams, so that
+		 *         {@link #sendUnreliable(Object)} may be used.
+		 */
+		public final boolean isDatagramBound()
+			{
+				return datagramBound;
+			}
+
+		/**
+		 * @return - What this client has sent and received since it connected. The connection counts of a client's metrics are always 0.
+		 */
+		public final TMetrics getMetrics()
+			{
+				return metrics;
+			}
+
+		/**
+		 * @return - The uniqueID assigned to this client by the server (or -1L if not yet recieved).
+		 */
+		public final long getUniqueID()
+			{
+				return uniqueID;
+			}
+
+		/**
+		 * @return - Returns the ip address of the {@link TClient} socket as a String.
+		 */
+		public final String getClientAddress()
+			{
+				return socket.getLocalAddress().getHostAddress();
+			}
+
+		/**
+		 * @return - Returns the ip address of the {@link TServer} socket as a String.
+		 */
+		public final String getServerAddress()
+			{
+				return socket.getInetAddress().getHostAddress();
+			}
+
+		/**
+		 * The timer shared by the requests of every client, only started once a request is made.
+		 */
+		private static final class RequestTimer
+			{
+				static final TimerWheel WHEEL = new TimerWheel("TClient-Requests", 10L, 512);
+			}
 	}
\ No newline at end of file
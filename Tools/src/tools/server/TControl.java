@@ -0,0 +1,73 @@
+package tools.server;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * A hidden message between a {@link TServer} and a {@link TClient}, such as a ping or the client's uniqueID. The framed protocol carries
+ * each one in a frame with an opcode of its own, the legacy protocol translates them to and from the {@link TString}s it has always sent.
+ *
+ * @author Sebastian Troy
+ */
+final class TControl implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final byte opcode;
+		final long value;
+		final String text;
+		/**
+		 * Only used by the streaming opcodes, see {@link Protocol#OP_FETCH} and {@link Protocol#OP_STREAM}, and by
+		 * {@link Protocol#OP_STATE}.
+		 */
+		final long size;
+		/**
+		 * The bytes carried by a {@link Protocol#OP_CHUNK} or {@link Protocol#OP_STATE}. Once decoded, a view of the buffer they were read
+		 * into which is only valid until the next frame is read.
+		 */
+		final transient ByteBuffer data;
+
+		TControl(byte opcode)
+			{
+				this(opcode, 0L, 0L, null, null);
+			}
+
+		TControl(byte opcode, long value)
+			{
+				this(opcode, value, 0L, null, null);
+			}
+
+		TControl(byte opcode, String text)
+			{
+				this(opcode, 0L, text);
+			}
+
+		TControl(byte opcode, long value, String text)
+			{
+				this(opcode, value, 0L, text, null);
+			}
+
+		TControl(byte opcode, long value, long size, String text)
+			{
+				this(opcode, value, size, text, null);
+			}
+
+		TControl(byte opcode, long value, ByteBuffer data)
+			{
+				this(opcode, value, 0L, null, data);
+			}
+
+		TControl(byte opcode, long value, long size, ByteBuffer data)
+			{
+				this(opcode, value, size, null, data);
+			}
+
+		private TControl(byte opcode, long value, long size, String text, ByteBuffer data)
+			{
+				this.opcode = opcode;
+				this.value = value;
+				this.size = size;
+				this.text = text;
+				this.data = data;
+			}
+	}
@@ -0,0 +1,501 @@
+package tools.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a {@link TServer} or {@link TClient} has been doing since it started: the messages and bytes it has sent and received, how
+ * long it spends encoding, decoding and processing them and, for a server, how its clients come and go.
+ * <p>
+ * Counting is cheap enough to always be on. Poll {@link #snapshot()} to read every value at once, or let a server register its metrics with
+ * JMX, see {@link TSettings#setJmx(boolean)}.
+ *
+ * @author Sebastian Troy
+ */
+public final class TMetrics implements TMetricsMXBean
+	{
+		final LongAdder messagesIn = new LongAdder(), messagesOut = new LongAdder(), bytesIn = new LongAdder(), bytesOut = new LongAdder();
+		final LongAdder connects = new LongAdder(), disconnects = new LongAdder(), timeouts = new LongAdder();
+		final LongAdder accepts = new LongAdder(), rejected = new LongAdder();
+		final LongAdder datagramsIn = new LongAdder(), datagramsOut = new LongAdder(), staleDatagrams = new LongAdder();
+		final Histogram encodeNanos = new Histogram(), decodeNanos = new Histogram(), processNanos = new Histogram();
+
+		/**
+		 * The clients of the server being measured, or <code>null</code> when measuring a client.
+		 */
+		private final ConcurrentLongMap<? extends TServer<?>.Connection> clients;
+
+		TMetrics(ConcurrentLongMap<? extends TServer<?>.Connection> clients)
+			{
+				this.clients = clients;
+			}
+
+		/**
+		 * @param counters
+		 *            - The connection the bytes were read from, or <code>null</code>.
+		 */
+		final void read(Counters counters, long bytes)
+			{
+				bytesIn.add(bytes);
+				if (counters != null)
+					counters.bytesIn.add(bytes);
+			}
+
+		/**
+		 * @param counters
+		 *            - The connection the message was read from, or <code>null</code>.
+		 */
+		final void decoded(Counters counters, long nanos)
+			{
+				messagesIn.increment();
+				decodeNanos.record(nanos);
+				if (counters != null)
+					counters.messagesIn.increment();
+			}
+
+		/**
+		 * @param counters
+		 *            - The connection the messages were written to, or <code>null</code>.
+		 */
+		final void wrote(Counters counters, long messages, long bytes)
+			{
+				messagesOut.add(messages);
+				bytesOut.add(bytes);
+				if (counters != null)
+					{
+						counters.messagesOut.add(messages);
+						counters.bytesOut.add(bytes);
+					}
+			}
+
+		/**
+		 * @return - Every value as it is now.
+		 */
+		public final Snapshot snapshot()
+			{
+				return new Snapshot(this);
+			}
+
+		@Override
+		public final long getMessagesIn()
+			{
+				return messagesIn.sum();
+			}
+
+		@Override
+		public final long getMessagesOut()
+			{
+				return messagesOut.sum();
+			}
+
+		@Override
+		public final long getBytesIn()
+			{
+				return bytesIn.sum();
+			}
+
+		@Override
+		public final long getBytesOut()
+			{
+				return bytesOut.sum();
+			}
+
+		@Override
+		public final long getConnects()
+			{
+				return connects.sum();
+			}
+
+		@Override
+		public final long getDisconnects()
+			{
+				return disconnects.sum();
+			}
+
+		@Override
+		public final long getTimeouts()
+			{
+				return timeouts.sum();
+			}
+
+		@Override
+		public final long getAccepts()
+			{
+				return accepts.sum();
+			}
+
+		@Override
+		public final long getRejected()
+			{
+				return rejected.sum();
+			}
+
+		@Override
+		public final long getDatagramsIn()
+			{
+				return datagramsIn.sum();
+			}
+
+		@Override
+		public final long getDatagramsOut()
+			{
+				return datagramsOut.sum();
+			}
+
+		@Override
+		public final long getStaleDatagrams()
+			{
+				return staleDatagrams.sum();
+			}
+
+		@Override
+		public final int getConnections()
+			{
+				return clients == null ? 0 : clients.size();
+			}
+
+		@Override
+		public final long getQueuedPackets()
+			{
+				long queued = 0L;
+				if (clients != null)
+					for (TServer<?>.Connection c : clients.values())
+						queued += c.outbound.size();
+				return queued;
+			}
+
+		@Override
+		public final long getQueuedBytes()
+			{
+				long queued = 0L;
+				if (clients != null)
+					for (TServer<?>.Connection c : clients.values())
+						queued += c.outbound.bytes();
+				return queued;
+			}
+
+		@Override
+		public final long getDecodeNanos99()
+			{
+				return decodeNanos.getValueAtPercentile(99.0);
+			}
+
+		@Override
+		public final long getEncodeNanos99()
+			{
+				return encodeNanos.getValueAtPercentile(99.0);
+			}
+
+		@Override
+		public final long getProcessNanos50()
+			{
+				return processNanos.getValueAtPercentile(50.0);
+			}
+
+		@Override
+		public final long getProcessNanos99()
+			{
+				return processNanos.getValueAtPercentile(99.0);
+			}
+
+		@Override
+		public final long getProcessNanosMax()
+			{
+				return processNanos.getMax();
+			}
+
+		/**
+		 * What a single connection has sent and received.
+		 */
+		static final class Counters
+			{
+				final LongAdder messagesIn = new LongAdder(), messagesOut = new LongAdder(), bytesIn = new LongAdder(), bytesOut = new LongAdder();
+			}
+
+		/**
+		 * Every value of a {@link TMetrics} at a single moment. Comparing two snapshots gives rates, such as how quickly clients are being
+		 * accepted.
+		 */
+		public static final class Snapshot
+			{
+				private final long time = System.nanoTime();
+				private final long messagesIn, messagesOut, bytesIn, bytesOut, connects, disconnects, timeouts, accepts, rejected;
+				private final long datagramsIn, datagramsOut, staleDatagrams;
+				private final int connections;
+				private final long queuedPackets, queuedBytes;
+				private final Histogram encodeNanos, decodeNanos, processNanos;
+
+				private Snapshot(TMetrics metrics)
+					{
+						messagesIn = metrics.getMessagesIn();
+						messagesOut = metrics.getMessagesOut();
+						bytesIn = metrics.getBytesIn();
+						bytesOut = metrics.getBytesOut();
+						connects = metrics.getConnects();
+						disconnects = metrics.getDisconnects();
+						timeouts = metrics.getTimeouts();
+						accepts = metrics.getAccepts();
+						rejected = metrics.getRejected();
+						datagramsIn = metrics.getDatagramsIn();
+						datagramsOut = metrics.getDatagramsOut();
+						staleDatagrams = metrics.getStaleDatagrams();
+						connections = metrics.getConnections();
+						queuedPackets = metrics.getQueuedPackets();
+						queuedBytes = metrics.getQueuedBytes();
+						encodeNanos = metrics.encodeNanos.copy();
+						decodeNanos = metrics.decodeNanos.copy();
+						processNanos = metrics.processNanos.copy();
+					}
+
+				/**
+				 * @param earlier
+				 *            - A snapshot of the same metrics taken before this one.
+				 * @return - The number of connections accepted, or turned away, per second between the two snapshots.
+				 */
+				public final double getAcceptRate(Snapshot earlier)
+					{
+						double seconds = (time - earlier.time) / 1e9;
+						return seconds <= 0.0 ? 0.0 : (accepts - earlier.accepts) / seconds;
+					}
+
+				/**
+				 * @param earlier
+				 *            - A snapshot of the same metrics taken before this one.
+				 * @return - The number of messages received per second between the two snapshots.
+				 */
+				public final double getMessageInRate(Snapshot earlier)
+					{
+						double seconds = (time - earlier.time) / 1e9;
+						return seconds <= 0.0 ? 0.0 : (messagesIn - earlier.messagesIn) / seconds;
+					}
+
+				/**
+				 * @param earlier
+				 *            - A snapshot of the same metrics taken before this one.
+				 * @return - The number of messages sent per second between the two snapshots.
+				 */
+				public final double getMessageOutRate(Snapshot earlier)
+					{
+						double seconds = (time - earlier.time) / 1e9;
+						return seconds <= 0.0 ? 0.0 : (messagesOut - earlier.messagesOut) / seconds;
+					}
+
+				/**
+				 * @return - The number of whole messages received.
+				 */
+				public final long getMessagesIn()
+					{
+						return messagesIn;
+					}
+
+				/**
+				 * @return - The number of whole messages written to the network.
+				 */
+				public final long getMessagesOut()
+					{
+						return messagesOut;
+					}
+
+				/**
+				 * @return - The number of bytes read from the network.
+				 */
+				public final long getBytesIn()
+					{
+						return bytesIn;
+					}
+
+				/**
+				 * @return - The number of bytes written to the network.
+				 */
+				public final long getBytesOut()
+					{
+						return bytesOut;
+					}
+
+				/**
+				 * @return - The number of clients which have connected to the server.
+				 */
+				public final long getConnects()
+					{
+						return connects;
+					}
+
+				/**
+				 * @return - The number of clients which have disconnected from the server, for whatever reason.
+				 */
+				public final long getDisconnects()
+					{
+						return disconnects;
+					}
+
+				/**
+				 * @return - The number of clients disconnected because they stopped answering pings.
+				 */
+				public final long getTimeouts()
+					{
+						return timeouts;
+					}
+
+				/**
+				 * @return - The number of connections accepted by the server's accept loop, including those then rejected.
+				 */
+				public final long getAccepts()
+					{
+						return accepts;
+					}
+
+				/**
+				 * @return - The number of accepted connections closed straight away because the server was not accepting clients.
+				 */
+				public final long getRejected()
+					{
+						return rejected;
+					}
+
+				/**
+				 * @return - The number of datagrams received, see {@link TSettings#setDatagrams(boolean)}.
+				 */
+				public final long getDatagramsIn()
+					{
+						return datagramsIn;
+					}
+
+				/**
+				 * @return - The number of datagrams sent.
+				 */
+				public final long getDatagramsOut()
+					{
+						return datagramsOut;
+					}
+
+				/**
+				 * @return - The number of datagrams dropped because a later one from the same sender had already arrived.
+				 */
+				public final long getStaleDatagrams()
+					{
+						return staleDatagrams;
+					}
+
+				/**
+				 * @return - The number of clients connected when the snapshot was taken.
+				 */
+				public final int getConnections()
+					{
+						return connections;
+					}
+
+				/**
+				 * @return - The number of packets waiting to be written, across every client.
+				 */
+				public final long getQueuedPackets()
+					{
+						return queuedPackets;
+					}
+
+				/**
+				 * @return - The number of bytes waiting to be written, across every client.
+				 */
+				public final long getQueuedBytes()
+					{
+						return queuedBytes;
+					}
+
+				/**
+				 * @return - How long, in nanoseconds, each message took to encode.
+				 */
+				public final Histogram getEncodeNanos()
+					{
+						return encodeNanos;
+					}
+
+				/**
+				 * @return - How long, in nanoseconds, each message took to decode.
+				 */
+				public final Histogram getDecodeNanos()
+					{
+						return decodeNanos;
+					}
+
+				/**
+				 * @return - How long, in nanoseconds, each call to <code>processObject</code> took.
+				 */
+				public final Histogram getProcessNanos()
+					{
+						return processNanos;
+					}
+			}
+
+		/**
+		 * What a single client of a {@link TServer} has sent and received, see {@link TServer#getConnectionMetrics(long)}.
+		 */
+		public static final class ConnectionSnapshot
+			{
+				private final long messagesIn, messagesOut, bytesIn, bytesOut, queuedPackets, queuedBytes, dropped;
+
+				ConnectionSnapshot(Counters counters, OutboundQueue outbound)
+					{
+						messagesIn = counters.messagesIn.sum();
+						messagesOut = counters.messagesOut.sum();
+						bytesIn = counters.bytesIn.sum();
+						bytesOut = counters.bytesOut.sum();
+						queuedPackets = outbound.size();
+						queuedBytes = outbound.bytes();
+						dropped = outbound.dropped();
+					}
+
+				/**
+				 * @return - The number of whole messages received from the client.
+				 */
+				public final long getMessagesIn()
+					{
+						return messagesIn;
+					}
+
+				/**
+				 * @return - The number of whole messages written to the client.
+				 */
+				public final long getMessagesOut()
+					{
+						return messagesOut;
+					}
+
+				/**
+				 * @return - The number of bytes read from the client.
+				 */
+				public final long getBytesIn()
+					{
+						return bytesIn;
+					}
+
+				/**
+				 * @return - The number of bytes written to the client.
+				 */
+				public final long getBytesOut()
+					{
+						return bytesOut;
+					}
+
+				/**
+				 * @return - The number of packets waiting to be written to the client.
+				 */
+				public final long getQueuedPackets()
+					{
+						return queuedPackets;
+					}
+
+				/**
+				 * @return - The number of bytes waiting to be written to the client.
+				 */
+				public final long getQueuedBytes()
+					{
+						return queuedBytes;
+					}
+
+				/**
+				 * @return - The number of packets for the client thrown away by the {@link TSettings.Overflow} policy.
+				 */
+				public final long getDropped()
+					{
+						return dropped;
+					}
+			}
+	}
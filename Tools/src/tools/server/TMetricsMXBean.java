@@ -0,0 +1,50 @@
+package tools.server;
+
+/**
+ * The view of a {@link TServer}'s {@link TMetrics} registered with JMX when {@link TSettings#setJmx(boolean)} is used. Every value is
+ * read live, so tools such as JConsole can graph them over time.
+ *
+ * @author Sebastian Troy
+ */
+public interface TMetricsMXBean
+	{
+		long getMessagesIn();
+
+		long getMessagesOut();
+
+		long getBytesIn();
+
+		long getBytesOut();
+
+		long getConnects();
+
+		long getDisconnects();
+
+		long getTimeouts();
+
+		long getAccepts();
+
+		long getRejected();
+
+		long getDatagramsIn();
+
+		long getDatagramsOut();
+
+		long getStaleDatagrams();
+
+		int getConnections();
+
+		long getQueuedPackets();
+
+		long getQueuedBytes();
+
+		long getDecodeNanos99();
+
+		long getEncodeNanos99();
+
+		long getProcessNanos50();
+
+		long getProcessNanos99();
+
+		long getProcessNanosMax();
+	}
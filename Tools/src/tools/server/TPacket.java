@@ -1,34 +1,105 @@
-package tools.server;
-
-import java.io.Serializable;
-
-/**
- * This class bundles the Objects being sent from the {@link TServer} to the {@link TClient} in a handy way so that clients can know extra information about the
- * Object they just recieved. Namely whether it was sent to only them and the Unique ID of the sender.
- * 
- * @author Sebastian Troy
- */
-public class TPacket implements Serializable
-	{
-		private static final long serialVersionUID = 1L;
-
-		final long uniqueID;
-		final Object object;
-		final boolean personal;
-
-		/**
-		 * 
-		 * @param uniqueID
-		 *            - The unique ID of the sender.
-		 * @param object
-		 *            - The Object to be sent to the client.
-		 * @param personal
-		 *            - <code>true</code> if the (T)Object was sent only to this client.
-		 */
-		TPacket(long uniqueID, Object object, boolean personal)
-			{
-				this.uniqueID = uniqueID;
-				this.object = object;
-				this.personal = personal;
-			}
+package tools.server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class bundles the Objects being sent from the {@link TServer} to the {@link TClient} in a handy way so that clients can know extra information about the
+ * Object they just recieved. Namely whether it was sent to only them and the Unique ID of the sender.
+ * <p>
+ * A packet with a correlation ID is either a request from a client, or the server's reply to that request.
+ * <p>
+ * Clients using the legacy protocol receive each packet as a serialised object. Clients using the framed protocol receive the fields of the
+ * packet written directly into a frame, see {@link #encode(Codec)}.
+ * 
+ * @author Sebastian Troy
+ */
+public class TPacket implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final long uniqueID;
+		final Object object;
+		final boolean personal;
+		final long correlationID;
+
+		/**
+		 * 
+		 * @param uniqueID
+		 *            - The unique ID of the sender.
+		 * @param object
+		 *            - The Object to be sent to the client.
+		 * @param personal
+		 *            - <code>true</code> if the (T)Object was sent only to this client.
+		 */
+		TPacket(long uniqueID, Object object, boolean personal)
+			{
+				this(uniqueID, object, personal, 0L);
+			}
+
+		/**
+		 * 
+		 * @param uniqueID
+		 *            - The unique ID of the sender.
+		 * @param object
+		 *            - The Object to be sent.
+		 * @param personal
+		 *            - <code>true</code> if the (T)Object was sent only to this client.
+		 * @param correlationID
+		 *            - Matches a reply to the request it answers, or 0 if the packet is neither.
+		 */
+		TPacket(long uniqueID, Object object, boolean personal, long correlationID)
+			{
+				this.uniqueID = uniqueID;
+				this.object = object;
+				this.personal = personal;
+				this.correlationID = correlationID;
+			}
+
+		/**
+		 * Writes the packet as a data frame of the framed protocol. After the frame header comes the correlation ID of a reply, the uniqueID
+		 * of the sender, then the object as written by the codec. Whether the packet is personal or a reply is recorded in the flags of the
+		 * frame header.
+		 * 
+		 * @param codec
+		 *            - The codec used to encode the object.
+		 * @return - A buffer in read mode holding the whole frame.
+		 */
+		@SuppressWarnings("unchecked")
+		final <DataType> ByteBuffer encode(Codec<DataType> codec) throws IOException
+			{
+				ByteBuffer frame = ByteBuffer.allocate(256);
+				frame.position(4);
+				byte flags = (byte) ((personal ? Protocol.FLAG_PERSONAL : 0) | (correlationID != 0L ? Protocol.FLAG_CORRELATED : 0));
+				frame.put(Protocol.OP_DATA).put(flags);
+				if (correlationID != 0L)
+					frame.putLong(correlationID);
+				frame.putLong(uniqueID);
+				frame = codec.encode((DataType) object, frame);
+				frame.flip();
+				frame.putInt(0, frame.limit() - 4);
+				return frame;
+			}
+
+		/**
+		 * Reads a packet written by {@link #encode(Codec)}.
+		 * 
+		 * @param codec
+		 *            - The codec used to decode the object.
+		 * @param flags
+		 *            - The flags from the header of the frame.
+		 * @param body
+		 *            - The body of the frame, which follows its header.
+		 */
+		static final <DataType> TPacket decode(Codec<DataType> codec, byte flags, ByteBuffer body) throws IOException
+			{
+				boolean correlated = (flags & Protocol.FLAG_CORRELATED) != 0;
+				if (body.remaining() < (correlated ? 16 : 8))
+					throw new StreamCorruptedException("Truncated packet");
+				long correlationID = correlated ? body.getLong() : 0L;
+				long uniqueID = body.getLong();
+				return new TPacket(uniqueID, codec.decode(body), (flags & Protocol.FLAG_PERSONAL) != 0, correlationID);
+			}
 	}
\ No newline at end of file
@@ -1,378 +1,1931 @@
-package tools.server;
-
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import tools.Rand;
-import tools.WindowTools;
-
-/**
- * Once started this Server will continue to listen for {@link TClient}s until:
- * <ul>
- * <li>The program which evoked it calls <code>System.exit(0);</code></li>
- * <li>The program calls {@link TServer#closeServer()}.</li>
- * </ul>
- * 
- * @author Sebastian Troy
- */
-public abstract class TServer<DataType> implements Runnable
-	{
-		private ServerSocket serverSocket;
-
-		protected final LinkedBlockingQueue<Connection> clients = new LinkedBlockingQueue<Connection>();
-
-		private final Thread thread;
-		private boolean running = false;
-		protected boolean allowConnections = true;
-
-		/**
-		 * Starts the server with a {@link ServerSocket} listening to the specified port.
-		 * 
-		 * @param port
-		 *            - The port to which {@link TClient}s should connect.
-		 */
-		protected TServer(int port)
-			{
-				try
-					{
-						serverSocket = new ServerSocket();
-						serverSocket.setReuseAddress(true);
-						serverSocket.bind(new InetSocketAddress(port));
-						running = true;
-					}
-				catch (IOException e)
-					{
-						WindowTools.informationWindow("Server failed to start", "Error");
-						e.printStackTrace();
-					}
-
-				if (running)
-					{
-						// Start the chat server on a new thread
-						thread = new Thread(this);
-						thread.start();
-					}
-				else
-					thread = null;
-			}
-
-		/**
-		 * <strong>Warning: </strong>This method should not be called explicitly.<br/>
-		 * Listens out for new {@link TClient}s forming a connection, and allocates them a new {@link Connection}.
-		 */
-		@Override
-		public final void run()
-			{
-				while (running)
-					try
-						{
-							// Wait for someone to connect to us
-							Socket socket = serverSocket.accept();
-
-							// The first connection is always allowed, after then, each connection decides if another is allowed
-							if (allowConnections)
-								{
-									Connection connection = new Connection(socket);
-									while (true)
-										{
-											for (Connection c : clients)
-												if (c.uniqueID == connection.uniqueID)
-													{
-														connection = new Connection(socket);
-														continue;
-													}
-											break;
-										}
-									// Start a thread to deal with this new connection
-									Thread thread = new Thread(connection);
-									thread.start();
-
-									// Add the new connection
-									clients.add(connection);
-
-									// Send a message to the client to inform it of its unique ID
-									sendToClient(new TString("ID:" + connection.uniqueID), connection.uniqueID);
-
-									// Notify the server of the new connection and ask if another connection is allowed
-									allowConnections = clientConnected(connection.uniqueID);
-								}
-							else
-								socket.close();
-						}
-					catch (SocketException e)
-						{
-							// Do nothing, this is expected to occur whenever the server is stopped
-						}
-					catch (IOException e)
-						{
-							e.printStackTrace();
-						}
-			}
-
-		/**
-		 * @return - <code>true</code> if the {@link TServer} started successfully and has not yet been closed.
-		 */
-		public final boolean isRunning()
-			{
-				return running;
-			}
-
-		/**
-		 * @return - <code>true</code> if this server is currently listening for and connecting to {@link TClient}s.
-		 */
-		public final boolean isAcceptingClients()
-			{
-				return allowConnections;
-			}
-
-		/**
-		 * @param accept
-		 *            - <code>true</code> if this server should listen for and connect to {@link TClient}s.
-		 */
-		public final void setAcceptClients(boolean accept)
-			{
-				allowConnections = accept;
-			}
-
-		/**
-		 * If you want to force a client to disconnect, call this method
-		 * 
-		 * @param clientID
-		 *            - The UniqueID of the client you wish to kick from the server.
-		 * @param reason
-		 *            - A final message to send to the client, explaining why they were disconnected.
-		 */
-		public final void kickClient(long clientID, String reason)
-			{
-				sendToClient(new TString("Kicked: " + reason), clientID);
-			}
-
-		/**
-		 * <strong>Warning: </strong>This method is called by multiple threads so when dealing with the object, steps should be made to
-		 * ensure safe concurrency.
-		 * 
-		 * @param senderID
-		 *            - The uniqueID of the client that sent the object.
-		 * @param object
-		 *            - The object sent to the server by the client.
-		 */
-		protected abstract void processObject(long senderID, DataType object);
-
-		/**
-		 * This method causes the server to finish sending its current message and then to finish executing.
-		 */
-		protected final void closeServer()
-			{
-				// Tell the Server to stop processing new connections
-				running = false;
-
-				try
-					{
-						// Close the sever (will cause
-						serverSocket.close();
-						for (Connection c : clients)
-							c.socket.close();
-
-						// Join this thread to the one that called this method
-						if (thread != null)
-							thread.join();
-					}
-				catch (IOException | InterruptedException e)
-					{
-						e.printStackTrace();
-					}
-			}
-
-		/**
-		 * This method sends a copy of specified object to all connected {@link TClient}s. This method is thread safe.
-		 * 
-		 * @param object
-		 *            - An Object which each {@link TClient} will receive a copy of.
-		 * @note - TClient&ltT>s can only accept Objects of type T.
-		 */
-		protected final synchronized void sendToAll(long senderID, DataType object)
-			{
-				for (Connection c : clients)
-					if (c.acceptingObjects)
-						try
-							{
-								ObjectOutputStream oos = new ObjectOutputStream(c.socket.getOutputStream());
-								oos.writeObject(new TPacket(senderID, object, false));
-								oos.flush();
-							}
-						catch (Exception e)
-							{
-								e.printStackTrace();
-							}
-			}
-
-		/**
-		 * This method sends a copy of specified object to a specified {@link TClient}. This method is thread safe.
-		 * 
-		 * @param object
-		 *            - An Object which the {@link TClient} will receive a copy of.
-		 * @param clientID
-		 *            - The unique ID of the {@link TClient} to which the object should be sent.
-		 */
-		protected final synchronized void sendToClient(long senderID, DataType object, long clientID)
-			{
-				for (Connection c : clients)
-					if (c.uniqueID == clientID && c.acceptingObjects)
-						try
-							{
-								ObjectOutputStream oos = new ObjectOutputStream(c.socket.getOutputStream());
-								oos.writeObject(new TPacket(senderID, object, true));
-								oos.flush();
-								break;
-							}
-						catch (Exception e)
-							{
-								e.printStackTrace();
-							}
-			}
-
-		/**
-		 * This method is used only by the server to communicate with the {@link TClient} in a way that is hidden from the end user. This
-		 * method is thread safe.
-		 * 
-		 * @param hiddenMessage
-		 *            - The message to be sent to the client
-		 * @param clientID
-		 *            - The uniqueID of the client which will receive the message
-		 */
-		private final synchronized void sendToClient(TString hiddenMessage, long clientID)
-			{
-				for (Connection c : clients)
-					if (c.uniqueID == clientID && c.acceptingObjects)
-						try
-							{
-								ObjectOutputStream oos = new ObjectOutputStream(c.socket.getOutputStream());
-								oos.writeObject(new TPacket(0L, hiddenMessage, true));
-								oos.flush();
-								break;
-							}
-						catch (Exception e)
-							{
-								e.printStackTrace();
-							}
-			}
-
-		/**
-		 * Each time a client connects, this method is called. If the server should be ready for a new connection immediately, this should
-		 * return <code>true</code>. If not the server can be told to accept connections again at a later time.
-		 * 
-		 * @param clientIP
-		 *            - A string of the IP address of the client
-		 * @return - <code>true</code> if the server should listen for a new connection.
-		 */
-		protected abstract boolean clientConnected(long uniqueID);
-
-		/**
-		 * Each time a client disconnects this method is called.
-		 * 
-		 * @param clientIP
-		 */
-		protected abstract void clientDisconnected(long uniqueID);
-
-		/**
-		 * One of these classes is created for each client that connects to the chat server. It listens for input continuously and when it
-		 * receives a message, sends it out to every connected client.
-		 * 
-		 * @author Sebastian Troy
-		 */
-		protected class Connection extends Thread
-			{
-				public final long uniqueID = Rand.long_(1L, Long.MAX_VALUE);
-				protected final Socket socket;
-				private boolean acceptingObjects = true, confirmedConnection = true;
-
-				private Connection(Socket socket)
-					{
-						this.socket = socket;
-					}
-
-				private final void disconnected()
-					{
-						acceptingObjects = false;
-						clients.remove(this);
-
-						clientDisconnected(uniqueID);
-					}
-
-				@SuppressWarnings("unchecked")
-				@Override
-				public final void run()
-					{
-						try
-							{
-								// If no data is recieved for 5 seconds, stop waiting
-								socket.setSoTimeout(5000);
-
-								while (true)
-									try
-										{
-											// prepare to receive String inputs from the clients
-											ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-
-											Object object = ois.readObject();
-
-											// Check to see if client has disconnected or is confirming presence
-											if (object instanceof TString)
-												{
-													TString objectString = (TString) object;
-													if (objectString.string.equals("Client_Disconnected_0123456789"))
-														{
-															disconnected();
-															socket.close();
-															break;
-														}
-													else if (objectString.string.equals("Client_Still_Here_0123456789"))
-														{
-															confirmedConnection = true;
-														}
-													continue;
-												}
-											// Tell the server that an object was sent, and by whom
-											processObject(uniqueID, (DataType) object);
-
-											confirmedConnection = true;
-										}
-									// We are expecting these every 5 seconds or so, and don't want to leave the while loop
-									catch (SocketTimeoutException e)
-										{
-											// no data recieved for 5 seconds, check if client still connected
-											if (confirmedConnection)
-												{
-													confirmedConnection = false;
-													sendToClient(new TString("Server: Are_You_There?"), uniqueID);
-												}
-											else
-												{
-													disconnected();
-												}
-										}
-							}
-						catch (SocketException e)
-							{
-								// If the client has disconnected while we are waiting for an object
-								if (e.toString().equals("java.net.SocketException: Connection reset"))
-									disconnected();
-								// This is expected to occur whenever the server is stopped
-								// Only print if server should still be running
-								else if (running)
-									e.printStackTrace();
-							}
-						catch (IOException | ClassNotFoundException e)
-							{
-								e.printStackTrace();
-							}
-					}
-			}
+package tools.server;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import tools.Rand;
+import tools.WindowTools;
+import tools.server.TSettings.Engine;
+import tools.server.TSettings.Overflow;
+
+/**
+ * Once started this Server will continue to listen for {@link TClient}s until:
+ * <ul>
+ * <li>The program which evoked it calls <code>System.exit(0);</code></li>
+ * <li>The program calls {@link TServer#closeServer()}.</li>
+ * </ul>
+ * By default each client is serviced by its own thread, see {@link TSettings.Engine} for alternatives.
+ * 
+ * @author Sebastian Troy
+ */
+public abstract class TServer<DataType> implements Runnable
+	{
+		/**
+		 * How long, in milliseconds, a client may stay silent before it is asked if it is still there, and then how long it has to answer.
+		 */
+		static final int TIMEOUT_MILLIS = 5000;
+		/**
+		 * The uniqueIDs of the clients of a federated server hold its node ID above this bit.
+		 */
+		static final int NODE_SHIFT = 48;
+		/**
+		 * How many versions of the state are kept to make deltas from, and how many may be sent to a client before it acknowledges any of
+		 * them, see {@link #publishState(Object)}.
+		 */
+		static final int STATE_HISTORY = 32, STATE_WINDOW = 4;
+
+		private ServerSocket serverSocket;
+
+		/**
+		 * Every connected client, keyed by its uniqueID.
+		 */
+		private final ConcurrentLongMap<Connection> clients = new ConcurrentLongMap<Connection>();
+		/**
+		 * The clients subscribed to each topic, keyed by their uniqueIDs. A topic is removed once its last subscriber leaves.
+		 */
+		private final ConcurrentHashMap<String, ConcurrentLongMap<Connection>> topics = new ConcurrentHashMap<String, ConcurrentLongMap<Connection>>();
+		private final TMetrics metrics = new TMetrics(clients);
+		private ObjectName jmxName;
+
+		private final Thread thread;
+		private final TimerWheel timer;
+		// Runs the slow work of subclasses, see execute(Runnable), its threads come and go as they are needed
+		private final ThreadPoolExecutor workers;
+		private final SelectorEngine engine;
+		private final Federation federation;
+		private final Codec<DataType> codec;
+		private final Protocol framed, compressing;
+		// Only open if the server uses datagrams, every datagram it sends is numbered from the one sequence
+		private final DatagramChannel datagrams;
+		private final AtomicLong datagramSequence = new AtomicLong();
+		// The latest versions of the state, indexed by version modulo their number, and what each client holds, all guarded by the lock
+		private final ReentrantLock stateLock = new ReentrantLock();
+		private final byte[][] stateHistory = new byte[STATE_HISTORY][];
+		private long stateVersion = 0L;
+		private DataType state;
+		// Held while an object relayed by a peer is processed, and while a client is caught up and subscribed, see subscribe(long, String, Runnable)
+		private final ReentrantLock relayLock = new ReentrantLock();
+		private final int outboundPackets;
+		private final long outboundBytes;
+		private final Overflow overflow;
+		private final TSettings settings;
+		private final long batchNanos;
+		private final int batchBytes;
+		private volatile boolean running = false;
+		protected boolean allowConnections = true;
+
+		/**
+		 * Starts the server with a {@link ServerSocket} listening to the specified port.
+		 * 
+		 * @param port
+		 *            - The port to which {@link TClient}s should connect.
+		 */
+		protected TServer(int port)
+			{
+				this(port, new TSettings());
+			}
+
+		/**
+		 * Starts the server with a {@link ServerSocket} listening to the specified port.
+		 * 
+		 * @param port
+		 *            - The port to which {@link TClient}s should connect.
+		 * @param settings
+		 *            - Decides how the server will service the {@link TClient}s which connect to it.
+		 */
+		protected TServer(int port, TSettings settings)
+			{
+				this(port, new SerialCodec<DataType>(), settings);
+			}
+
+		/**
+		 * Starts the server with a {@link ServerSocket} listening to the specified port.
+		 * 
+		 * @param port
+		 *            - The port to which {@link TClient}s should connect.
+		 * @param codec
+		 *            - Encodes the objects sent to and decodes the objects received from clients using the framed protocol. Clients using
+		 *            the legacy protocol always use Java serialisation.
+		 * @param settings
+		 *            - Decides how the server will service the {@link TClient}s which connect to it.
+		 */
+		protected TServer(int port, Codec<DataType> codec, TSettings settings)
+			{
+				this.settings = settings;
+				batchNanos = settings.batchMillis < 0 ? -1L : TimeUnit.MILLISECONDS.toNanos(settings.batchMillis);
+				batchBytes = settings.batchBytes;
+				this.codec = codec;
+				framed = Protocol.framed(codec);
+				compressing = settings.compressAbove < 0 ? null : Protocol.framed(codec, settings.compressAbove);
+				// Unless a limit is asked for, what is queued for a client is limited only by memory
+				outboundPackets = settings.outboundLimited ? settings.outboundPackets : Integer.MAX_VALUE;
+				outboundBytes = settings.outboundLimited ? settings.outboundBytes : Long.MAX_VALUE;
+				overflow = settings.overflow;
+				int processors = Runtime.getRuntime().availableProcessors();
+				workers = new ThreadPoolExecutor(processors, processors, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), settings::newThread);
+				workers.allowCoreThreadTimeOut(true);
+				SelectorEngine engine = null;
+				try
+					{
+						if (settings.engine == Engine.SELECTOR)
+							{
+								serverSocket = ServerSocketChannel.open().socket();
+								engine = new SelectorEngine(this, settings);
+							}
+						else
+							serverSocket = new ServerSocket();
+						serverSocket.setReuseAddress(true);
+						serverSocket.bind(new InetSocketAddress(port));
+						running = true;
+					}
+				catch (IOException e)
+					{
+						WindowTools.informationWindow("Server failed to start", "Error");
+						e.printStackTrace();
+					}
+
+				this.engine = engine;
+				if (!running && engine != null)
+					engine.close();
+
+				Federation federation = null;
+				if (running && settings.isFederated())
+					try
+						{
+							federation = new Federation(this, framed, settings);
+						}
+					catch (IOException e)
+						{
+							// The server still serves its own clients
+							e.printStackTrace();
+						}
+				this.federation = federation;
+
+				DatagramChannel datagrams = null;
+				if (running && settings.datagrams)
+					try
+						{
+							datagrams = DatagramChannel.open();
+							datagrams.bind(new InetSocketAddress(serverSocket.getLocalPort()));
+						}
+					catch (IOException e)
+						{
+							// Clients still have their connections
+							e.printStackTrace();
+							datagrams = null;
+						}
+				this.datagrams = datagrams;
+				if (datagrams != null)
+					new Thread(this::receiveDatagrams, "TServer-Datagrams").start();
+
+				if (running)
+					{
+						// One timer checks that every client is still there, rather than each connection waking itself up
+						timer = new TimerWheel("TServer-Timer", TIMEOUT_MILLIS / 50, 64);
+
+						if (settings.jmx)
+							try
+								{
+									jmxName = new ObjectName("tools.server:type=TServer,port=" + serverSocket.getLocalPort());
+									ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, jmxName);
+								}
+							catch (JMException e)
+								{
+									jmxName = null;
+									e.printStackTrace();
+								}
+
+						// Start the chat server on a new thread
+						thread = new Thread(this);
+						thread.start();
+					}
+				else
+					{
+						timer = null;
+						thread = null;
+					}
+			}
+
+		/**
+		 * <strong>Warning: </strong>This method should not be called explicitly.<br/>
+		 * Listens out for new {@link TClient}s forming a connection, and allocates them a new {@link Connection}.
+		 */
+		@Override
+		public final void run()
+			{
+				while (running)
+					try
+						{
+							if (engine != null)
+								{
+									// Wait for someone to connect to us, then hand them over to one of the event loops
+									SocketChannel channel = serverSocket.getChannel().accept();
+									metrics.accepts.increment();
+
+									// The first connection is always allowed, after then, each connection decides if another is allowed
+									if (allowConnections)
+										accepted(new Connection(channel));
+									else
+										{
+											metrics.rejected.increment();
+											channel.close();
+										}
+								}
+							else
+								{
+									// Wait for someone to connect to us
+									Socket socket = serverSocket.accept();
+									metrics.accepts.increment();
+
+									// The first connection is always allowed, after then, each connection decides if another is allowed
+									if (allowConnections)
+										accepted(new Connection(socket));
+									else
+										{
+											metrics.rejected.increment();
+											socket.close();
+										}
+								}
+						}
+					catch (SocketException | ClosedChannelException e)
+						{
+							// Do nothing, this is expected to occur whenever the server is stopped
+						}
+					catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Gives a newly connected client a uniqueID, starts listening to it and lets the server know it has arrived.
+		 */
+		private final void accepted(Connection connection) throws IOException
+			{
+				// Add the new connection, giving it a new uniqueID in the unlikely event that its first is already taken
+				while (clients.putIfAbsent(connection.uniqueID, connection) != null)
+					connection = connection.channel == null ? new Connection(connection.socket) : new Connection(connection.channel);
+				metrics.connects.increment();
+
+				// Start listening and writing to the new connection
+				if (engine != null)
+					engine.register(connection);
+				else
+					{
+						settings.newThread(connection).start();
+						settings.newThread(connection::writeQueued).start();
+					}
+
+				// Send a message to the client to inform it of its unique ID
+				sendToClient(new TControl(Protocol.OP_ID, connection.uniqueID), connection.uniqueID);
+
+				// Start checking that the client is still there
+				connection.liveness = timer.schedule(connection::checkLiveness, TIMEOUT_MILLIS);
+
+				// Notify the server of the new connection and ask if another connection is allowed
+				allowConnections = clientConnected(connection.uniqueID);
+				connection.readiness();
+			}
+
+		/**
+		 * @return - <code>true</code> if the {@link TServer} started successfully and has not yet been closed.
+		 */
+		public final boolean isRunning()
+			{
+				return running;
+			}
+
+		/**
+		 * @return - <code>true</code> if this server is currently listening for and connecting to {@link TClient}s.
+		 */
+		public final boolean isAcceptingClients()
+			{
+				return allowConnections;
+			}
+
+		/**
+		 * @param accept
+		 *            - <code>true</code> if this server should listen for and connect to {@link TClient}s.
+		 */
+		public final void setAcceptClients(boolean accept)
+			{
+				allowConnections = accept;
+			}
+
+		/**
+		 * If you want to force a client to disconnect, call this method
+		 * 
+		 * @param clientID
+		 *            - The UniqueID of the client you wish to kick from the server.
+		 * @param reason
+		 *            - A final message to send to the client, explaining why they were disconnected.
+		 */
+		public final void kickClient(long clientID, String reason)
+			{
+				sendToClient(new TControl(Protocol.OP_KICK, reason), clientID);
+			}
+
+		/**
+		 * <strong>Warning: </strong>This method is called by multiple threads so when dealing with the object, steps should be made to
+		 * ensure safe concurrency.
+		 * 
+		 * @param senderID
+		 *            - The uniqueID of the client that sent the object.
+		 * @param object
+		 *            - The object sent to the server by the client.
+		 */
+		protected abstract void processObject(long senderID, DataType object);
+
+		/**
+		 * Called for each request a client makes with {@link TClient#request(Object)}. The reply may be sent straight away or later on from
+		 * any thread, so a slow request need not hold up the ones behind it. By default requests are passed to
+		 * {@link #processObject(long, Object)} and never answered, so the client's request times out.
+		 * <p>
+		 * <strong>Warning: </strong>This method is called by multiple threads, in the same way as {@link #processObject(long, Object)}.
+		 * 
+		 * @param senderID
+		 *            - The uniqueID of the client that made the request.
+		 * @param request
+		 *            - The object sent by the client.
+		 * @param reply
+		 *            - Used to send the answer back to the client.
+		 */
+		protected void processRequest(long senderID, DataType request, Reply reply)
+			{
+				processObject(senderID, request);
+			}
+
+		/**
+		 * Called for each object a client sends with {@link TClient#sendUnreliable(Object)}, by default it is passed to
+		 * {@link #processObject(long, Object)}. Datagrams from a client are never processed out of order, but some may be missing.
+		 * <p>
+		 * <strong>Warning: </strong>This method is called by the thread receiving datagrams, at the same time as
+		 * {@link #processObject(long, Object)} is called by others.
+		 * 
+		 * @param senderID
+		 *            - The uniqueID of the client that sent the object.
+		 * @param object
+		 *            - The object sent by the client.
+		 */
+		protected void processUnreliable(long senderID, DataType object)
+			{
+				processObject(senderID, object);
+			}
+
+		/**
+		 * Called when a client asks for a stream with {@link TClient#download(String, java.nio.file.Path)}. The stream is sent a chunk at a
+		 * time on the client's own connection, between whatever else it is sent, and a stream which was interrupted carries on from where
+		 * it stopped. By default no streams are available.
+		 * <p>
+		 * Return a {@link java.nio.channels.FileChannel} where possible, its chunks are written straight from the file rather than copied
+		 * through the heap (see {@link TSettings.Engine#SELECTOR}). Any other channel, such as {@link Channels#newChannel(InputStream)},
+		 * is read a chunk at a time and is reread from its start to resume it.
+		 * <p>
+		 * <strong>Warning: </strong>This method is called by multiple threads, in the same way as {@link #processObject(long, Object)}.
+		 * 
+		 * @param clientID
+		 *            - The uniqueID of the client asking for the stream.
+		 * @param name
+		 *            - The name of the stream, e.g. the path of a file relative to a directory the server shares.
+		 * @return - The stream, which is closed once it has been sent, or <code>null</code> if there is no such stream or the client may
+		 *         not have it.
+		 */
+		protected ReadableByteChannel openStream(long clientID, String name) throws IOException
+			{
+				return null;
+			}
+
+		/**
+		 * Called for each object a peer sent to all of its clients or to a topic, see {@link TSettings#setFederation(int, int, String...)},
+		 * just before it is sent on to this server's clients. Sends the object on as it is by default, override this to keep state which
+		 * every server in a federation should share, such as a chat history, or to send this server's own version of the object.
+		 * <p>
+		 * <strong>Warning: </strong>This method is called by one thread for each peer, and at the same time as
+		 * {@link #processObject(long, Object)}, but never at the same time as the catch up passed to
+		 * {@link #subscribe(long, String, Runnable)}.
+		 * 
+		 * @param senderID
+		 *            - The uniqueID sent with the object, usually that of a client of the peer.
+		 * @param object
+		 *            - The object the peer sent.
+		 * @param topic
+		 *            - The topic the object was sent to, or <code>null</code> if it was sent to every client.
+		 * @return - What to send on to this server's clients, or <code>null</code> to send them nothing. The object itself is sent on as the
+		 *         peer encoded it, anything else is encoded afresh.
+		 */
+		protected DataType processRelayed(long senderID, DataType object, String topic)
+			{
+				return object;
+			}
+
+		/**
+		 * Runs a task on one of the server's worker threads, of which there are at most as many as there are processors, so that slow work
+		 * such as reading from disk holds up neither the threads reading the clients nor, however many clients ask for it at once, the
+		 * machine. The threads are virtual if the settings ask for them, see {@link TSettings#setVirtualThreads(boolean)}. Tasks given
+		 * once the server has closed are not run. This method is thread safe.
+		 * 
+		 * @param task
+		 *            - The work to be done.
+		 */
+		protected final void execute(Runnable task)
+			{
+				try
+					{
+						workers.execute(task);
+					}
+				catch (RejectedExecutionException e)
+					{
+						// The server has closed, so there is no one left to do it for
+					}
+			}
+
+		/**
+		 * This method causes the server to finish sending its current message and then to finish executing.
+		 */
+		protected final void closeServer()
+			{
+				// Tell the Server to stop processing new connections
+				running = false;
+
+				try
+					{
+						// Close the sever (will cause
+						serverSocket.close();
+
+						// Give each client a chance to receive whatever it has already been sent
+						List<Connection> connections = clients.values();
+						for (Connection c : connections)
+							c.shutdown();
+						long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+						for (Connection c : connections)
+							while (!c.socket.isClosed() && System.currentTimeMillis() < deadline)
+								Thread.sleep(10);
+
+						for (Connection c : connections)
+							{
+								c.socket.close();
+								c.abandonStreams();
+							}
+						if (engine != null)
+							engine.close();
+						if (federation != null)
+							federation.close();
+						if (datagrams != null)
+							datagrams.close();
+						timer.stop();
+						workers.shutdown();
+						if (jmxName != null)
+							try
+								{
+									ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+								}
+							catch (JMException e)
+								{
+									e.printStackTrace();
+								}
+
+						// Join this thread to the one that called this method
+						if (thread != null)
+							thread.join();
+					}
+				catch (IOException | InterruptedException e)
+					{
+						e.printStackTrace();
+					}
+			}
+
+		/**
+		 * This method sends a copy of specified object to all connected {@link TClient}s. This method is thread safe, and does not wait for
+		 * the object to be written, it is queued for each client and written by that client's writer.
+		 * 
+		 * @param object
+		 *            - An Object which each {@link TClient} will receive a copy of.
+		 * @note - TClient&ltT>s can only accept Objects of type T.
+		 */
+		protected final void sendToAll(long senderID, DataType object)
+			{
+				EncodedPacket packet = encode(senderID, object);
+				if (packet != null)
+					{
+						sendToEach(clients.values(), packet);
+						relay(null, packet);
+					}
+			}
+
+		/**
+		 * This method sends a copy of specified object to every {@link TClient} subscribed to a topic. This method is thread safe, and like
+		 * {@link #sendToAll(long, Object)} the object is encoded only once, however many clients it is sent to.
+		 * 
+		 * @param topic
+		 *            - The topic the object is sent to, clients subscribe with {@link TClient#subscribe(String)}.
+		 * @param object
+		 *            - An Object which each subscribed {@link TClient} will receive a copy of.
+		 */
+		protected final void sendToTopic(String topic, long senderID, DataType object)
+			{
+				ConcurrentLongMap<Connection> subscribers = topics.get(topic);
+				List<Connection> connections = subscribers == null ? null : subscribers.values();
+				// Peers may have subscribers even when we have none
+				if ((connections == null || connections.isEmpty()) && federation == null)
+					return;
+
+				EncodedPacket packet = encode(senderID, object);
+				if (packet != null)
+					{
+						if (connections != null)
+							sendToEach(connections, packet);
+						relay(topic, packet);
+					}
+			}
+
+		/**
+		 * Encodes a packet once, every client it is sent to then shares the same bytes.
+		 * 
+		 * @return - The packet, or <code>null</code> if the object could not be encoded.
+		 */
+		private final EncodedPacket encode(long senderID, DataType object)
+			{
+				EncodedPacket packet = new EncodedPacket(new TPacket(senderID, object, false), overflow == Overflow.COALESCE ? coalesceKey(senderID, object) : senderID);
+				try
+					{
+						packet.bytesFor(framed, metrics);
+						return packet;
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+						return null;
+					}
+			}
+
+		private final void relay(String topic, EncodedPacket packet)
+			{
+				if (federation != null)
+					try
+						{
+							federation.relay(topic, packet.bytesFor(framed, metrics));
+						}
+					catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Called by the {@link Federation} with an object a peer sent to all of its clients, or to a topic, which is sent on to our own
+		 * clients. It is never relayed again, every peer relays what it sends itself.
+		 * 
+		 * @param topic
+		 *            - The topic the object was sent to, or <code>null</code> if it was sent to every client.
+		 * @param framedBytes
+		 *            - The packet exactly as the peer encoded it, which is written to our framed clients as it is.
+		 */
+		@SuppressWarnings("unchecked")
+		final void relayed(String topic, TPacket packet, ByteBuffer framedBytes)
+			{
+				DataType object = (DataType) packet.object, sent;
+				List<Connection> recipients;
+				// Whoever the object is sent to is decided along with processing it, so a client being caught up gets it one way or the other
+				relayLock.lock();
+				try
+					{
+						sent = processRelayed(packet.uniqueID, object, topic);
+						if (topic == null)
+							recipients = clients.values();
+						else
+							{
+								ConcurrentLongMap<Connection> subscribers = topics.get(topic);
+								recipients = subscribers == null ? null : subscribers.values();
+							}
+					}
+				finally
+					{
+						relayLock.unlock();
+					}
+				if (recipients == null || sent == null)
+					return;
+
+				long coalesceKey = overflow == Overflow.COALESCE ? coalesceKey(packet.uniqueID, sent) : packet.uniqueID;
+				if (sent == object)
+					sendToEach(recipients, new EncodedPacket(packet, coalesceKey, framedBytes));
+				else
+					sendToEach(recipients, new EncodedPacket(new TPacket(packet.uniqueID, sent, false), coalesceKey));
+			}
+
+		private final void sendToEach(List<Connection> connections, EncodedPacket packet)
+			{
+				for (Connection c : connections)
+					if (c.acceptingObjects)
+						try
+							{
+								c.send(packet);
+							}
+						catch (Exception e)
+							{
+								e.printStackTrace();
+							}
+			}
+
+		/**
+		 * This method sends a copy of specified object to a specified {@link TClient}. This method is thread safe.
+		 * 
+		 * @param object
+		 *            - An Object which the {@link TClient} will receive a copy of.
+		 * @param clientID
+		 *            - The unique ID of the {@link TClient} to which the object should be sent.
+		 */
+		protected final void sendToClient(long senderID, DataType object, long clientID)
+			{
+				Connection c = clients.get(clientID);
+				if (c != null && c.acceptingObjects)
+					try
+						{
+							c.send(new EncodedPacket(new TPacket(senderID, object, true), overflow == Overflow.COALESCE ? coalesceKey(senderID, object) : senderID));
+						}
+					catch (Exception e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Sends many objects to a client at once, such as the history it missed before it joined. The objects are encoded, compressed and
+		 * written as a single frame, and the client processes each of them in turn as if they had been sent one at a time. Unlike most
+		 * objects, a batch is never dropped however full the client's outbound queue is, so keep batches to a sensible size. This method is
+		 * thread safe.
+		 * <p>
+		 * Clients which did not say they understand batches, see {@link #clientReady(long)}, are sent each object on its own.
+		 * 
+		 * @param objects
+		 *            - The objects which the {@link TClient} will receive, in order.
+		 * @param clientID
+		 *            - The unique ID of the {@link TClient} to which the objects should be sent.
+		 */
+		protected final void sendBatchToClient(long senderID, List<? extends DataType> objects, long clientID)
+			{
+				Connection c = clients.get(clientID);
+				if (c == null || !c.acceptingObjects || objects.isEmpty())
+					return;
+				try
+					{
+						if (c.batches || c.protocol == Protocol.LEGACY)
+							c.send(new EncodedPacket(new TPacket(senderID, new TBatch(new ArrayList<DataType>(objects)), true), 0L));
+						else
+							for (DataType object : objects)
+								c.send(new EncodedPacket(new TPacket(senderID, object, true), overflow == Overflow.COALESCE ? coalesceKey(senderID, object) : senderID));
+					}
+				catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+			}
+
+		/**
+		 * This method is used only by the server to communicate with the {@link TClient} in a way that is hidden from the end user. This
+		 * method is thread safe.
+		 * 
+		 * @param hiddenMessage
+		 *            - The message to be sent to the client
+		 * @param clientID
+		 *            - The uniqueID of the client which will receive the message
+		 */
+		private final void sendToClient(TControl hiddenMessage, long clientID)
+			{
+				Connection c = clients.get(clientID);
+				if (c != null && c.acceptingObjects)
+					try
+						{
+							c.send(new EncodedPacket(new TPacket(0L, hiddenMessage, true), 0L));
+						}
+					catch (Exception e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Makes an object the latest version of this server's state, such as the whole of a game world, and brings every client up to date
+		 * with it. Rather than the whole object, each client that supports it is sent a delta from the last version it acknowledged, which
+		 * it applies to its own copy before passing the result to {@link TClient#processState(Object, long)}. A client which joins gets a
+		 * full snapshot once, then deltas like everyone else. This method is thread safe.
+		 * <p>
+		 * Calling this every tick in place of {@link #sendToAll(long, Object)} sends only what has changed, as long as the codec writes the
+		 * parts of the state that stay the same as the same bytes in the same place. A client which falls behind is not sent every version,
+		 * once {@link #STATE_WINDOW} are waiting to be acknowledged it is skipped until it catches up, and is then sent the latest. Legacy
+		 * clients and clients that don't support deltas are sent the whole object, as if by {@link #sendToAll(long, Object)} with a
+		 * senderID of 0.
+		 * 
+		 * @param state
+		 *            - The new version of the state.
+		 */
+		protected final void publishState(DataType state)
+			{
+				if (state == null)
+					return;
+
+				byte[] bytes;
+				try
+					{
+						long start = System.nanoTime();
+						ByteBuffer buffer = codec.encode(state, ByteBuffer.allocate(256));
+						bytes = Arrays.copyOf(buffer.array(), buffer.position());
+						metrics.encodeNanos.record(System.nanoTime() - start);
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+						return;
+					}
+
+				stateLock.lock();
+				try
+					{
+						stateVersion++;
+						stateHistory[(int) (stateVersion % STATE_HISTORY)] = bytes;
+						this.state = state;
+
+						// Most clients hold the same version, so each delta is made and encoded only once
+						HashMap<Long, EncodedPacket> deltas = new HashMap<Long, EncodedPacket>();
+						EncodedPacket whole = null;
+						for (Connection c : clients.values())
+							if (c.acceptingObjects)
+								{
+									if (c.syncsState)
+										{
+											if (c.statesInFlight < STATE_WINDOW)
+												sendState(c, deltas);
+										}
+									else if (c.wholeState || c.protocol == Protocol.LEGACY)
+										{
+											if (whole == null)
+												whole = encode(0L, state);
+											if (whole != null)
+												c.send(whole);
+										}
+								}
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				finally
+					{
+						stateLock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The number of the latest version of the state, or 0 if none has been published, see {@link #publishState(Object)}.
+		 */
+		public final long getStateVersion()
+			{
+				stateLock.lock();
+				try
+					{
+						return stateVersion;
+					}
+				finally
+					{
+						stateLock.unlock();
+					}
+			}
+
+		/**
+		 * Sends the latest version of the state to a client, as a delta from the newest version it is known to hold if that is still kept,
+		 * or as a full snapshot if not. Must be called holding the state lock.
+		 * 
+		 * @param deltas
+		 *            - The deltas already made for the latest version, keyed by the version they are from, which the new one is added to.
+		 */
+		private final void sendState(Connection c, HashMap<Long, EncodedPacket> deltas) throws IOException
+			{
+				long base = c.stateBase;
+				byte[] baseBytes = base > 0L && base > stateVersion - STATE_HISTORY ? stateHistory[(int) (base % STATE_HISTORY)] : null;
+				if (baseBytes == null)
+					base = 0L;
+
+				EncodedPacket delta = deltas.get(base);
+				if (delta == null)
+					{
+						byte[] latest = stateHistory[(int) (stateVersion % STATE_HISTORY)];
+						TControl control = new TControl(Protocol.OP_STATE, stateVersion, base, StateDelta.encode(base == 0L ? StateDelta.EMPTY : baseBytes, latest));
+						delta = new EncodedPacket(new TPacket(0L, control, true), 0L);
+						deltas.put(base, delta);
+					}
+
+				// Nothing the server sends is lost, so the client will hold a full snapshot before anything sent after it arrives
+				if (base == 0L)
+					c.stateBase = stateVersion;
+				c.stateSent = stateVersion;
+				c.statesInFlight++;
+				c.send(delta);
+			}
+
+		/**
+		 * Called when a client has applied a version of the state, sending it the latest if it had fallen behind.
+		 */
+		private final void stateAcknowledged(Connection c, long version)
+			{
+				stateLock.lock();
+				try
+					{
+						if (!c.syncsState || version > c.stateSent)
+							return;
+						c.stateBase = Math.max(c.stateBase, version);
+						if (c.statesInFlight > 0)
+							c.statesInFlight--;
+						if (c.stateSent < stateVersion && c.statesInFlight < STATE_WINDOW && c.acceptingObjects)
+							sendState(c, new HashMap<Long, EncodedPacket>());
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				finally
+					{
+						stateLock.unlock();
+					}
+			}
+
+		/**
+		 * Called once a framed client has said in its HELLO whether it can apply deltas, sending it the latest state if there is one.
+		 */
+		private final void stateJoined(Connection c, boolean syncsState)
+			{
+				stateLock.lock();
+				try
+					{
+						c.syncsState = syncsState;
+						c.wholeState = !syncsState;
+						if (stateVersion == 0L || !c.acceptingObjects)
+							return;
+						if (syncsState)
+							sendState(c, new HashMap<Long, EncodedPacket>());
+						else
+							{
+								EncodedPacket whole = encode(0L, state);
+								if (whole != null)
+									c.send(whole);
+							}
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				finally
+					{
+						stateLock.unlock();
+					}
+			}
+
+		/**
+		 * Sends a copy of an object to a client as a datagram, see {@link TSettings#setDatagrams(boolean)}. It arrives without waiting for
+		 * anything sent before it, but may not arrive at all, and is dropped if it arrives after a later datagram from the same sender. This
+		 * method is thread safe.
+		 * 
+		 * @param object
+		 *            - An Object which the {@link TClient} will receive in {@link TClient#processUnreliable(long, Object)}.
+		 * @param clientID
+		 *            - The unique ID of the {@link TClient}, which is skipped if it has no datagram channel, see
+		 *            {@link #hasDatagrams(long)}.
+		 */
+		protected final void sendUnreliable(long senderID, DataType object, long clientID)
+			{
+				Connection c = clients.get(clientID);
+				if (c != null && c.datagramAddress != null)
+					sendDatagrams(Arrays.asList(c), senderID, object);
+			}
+
+		/**
+		 * Sends a copy of an object to every client with a datagram channel, see {@link #sendUnreliable(long, Object, long)}. The datagram
+		 * is encoded only once, however many clients it is sent to.
+		 */
+		protected final void sendToAllUnreliable(long senderID, DataType object)
+			{
+				if (datagrams != null)
+					sendDatagrams(clients.values(), senderID, object);
+			}
+
+		private final void sendDatagrams(List<Connection> connections, long senderID, DataType object)
+			{
+				ByteBuffer datagram;
+				try
+					{
+						long start = System.nanoTime();
+						datagram = Datagrams.encodeToClient(codec, datagramSequence.incrementAndGet(), senderID, object);
+						metrics.encodeNanos.record(System.nanoTime() - start);
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+						return;
+					}
+
+				for (Connection c : connections)
+					{
+						SocketAddress address = c.datagramAddress;
+						if (address != null)
+							try
+								{
+									datagrams.send(datagram.duplicate(), address);
+									metrics.datagramsOut.increment();
+								}
+							catch (IOException e)
+								{
+									// A datagram which cannot be sent is as good as lost, which the client must cope with anyway
+								}
+					}
+			}
+
+		/**
+		 * Receives the datagrams of every client until the server closes.
+		 */
+		private final void receiveDatagrams()
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(Datagrams.MAX_LENGTH);
+				while (running)
+					try
+						{
+							buffer.clear();
+							SocketAddress from = datagrams.receive(buffer);
+							buffer.flip();
+							if (buffer.remaining() < Datagrams.TO_SERVER_HEADER_LENGTH)
+								continue;
+
+							// Anything not from a connected client, with the token it was given, is ignored
+							Connection c = clients.get(buffer.getLong());
+							if (c == null || buffer.getLong() != c.datagramToken)
+								continue;
+							long sequence = buffer.getLong();
+							byte kind = buffer.get();
+							metrics.datagramsIn.increment();
+
+							// The client's address may change, e.g. if it is behind a NAT, so always answer the latest
+							c.datagramAddress = from;
+							if (kind == Datagrams.BIND)
+								{
+									sendToClient(new TControl(Protocol.OP_DATAGRAM_BOUND), c.uniqueID);
+									continue;
+								}
+
+							if (sequence <= c.lastDatagram)
+								{
+									metrics.staleDatagrams.increment();
+									continue;
+								}
+							c.lastDatagram = sequence;
+
+							long start = System.nanoTime();
+							DataType object = codec.decode(buffer);
+							metrics.decodeNanos.record(System.nanoTime() - start);
+							start = System.nanoTime();
+							processUnreliable(c.uniqueID, object);
+							metrics.processNanos.record(System.nanoTime() - start);
+						}
+					catch (ClosedChannelException e)
+						{
+							// The server has closed
+							return;
+						}
+					catch (IOException | RuntimeException e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Sends the answer to a request to the client which made it. Replies, like hidden messages, are never dropped by the client's
+		 * {@link TSettings.Overflow} policy.
+		 */
+		private final void sendReply(DataType object, long clientID, long correlationID)
+			{
+				Connection c = clients.get(clientID);
+				if (c != null && c.acceptingObjects)
+					try
+						{
+							c.send(new EncodedPacket(new TPacket(0L, object, true, correlationID), 0L));
+						}
+					catch (Exception e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Subscribes a client to a topic on its behalf, as if it had called {@link TClient#subscribe(String)}. This method is thread safe.
+		 * 
+		 * @param clientID
+		 *            - The uniqueID of the client.
+		 * @param topic
+		 *            - The topic the client will now receive objects sent to.
+		 */
+		protected final void subscribe(long clientID, String topic)
+			{
+				Connection c = clients.get(clientID);
+				if (c != null)
+					subscribe(c, topic);
+			}
+
+		/**
+		 * Unsubscribes a client from a topic on its behalf. This method is thread safe.
+		 * 
+		 * @param clientID
+		 *            - The uniqueID of the client.
+		 * @param topic
+		 *            - The topic the client will no longer receive objects sent to.
+		 */
+		protected final void unsubscribe(long clientID, String topic)
+			{
+				Connection c = clients.get(clientID);
+				if (c != null)
+					unsubscribe(c, topic);
+			}
+
+		/**
+		 * Called whenever a client asks to subscribe to a topic. Override this to keep clients out of topics they shouldn't see, by default
+		 * every subscription is allowed.
+		 * 
+		 * @param clientID
+		 *            - The uniqueID of the client.
+		 * @param topic
+		 *            - The topic it wants to subscribe to.
+		 * @return - <code>true</code> if the client may subscribe.
+		 */
+		protected boolean allowSubscription(long clientID, String topic)
+			{
+				return true;
+			}
+
+		/**
+		 * Subscribes a client to a topic on its behalf, as if it had called {@link TClient#subscribe(String)}, after first catching it up
+		 * with what was sent to the topic before it joined. The catch up is run while no object relayed by a peer is being processed, so an
+		 * object relayed to the topic is either processed by {@link #processRelayed(long, Object, String)} before the catch up, and can be
+		 * part of it, or sent to the client once it is subscribed, never both or neither. Objects this server sends to the topic itself
+		 * should be kept in step with the catch up by the subclass, e.g. by holding the same lock while sending as while calling this.
+		 * 
+		 * @param clientID
+		 *            - The uniqueID of the client.
+		 * @param topic
+		 *            - The name of the topic.
+		 * @param catchUp
+		 *            - Sends the client what it missed, or <code>null</code> if there is nothing to send. It should be quick, send the bulk
+		 *            of a long history beforehand and only the rest from here.
+		 * @return - <code>false</code> if the client is not connected.
+		 */
+		protected final boolean subscribe(long clientID, String topic, Runnable catchUp)
+			{
+				Connection c = clients.get(clientID);
+				if (c == null || !c.acceptingObjects)
+					return false;
+
+				relayLock.lock();
+				try
+					{
+						if (catchUp != null)
+							catchUp.run();
+						subscribe(c, topic);
+					}
+				finally
+					{
+						relayLock.unlock();
+					}
+				return c.acceptingObjects;
+			}
+
+		private final void subscribe(Connection c, String topic)
+			{
+				if (!c.acceptingObjects || !c.subscriptions.add(topic))
+					return;
+				topics.compute(topic, (name, subscribers) ->
+					{
+						if (subscribers == null)
+							subscribers = new ConcurrentLongMap<Connection>();
+						subscribers.putIfAbsent(c.uniqueID, c);
+						return subscribers;
+					});
+				// If the client disconnected meanwhile it may have missed this topic when leaving the others
+				if (!c.acceptingObjects)
+					unsubscribe(c, topic);
+			}
+
+		private final void unsubscribe(Connection c, String topic)
+			{
+				if (!c.subscriptions.remove(topic))
+					return;
+				topics.computeIfPresent(topic, (name, subscribers) ->
+					{
+						subscribers.remove(c.uniqueID, c);
+						return subscribers.size() == 0 ? null : subscribers;
+					});
+			}
+
+		/**
+		 * @param topic
+		 *            - The name of a topic.
+		 * @return - The number of clients subscribed to the topic.
+		 */
+		public final int getSubscriberCount(String topic)
+			{
+				ConcurrentLongMap<Connection> subscribers = topics.get(topic);
+				return subscribers == null ? 0 : subscribers.size();
+			}
+
+		/**
+		 * @return - The number of clients currently connected to this server.
+		 */
+		public final int getClientCount()
+			{
+				return clients.size();
+			}
+
+		/**
+		 * @param clientID
+		 *            - The uniqueID of a client.
+		 * @return - <code>true</code> if the client is currently connected to this server.
+		 */
+		public final boolean isConnected(long clientID)
+			{
+				return clients.get(clientID) != null;
+			}
+
+		/**
+		 * @param clientID
+		 *            - The uniqueID of a client.
+		 * @return - <code>true</code> if datagrams can be sent to the client, see {@link #sendUnreliable(long, Object, long)}.
+		 */
+		public final boolean hasDatagrams(long clientID)
+			{
+				Connection c = clients.get(clientID);
+				return c != null && c.datagramAddress != null;
+			}
+
+		/**
+		 * @return - What this server has been doing since it started. The metrics carry on changing, use {@link TMetrics#snapshot()} to read
+		 *         them all at once.
+		 */
+		public final TMetrics getMetrics()
+			{
+				return metrics;
+			}
+
+		/**
+		 * @param clientID
+		 *            - The uniqueID of a connected client.
+		 * @return - What the client has sent and been sent so far, or <code>null</code> if there is no such client.
+		 */
+		public final TMetrics.ConnectionSnapshot getConnectionMetrics(long clientID)
+			{
+				Connection c = clients.get(clientID);
+				return c == null ? null : new TMetrics.ConnectionSnapshot(c.counters, c.outbound);
+			}
+
+		/**
+		 * Use this to spot clients which are falling behind before they reach the limits set by
+		 * {@link TSettings#setOutboundLimits(int, long)}.
+		 * 
+		 * @param clientID
+		 *            - The uniqueID of a connected client.
+		 * @return - The number of packets waiting to be written to the client, or -1 if there is no such client.
+		 */
+		public final int getQueuedPackets(long clientID)
+			{
+				Connection c = clients.get(clientID);
+				return c == null ? -1 : c.outbound.size();
+			}
+
+		/**
+		 * @param clientID
+		 *            - The uniqueID of a connected client.
+		 * @return - The number of bytes waiting to be written to the client, or -1 if there is no such client.
+		 */
+		public final long getQueuedBytes(long clientID)
+			{
+				Connection c = clients.get(clientID);
+				return c == null ? -1L : c.outbound.bytes();
+			}
+
+		/**
+		 * @param clientID
+		 *            - The uniqueID of a connected client.
+		 * @return - The number of packets for the client which have been thrown away by the {@link TSettings.Overflow} policy, or -1 if
+		 *         there is no such client.
+		 */
+		public final long getDroppedPackets(long clientID)
+			{
+				Connection c = clients.get(clientID);
+				return c == null ? -1L : c.outbound.dropped();
+			}
+
+		/**
+		 * @return - A random uniqueID for a new client. The uniqueIDs of a federated server's clients hold its node ID in their high bits, so
+		 *         that no two servers can give out the same one.
+		 */
+		private final long newUniqueID()
+			{
+				if (settings.isFederated())
+					return ((long) settings.getNodeID() << NODE_SHIFT) | Rand.long_(1L, 1L << NODE_SHIFT);
+				return Rand.long_(1L, Long.MAX_VALUE);
+			}
+
+		/**
+		 * Used by {@link TSettings.Overflow#COALESCE}. When a client's outbound queue is full, a packet waiting for it with the same key as a
+		 * new packet is thrown away, as the new packet is assumed to supersede it. By default each sender's latest packet supersedes its
+		 * earlier ones, override this to supersede packets by something else, such as the part of the game world they describe.
+		 * 
+		 * @param senderID
+		 *            - The uniqueID of the sender of the object.
+		 * @param object
+		 *            - The object being sent.
+		 * @return - The key of the object.
+		 */
+		protected long coalesceKey(long senderID, DataType object)
+			{
+				return senderID;
+			}
+
+		/**
+		 * Each time a client connects, this method is called. If the server should be ready for a new connection immediately, this should
+		 * return <code>true</code>. If not the server can be told to accept connections again at a later time.
+		 * 
+		 * @param clientIP
+		 *            - A string of the IP address of the client
+		 * @return - <code>true</code> if the server should listen for a new connection.
+		 */
+		protected abstract boolean clientConnected(long uniqueID);
+
+		/**
+		 * Called once a client has connected, see {@link #clientConnected(long)}, and the server has learned what it is able to do, such as
+		 * whether it understands {@link #sendBatchToClient(long, List, long)}. This is the place to send a client anything large it needs as
+		 * it joins. Does nothing by default.
+		 * <p>
+		 * <strong>Warning: </strong>This method may be called by the thread reading the client, which with a {@link TSettings.Engine#SELECTOR}
+		 * also reads many others, so it must not block. Hand anything slow to {@link #execute(Runnable)}.
+		 * 
+		 * @param uniqueID
+		 *            - The uniqueID of the client.
+		 */
+		protected void clientReady(long uniqueID)
+			{}
+
+		/**
+		 * Each time a client disconnects this method is called.
+		 * 
+		 * @param clientIP
+		 */
+		protected abstract void clientDisconnected(long uniqueID);
+
+		/**
+		 * The handle passed to {@link TServer#processRequest(long, Object, Reply)}, which sends the answer to one request back to the client
+		 * which made it.
+		 * 
+		 * @author Sebastian Troy
+		 */
+		public final class Reply
+			{
+				private final long clientID, correlationID;
+				private final AtomicBoolean sent = new AtomicBoolean();
+
+				private Reply(long clientID, long correlationID)
+					{
+						this.clientID = clientID;
+						this.correlationID = correlationID;
+					}
+
+				/**
+				 * Sends the answer to the client, completing its request. Only the first call has any effect, and if the client has
+				 * disconnected the answer is thrown away. This method is thread safe.
+				 * 
+				 * @param object
+				 *            - The answer to the request.
+				 */
+				public final void send(DataType object)
+					{
+						if (sent.compareAndSet(false, true))
+							sendReply(object, clientID, correlationID);
+					}
+
+				/**
+				 * @return - The uniqueID of the client which made the request.
+				 */
+				public final long getClientID()
+					{
+						return clientID;
+					}
+			}
+
+		/**
+		 * One of these classes is created for each client that connects to the chat server. It listens for input continuously and when it
+		 * receives a message, sends it out to every connected client.
+		 * 
+		 * @author Sebastian Troy
+		 */
+		protected class Connection implements Runnable
+			{
+				public final long uniqueID = newUniqueID();
+				protected final Socket socket;
+				// Guards the handshake, a lock rather than a monitor so that a virtual thread waiting for room in the outbound queue doesn't pin its carrier
+				private final ReentrantLock lock = new ReentrantLock();
+				private volatile boolean acceptingObjects = true, confirmedConnection = true;
+				private volatile long lastReceived = System.currentTimeMillis();
+				private volatile TimerWheel.Timeout liveness;
+				// The topics this client is subscribed to, so that it can be removed from them when it disconnects
+				private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+				// The streams being sent to this client, keyed by the IDs it gave them
+				private final ConcurrentLongMap<OutboundStream> streams = new ConcurrentLongMap<OutboundStream>();
+				// Proves that a datagram came from this client, which sends it from the address its datagrams are then sent to
+				private final long datagramToken = Rand.long_(1L, Long.MAX_VALUE);
+				private volatile SocketAddress datagramAddress;
+				// Only touched by the thread receiving datagrams
+				private long lastDatagram = 0L;
+				// How this client is sent the state, and the versions it holds and has been sent, all guarded by the state lock
+				private boolean syncsState = false, wholeState = false;
+				private long stateBase = 0L, stateSent = 0L;
+				private int statesInFlight = 0;
+				// Whether the client understands batches, and how far it is from ready: connected, then its capabilities known
+				private volatile boolean batches = false;
+				private final AtomicBoolean capabilitiesKnown = new AtomicBoolean();
+				private final AtomicInteger readiness = new AtomicInteger();
+
+				/**
+				 * The wire format spoken by the client, <code>null</code> until its first bytes have arrived. Until then any packets sent to
+				 * the client wait in the backlog.
+				 */
+				private volatile Protocol protocol;
+				private ArrayList<EncodedPacket> backlog = new ArrayList<EncodedPacket>();
+				ByteBuffer inbound = ByteBuffer.allocate(8192);
+				final OutboundQueue outbound = new OutboundQueue(outboundPackets, outboundBytes, overflow);
+				final TMetrics.Counters counters = new TMetrics.Counters();
+
+				// Only used when the connection is serviced by a SelectorEngine
+				final SocketChannel channel;
+				volatile SelectionKey key;
+				volatile SelectorEngine.EventLoop loop;
+
+				private Connection(Socket socket)
+					{
+						this.socket = socket;
+						this.channel = null;
+					}
+
+				private Connection(SocketChannel channel)
+					{
+						this.socket = channel.socket();
+						this.channel = channel;
+					}
+
+				/**
+				 * Removes this connection from the server and lets the server know that the client has gone. Only the first call has any
+				 * effect.
+				 */
+				final void disconnected()
+					{
+						lock.lock();
+						try
+							{
+								if (!acceptingObjects)
+									return;
+								acceptingObjects = false;
+							}
+						finally
+							{
+								lock.unlock();
+							}
+						clients.remove(uniqueID, this);
+						for (String topic : subscriptions)
+							unsubscribe(this, topic);
+						metrics.disconnects.increment();
+						outbound.close();
+						abandonStreams();
+						if (liveness != null)
+							liveness.cancel();
+
+						try
+							{
+								socket.close();
+							}
+						catch (IOException e)
+							{
+								e.printStackTrace();
+							}
+
+						clientDisconnected(uniqueID);
+					}
+
+				/**
+				 * Deals with an object sent by the client, either acting on it if it is a hidden message, or passing it on to
+				 * {@link TServer#processObject(long, Object)} or {@link TServer#processRequest(long, Object, Reply)}.
+				 */
+				@SuppressWarnings("unchecked")
+				final void received(Object object)
+					{
+						lastReceived = System.currentTimeMillis();
+						confirmedConnection = true;
+
+						if (object instanceof TControl)
+							{
+								TControl control = (TControl) object;
+								switch (control.opcode)
+									{
+										case Protocol.OP_HELLO:
+											// A framed client says what it can do as soon as it connects, and we tell it what we can do in return
+											if (protocol != Protocol.LEGACY)
+												{
+													if (compressing != null && (control.value & Compression.CAP_DEFLATE) != 0)
+														protocol = compressing;
+													sendToClient(new TControl(Protocol.OP_HELLO, Compression.CAP_DEFLATE), uniqueID);
+													// Give the client the token it needs to bind its datagrams to this connection
+													if (datagrams != null && (control.value & Datagrams.CAP_DATAGRAMS) != 0)
+														sendToClient(new TControl(Protocol.OP_DATAGRAM, datagramToken), uniqueID);
+													stateJoined(this, (control.value & StateDelta.CAP_STATE) != 0);
+													batches = (control.value & TBatch.CAP_BATCH) != 0;
+													capabilitiesKnown();
+												}
+											break;
+										case Protocol.OP_BYE:
+											disconnected();
+											break;
+										case Protocol.OP_SUBSCRIBE:
+											if (allowSubscription(uniqueID, control.text))
+												subscribe(this, control.text);
+											break;
+										case Protocol.OP_UNSUBSCRIBE:
+											unsubscribe(this, control.text);
+											break;
+										case Protocol.OP_FETCH:
+											fetch(control.value, control.text, control.size);
+											break;
+										case Protocol.OP_STATE_ACK:
+											stateAcknowledged(this, control.value);
+											break;
+										case Protocol.OP_STREAM_END:
+											// The client has cancelled the stream
+											OutboundStream stream = streams.get(control.value);
+											if (stream != null)
+												stream.cancel();
+											break;
+									}
+								// Anything else, such as an answer to a ping, has done its job just by arriving
+								return;
+							}
+
+						// Objects only a legacy client sends, such as its first "Testing" message, are ignored
+						if (object instanceof TString)
+							return;
+
+						// Tell the server that an object was sent, and by whom
+						long start = System.nanoTime();
+						if (object instanceof TPacket)
+							{
+								TPacket request = (TPacket) object;
+								processRequest(uniqueID, (DataType) request.object, new Reply(uniqueID, request.correlationID));
+							}
+						else
+							processObject(uniqueID, (DataType) object);
+						metrics.processNanos.record(System.nanoTime() - start);
+					}
+
+				/**
+				 * Starts sending a stream the client has asked for, or tells it why it can't have it.
+				 */
+				private final void fetch(long streamID, String name, long offset)
+					{
+						// Chunks cannot be sent with the legacy protocol, and only a framed client asks for them
+						if (protocol == Protocol.LEGACY)
+							return;
+
+						String failure = null;
+						ReadableByteChannel source = null;
+						try
+							{
+								if (offset < 0L)
+									failure = "Invalid offset " + offset;
+								else if ((source = openStream(uniqueID, name)) == null)
+									failure = "No such stream: " + name;
+							}
+						catch (IOException e)
+							{
+								failure = e.getMessage() == null ? e.toString() : e.getMessage();
+							}
+
+						if (failure == null)
+							{
+								OutboundStream stream = new OutboundStream(this, streamID, source, offset);
+								if (streams.putIfAbsent(streamID, stream) == null)
+									{
+										settings.newThread(stream).start();
+										return;
+									}
+								failure = "Stream " + streamID + " has already been asked for";
+								try
+									{
+										source.close();
+									}
+								catch (IOException e)
+									{
+										e.printStackTrace();
+									}
+							}
+						sendToClient(new TControl(Protocol.OP_STREAM_END, streamID, failure), uniqueID);
+					}
+
+				/**
+				 * Called by an {@link OutboundStream} once it has finished, whether or not it was sent.
+				 */
+				final void streamFinished(long streamID, OutboundStream stream)
+					{
+						streams.remove(streamID, stream);
+					}
+
+				/**
+				 * Stops every stream being sent to the client, whose connection has closed.
+				 */
+				final void abandonStreams()
+					{
+						for (OutboundStream stream : streams.values())
+							stream.abandon();
+					}
+
+				/**
+				 * Called when nothing has been heard from the client for a while. The first time the client is asked if it is still there, if
+				 * it hasn't answered by the next time it is assumed to have gone.
+				 */
+				private final void timedOut()
+					{
+						if (confirmedConnection)
+							{
+								confirmedConnection = false;
+								sendToClient(new TControl(Protocol.OP_PING), uniqueID);
+							}
+						else
+							{
+								metrics.timeouts.increment();
+								disconnected();
+							}
+					}
+
+				/**
+				 * Run by the server's timer whenever the client may have been silent for too long, each run schedules the next.
+				 */
+				private final void checkLiveness()
+					{
+						long now = System.currentTimeMillis(), silent = now - lastReceived;
+						if (silent >= TIMEOUT_MILLIS)
+							{
+								lastReceived = now;
+								silent = 0L;
+								timedOut();
+							}
+
+						if (acceptingObjects)
+							liveness = timer.schedule(this::checkLiveness, TIMEOUT_MILLIS - silent);
+						// A client too old to send a HELLO has had plenty of time to, it can do nothing more than it can already
+						capabilitiesKnown();
+					}
+
+				/**
+				 * Called once the client's HELLO has arrived, or once it is clear it isn't going to.
+				 */
+				private final void capabilitiesKnown()
+					{
+						if (capabilitiesKnown.compareAndSet(false, true))
+							readiness();
+					}
+
+				/**
+				 * Called once when the client has connected and once when its capabilities are known, whichever happens second makes the
+				 * client ready.
+				 */
+				private final void readiness()
+					{
+						if (readiness.incrementAndGet() == 2)
+							clientReady(uniqueID);
+					}
+
+				/**
+				 * Decodes and acts upon every complete object which has arrived from the client.
+				 */
+				final void consume() throws IOException, ClassNotFoundException
+					{
+						inbound.flip();
+						try
+							{
+								if (protocol == null)
+									{
+										Protocol detected = Protocol.detect(inbound, framed);
+										if (detected == null)
+											return;
+										handshake(detected);
+										// A legacy client never says what it can do
+										if (detected == Protocol.LEGACY)
+											capabilitiesKnown();
+									}
+
+								Object object;
+								long start = System.nanoTime();
+								while (acceptingObjects && (object = protocol.decodeFromClient(inbound)) != null)
+									{
+										metrics.decoded(counters, System.nanoTime() - start);
+										received(object);
+										start = System.nanoTime();
+									}
+							}
+						finally
+							{
+								inbound.compact();
+							}
+					}
+
+				/**
+				 * Now that we know how to talk to the client, send it everything that has been waiting.
+				 */
+				private final void handshake(Protocol protocol) throws IOException
+					{
+						lock.lock();
+						try
+							{
+								for (EncodedPacket packet : backlog)
+									enqueue(packet, packet.bytesFor(protocol, metrics));
+								backlog = null;
+								// Only now may senders skip the backlog, or they could overtake it
+								this.protocol = protocol;
+							}
+						finally
+							{
+								lock.unlock();
+							}
+					}
+
+				/**
+				 * Queues the packet to be written to the client, or if we don't yet know how to talk to the client adds it to the backlog.
+				 */
+				final void send(EncodedPacket packet) throws IOException
+					{
+						if (protocol == null)
+							{
+								lock.lock();
+								try
+									{
+										if (protocol == null)
+											{
+												backlog.add(packet);
+												return;
+											}
+									}
+								finally
+									{
+										lock.unlock();
+									}
+							}
+						enqueue(packet, packet.bytesFor(protocol, metrics));
+					}
+
+				/**
+				 * Adds the bytes to the outbound queue, waking the writer if it was idle.
+				 */
+				private final void enqueue(EncodedPacket packet, ByteBuffer bytes)
+					{
+						try
+							{
+								// Event loops must never wait, as they may be the only thing which can make room
+								boolean mayBlock = engine == null || !engine.isEventLoop(Thread.currentThread());
+								switch (outbound.offer(bytes, packet.coalesceKey, packet.hidden, mayBlock))
+									{
+										case OutboundQueue.SCHEDULE:
+											if (engine != null)
+												engine.scheduleWrite(this);
+											break;
+										case OutboundQueue.QUEUED:
+											if (engine != null)
+												engine.queued(this);
+											break;
+										case OutboundQueue.FULL:
+											// The client has stopped reading, rather than let it hold everyone else up, let it go
+											disconnected();
+											break;
+									}
+							}
+						catch (InterruptedException e)
+							{
+								// Give up on this packet, but let the caller know it was interrupted
+								Thread.currentThread().interrupt();
+							}
+					}
+
+				/**
+				 * Queues the next chunk of a stream, waking the writer if it was idle.
+				 * 
+				 * @return - <code>false</code> if the connection has closed, so the stream should stop.
+				 */
+				final boolean send(OutboundStream.Chunk chunk)
+					{
+						try
+							{
+								switch (outbound.offer(chunk, false))
+									{
+										case OutboundQueue.SCHEDULE:
+											if (engine != null)
+												engine.scheduleWrite(this);
+											return true;
+										case OutboundQueue.QUEUED:
+											if (engine != null)
+												engine.queued(this);
+											return true;
+										default:
+											return false;
+									}
+							}
+						catch (InterruptedException e)
+							{
+								Thread.currentThread().interrupt();
+								return false;
+							}
+					}
+
+				/**
+				 * Lets the writer finish sending everything already queued, after which the socket is closed.
+				 */
+				final void shutdown()
+					{
+						outbound.shutdown();
+						if (engine != null)
+							engine.requestWrite(this);
+					}
+
+				/**
+				 * Called by the connection's event loop when the socket can accept more of the bytes that are waiting for it, or its batch has
+				 * ended. Writes as many of the waiting buffers as it can with each gathering write.
+				 * 
+				 * @param gather
+				 *            - Space belonging to the event loop, to hold the buffers being written.
+				 */
+				final void flushQueue(ByteBuffer[] gather) throws IOException
+					{
+						int count;
+						while ((count = outbound.peek(gather)) > 0)
+							{
+								long bytes = channel.write(gather, 0, count);
+								int written = 0;
+								while (written < count && !gather[written].hasRemaining())
+									{
+										// Once the start of a chunk of a file is written, the rest is sent straight from the file
+										OutboundStream.Chunk chunk = outbound.peekChunk();
+										if (chunk != null)
+											{
+												bytes += chunk.transferTo(channel);
+												if (chunk.remaining() > 0L)
+													break;
+											}
+										outbound.poll();
+										written++;
+									}
+								metrics.wrote(counters, written, bytes);
+								Arrays.fill(gather, 0, count, null);
+
+								if (written < count)
+									{
+										// The socket is full, carry on once it has room
+										key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+										return;
+									}
+							}
+
+						// Stop waiting for room before descheduling, otherwise this could undo the request of a packet queued in between
+						key.interestOps(SelectionKey.OP_READ);
+						if (!outbound.descheduleIfEmpty())
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						else if (outbound.isFinished())
+							socket.close();
+					}
+
+				/**
+				 * Used by the default engine, writes everything queued for the client until the connection closes.
+				 */
+				final void writeQueued()
+					{
+						try
+							{
+								OutputStream out = new BufferedOutputStream(socket.getOutputStream(), batchNanos < 0L ? 8192 : Math.max(8192, batchBytes));
+								// Chunks of files are sent through the same buffer, so that they stay in order with everything else
+								WritableByteChannel files = Channels.newChannel(out);
+								OutboundQueue.Entry entry;
+								while ((entry = outbound.take()) != null)
+									{
+										// Give other packets a chance to join this one
+										if (batchNanos > 0L)
+											outbound.awaitBatch(batchNanos, batchBytes);
+
+										// Write everything that is waiting before flushing it to the socket
+										long messages = 0L, bytes = 0L;
+										do
+											{
+												ByteBuffer buffer = entry.buffer;
+												out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+												messages++;
+												bytes += buffer.remaining();
+												if (entry.chunk != null)
+													{
+														bytes += entry.chunk.transferTo(files);
+														if (entry.chunk.remaining() > 0L)
+															throw new IOException("A file was truncated while it was being sent");
+													}
+											}
+										while ((entry = outbound.poll()) != null);
+										out.flush();
+										metrics.wrote(counters, messages, bytes);
+									}
+
+								socket.close();
+							}
+						catch (IOException e)
+							{
+								// The client has disconnected while we were writing to it
+								if (running)
+									disconnected();
+							}
+						catch (InterruptedException e)
+							{
+								disconnected();
+							}
+					}
+
+				/**
+				 * Used by the default engine, reads objects from the client until it disconnects.
+				 */
+				@Override
+				public final void run()
+					{
+						try
+							{
+								// The server's timer checks that the client is still there, so there is no need to wake up until it sends something
+								InputStream in = socket.getInputStream();
+
+								while (acceptingObjects)
+									{
+										// Read whatever the client has sent so far, then act on any objects it completes
+										inbound = Protocol.ensureSpace(inbound);
+										int read = in.read(inbound.array(), inbound.arrayOffset() + inbound.position(), inbound.remaining());
+										if (read < 0)
+											throw new EOFException();
+										inbound.position(inbound.position() + read);
+										metrics.read(counters, read);
+
+										consume();
+									}
+							}
+						catch (SocketException | EOFException e)
+							{
+								// The client has disconnected while we are waiting for an object
+								// Otherwise this is expected to occur whenever the server is stopped
+								if (running)
+									disconnected();
+							}
+						catch (IOException | ClassNotFoundException e)
+							{
+								if (running)
+									e.printStackTrace();
+								disconnected();
+							}
+						catch (RuntimeException e)
+							{
+								// e.g. a bug in processObject, only this client is lost rather than left connected with no one reading it
+								e.printStackTrace();
+								disconnected();
+							}
+					}
+			}
 	}
\ No newline at end of file
@@ -0,0 +1,463 @@
+package tools.server;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A collection of options which change how a {@link TServer} services its clients, or how a {@link TClient} talks to its server. The
+ * settings are read once, when the server or client is constructed, so changing them afterwards has no effect.
+ * <p>
+ * Each setter returns the settings object so that calls can be chained:
+ *
+ * <pre>
+ * new TSettings().setEngine(TSettings.Engine.SELECTOR).setEventLoops(2)
+ * </pre>
+ *
+ * @author Sebastian Troy
+ */
+public class TSettings
+	{
+		/**
+		 * The different ways in which a {@link TServer} can read from and write to its connected {@link TClient}s.
+		 */
+		public enum Engine
+			{
+				/**
+				 * Each connection is given its own thread which blocks while waiting for objects. Simple, but each client costs a whole thread.
+				 */
+				THREAD_PER_CONNECTION,
+				/**
+				 * All connections are shared between a small fixed pool of event loop threads, each built around a
+				 * {@link java.nio.channels.Selector}. Suited to servers with thousands of clients.
+				 */
+				SELECTOR
+			}
+
+		/**
+		 * What a {@link TServer} does with a packet for a client whose outbound queue is already at its limit, see
+		 * {@link TSettings#setOutboundLimits(int, long)}. Hidden messages from the server are never dropped.
+		 */
+		public enum Overflow
+			{
+				/**
+				 * The sending thread waits for room, for as long as a client is allowed to stay silent. If there is still no room the client is
+				 * disconnected. An event loop thread of the {@link Engine#SELECTOR} engine never waits, it disconnects the client straight away.
+				 */
+				BLOCK,
+				/**
+				 * The oldest packets which have not started being written are thrown away to make room.
+				 */
+				DROP_OLDEST,
+				/**
+				 * The new packet is thrown away.
+				 */
+				DROP_NEWEST,
+				/**
+				 * A waiting packet with the same coalesce key as the new one is thrown away, as the new packet supersedes it. If that does not
+				 * make enough room the oldest packets are thrown away. See <code>TServer.coalesceKey(long, Object)</code>.
+				 */
+				COALESCE,
+				/**
+				 * The client is disconnected, and the server told through <code>TServer.clientDisconnected(long)</code>.
+				 */
+				DISCONNECT
+			}
+
+		/**
+		 * Creates virtual threads, or is <code>null</code> if the JVM cannot. Looked up reflectively so that the library still runs on
+		 * JVMs which predate them.
+		 */
+		private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+		/**
+		 * The largest node ID a federated server may have, see {@link #setFederation(int, int, String...)}.
+		 */
+		public static final int MAX_NODE_ID = 0x7FFF;
+
+		Engine engine = Engine.THREAD_PER_CONNECTION;
+		int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		boolean framed = false;
+		boolean datagrams = false;
+		boolean virtualThreads = false;
+		boolean jmx = false;
+		int compressAbove = -1;
+		int batchMillis = -1;
+		int batchBytes = 64 * 1024;
+		boolean outboundLimited = false;
+		int outboundPackets = 4096;
+		long outboundBytes = 16L * 1024L * 1024L;
+		Overflow overflow = Overflow.DISCONNECT;
+		int nodeID = 0;
+		int peerPort = -1;
+		String[] peers = new String[0];
+
+		/**
+		 * @param engine
+		 *            - The {@link Engine} the server should use to service its connections.
+		 * @return - These settings.
+		 */
+		public final TSettings setEngine(Engine engine)
+			{
+				if (engine == null)
+					throw new IllegalArgumentException("engine must not be null");
+				this.engine = engine;
+				return this;
+			}
+
+		/**
+		 * @param eventLoops
+		 *            - The number of event loop threads to share connections between when using {@link Engine#SELECTOR}.
+		 * @return - These settings.
+		 */
+		public final TSettings setEventLoops(int eventLoops)
+			{
+				if (eventLoops < 1)
+					throw new IllegalArgumentException("eventLoops must be at least 1");
+				this.eventLoops = eventLoops;
+				return this;
+			}
+
+		/**
+		 * Limits how much a {@link TServer} will queue up for a single client which is not keeping up with what it is sent, beyond which its
+		 * {@link Overflow} policy decides what happens. A server queues without limit unless this is called, so that a busy client which
+		 * is slow to read is never disconnected by default. A {@link TClient} always uses the packet limit for the objects waiting to be
+		 * written to its server, 4096 by default.
+		 * 
+		 * @param packets
+		 *            - The most packets which may be waiting to be written to a client.
+		 * @param bytes
+		 *            - The most bytes which may be waiting to be written to a client.
+		 * @return - These settings.
+		 */
+		public final TSettings setOutboundLimits(int packets, long bytes)
+			{
+				if (packets < 1 || bytes < 1L)
+					throw new IllegalArgumentException("Outbound limits must be positive");
+				this.outboundLimited = true;
+				this.outboundPackets = packets;
+				this.outboundBytes = bytes;
+				return this;
+			}
+
+		/**
+		 * @param overflow
+		 *            - What a {@link TServer} should do when a client's outbound queue is full, {@link Overflow#DISCONNECT} by default. Only
+		 *            has an effect once the queue is limited, see {@link #setOutboundLimits(int, long)}.
+		 * @return - These settings.
+		 */
+		public final TSettings setOverflow(Overflow overflow)
+			{
+				if (overflow == null)
+					throw new IllegalArgumentException("overflow must not be null");
+				this.overflow = overflow;
+				return this;
+			}
+
+		/**
+		 * Packets are normally written to a client as soon as its writer is free, which for small packets means a system call and a TCP
+		 * segment each. With batching, the packets which arrive for a client within a short window are written together, trading a few
+		 * milliseconds of latency for far fewer writes under load.
+		 * 
+		 * @param windowMillis
+		 *            - How long a packet may wait for others to join it. With 0, packets only wait until the end of the current event loop
+		 *            iteration of {@link Engine#SELECTOR}, or for the writer of {@link Engine#THREAD_PER_CONNECTION} to finish its last
+		 *            write. A negative value turns batching off, which is the default.
+		 * @param maxBytes
+		 *            - Once this many bytes are waiting for a client they are written without waiting for the window to end.
+		 * @return - These settings.
+		 */
+		public final TSettings setWriteBatching(int windowMillis, int maxBytes)
+			{
+				if (maxBytes < 1)
+					throw new IllegalArgumentException("maxBytes must be positive");
+				this.batchMillis = windowMillis < 0 ? -1 : windowMillis;
+				this.batchBytes = maxBytes;
+				return this;
+			}
+
+		/**
+		 * Only has an effect on the framed protocol, and only once the peer has said that it can inflate frames when it connects. Frames
+		 * which would not get any smaller are sent as they are.
+		 * 
+		 * @param threshold
+		 *            - Objects which encode to more than this many bytes are compressed before being sent. A negative value turns
+		 *            compression off, which is the default.
+		 * @return - These settings.
+		 */
+		public final TSettings setCompression(int threshold)
+			{
+				this.compressAbove = threshold < 0 ? -1 : threshold;
+				return this;
+			}
+
+		/**
+		 * Only used by a {@link TServer}.
+		 * 
+		 * @param jmx
+		 *            - <code>true</code> if the server should register its {@link TMetrics} with the platform MBean server, under the name
+		 *            <code>tools.server:type=TServer,port=</code> followed by the port it is listening to.
+		 * @return - These settings.
+		 */
+		public final TSettings setJmx(boolean jmx)
+			{
+				this.jmx = jmx;
+				return this;
+			}
+
+		/**
+		 * Only used by {@link TClient}s, a {@link TServer} detects which protocol each of its clients is using.
+		 * 
+		 * @param framed
+		 *            - <code>true</code> if the client should send length prefixed frames over a single long lived stream, which costs a
+		 *            few bytes per message, rather than starting a new object stream for every message, which costs hundreds. Servers older
+		 *            than this option only understand the latter.
+		 * @return - These settings.
+		 */
+		public final TSettings setFramed(boolean framed)
+			{
+				this.framed = framed;
+				return this;
+			}
+
+		/**
+		 * Adds a channel of datagrams alongside the connection, for state which is sent often and soon superseded, such as the positions
+		 * of players. Datagrams are never held up behind one another the way objects sent over the connection are when one is lost, but
+		 * may themselves be lost, and one which arrives after a later one from the same sender is dropped. See
+		 * <code>sendUnreliable</code>.
+		 * <p>
+		 * A {@link TServer} listens for datagrams on the same port number as it listens for clients. A {@link TClient} asks for the channel
+		 * when it connects, which only works with the framed protocol, see {@link #setFramed(boolean)}.
+		 * 
+		 * @param datagrams
+		 *            - <code>true</code> to use datagrams as well as the connection.
+		 * @return - These settings.
+		 */
+		public final TSettings setDatagrams(boolean datagrams)
+			{
+				this.datagrams = datagrams;
+				return this;
+			}
+
+		/**
+		 * Only used by a {@link TServer}. Links the server to other servers, so that what is sent with <code>sendToAll</code> or
+		 * <code>sendToTopic</code> reaches the clients of every server rather than just its own. Each server relays what it sends to every
+		 * peer, and never relays what it receives from one, so every server must list every other server as a peer.
+		 * <p>
+		 * While a peer is unreachable what is relayed to it is lost, the server keeps trying to reconnect to it.
+		 * 
+		 * @param nodeID
+		 *            - Between 1 and {@value #MAX_NODE_ID}, different for every server. It is stored in the high bits of the uniqueID of
+		 *            every client, so that uniqueIDs are unique across all of the servers.
+		 * @param peerPort
+		 *            - The port on which the server listens for links from its peers, which is separate from the port its clients use.
+		 * @param peers
+		 *            - The address of every other server, each in the form <code>host:peerPort</code>.
+		 * @return - These settings.
+		 */
+		public final TSettings setFederation(int nodeID, int peerPort, String... peers)
+			{
+				if (nodeID < 1 || nodeID > MAX_NODE_ID)
+					throw new IllegalArgumentException("nodeID must be between 1 and " + MAX_NODE_ID);
+				for (String peer : peers)
+					if (peer.lastIndexOf(':') < 1)
+						throw new IllegalArgumentException("Peers must be of the form host:port, not " + peer);
+				this.nodeID = nodeID;
+				this.peerPort = peerPort;
+				this.peers = peers.clone();
+				return this;
+			}
+
+		/**
+		 * Only has an effect on a JVM which supports virtual threads, otherwise ordinary threads are used as before.
+		 * 
+		 * @param virtualThreads
+		 *            - <code>true</code> if the threads which block while reading from and writing to a socket should be virtual threads,
+		 *            so that tens of thousands of mostly idle connections cost little more than their buffers. This applies to each
+		 *            connection of a server using {@link Engine#THREAD_PER_CONNECTION} and to the reader of a {@link TClient}. Virtual
+		 *            threads never keep the JVM alive.
+		 * @return - These settings.
+		 */
+		public final TSettings setVirtualThreads(boolean virtualThreads)
+			{
+				this.virtualThreads = virtualThreads;
+				return this;
+			}
+
+		/**
+		 * @return - The {@link Engine} the server will use to service its connections.
+		 */
+		public final Engine getEngine()
+			{
+				return engine;
+			}
+
+		/**
+		 * @return - The number of event loop threads used by {@link Engine#SELECTOR}.
+		 */
+		public final int getEventLoops()
+			{
+				return eventLoops;
+			}
+
+		/**
+		 * @return - <code>true</code> if a client will use the framed protocol.
+		 */
+		public final boolean isFramed()
+			{
+				return framed;
+			}
+
+		/**
+		 * @return - <code>true</code> if a server will register its metrics with JMX.
+		 */
+		public final boolean isJmx()
+			{
+				return jmx;
+			}
+
+		/**
+		 * @return - The size above which objects are compressed, or -1 if compression is off.
+		 */
+		public final int getCompressionThreshold()
+			{
+				return compressAbove;
+			}
+
+		/**
+		 * @return - <code>true</code> if packets are batched before being written, see {@link #setWriteBatching(int, int)}.
+		 */
+		public final boolean isWriteBatching()
+			{
+				return batchMillis >= 0;
+			}
+
+		/**
+		 * @return - How long, in milliseconds, a packet may wait for others to join it, or -1 if batching is off.
+		 */
+		public final int getBatchWindow()
+			{
+				return batchMillis;
+			}
+
+		/**
+		 * @return - How many bytes may wait for a client before they are written regardless of the batching window.
+		 */
+		public final int getBatchBytes()
+			{
+				return batchBytes;
+			}
+
+		/**
+		 * @return - <code>true</code> if virtual threads have been asked for, see {@link #setVirtualThreads(boolean)}.
+		 */
+		public final boolean isVirtualThreads()
+			{
+				return virtualThreads;
+			}
+
+		/**
+		 * @return - <code>true</code> if this JVM is able to create virtual threads.
+		 */
+		public static final boolean virtualThreadsSupported()
+			{
+				return VIRTUAL_THREADS != null;
+			}
+
+		/**
+		 * @return - A new, unstarted, thread which will run the task. It is a virtual thread if they have been asked for and are supported.
+		 */
+		final Thread newThread(Runnable task)
+			{
+				if (virtualThreads && VIRTUAL_THREADS != null)
+					return VIRTUAL_THREADS.newThread(task);
+				return new Thread(task);
+			}
+
+		/**
+		 * @return - The equivalent of <code>Thread.ofVirtual().factory()</code>, or <code>null</code> if this JVM has no virtual threads.
+		 */
+		private static final ThreadFactory virtualThreadFactory()
+			{
+				try
+					{
+						Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+						return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+					}
+				catch (ReflectiveOperationException | RuntimeException e)
+					{
+						// Either too old a JVM, or one where virtual threads are a disabled preview feature
+						return null;
+					}
+			}
+
+		/**
+		 * @return - <code>true</code> if a server limits what it queues for each client, see {@link #setOutboundLimits(int, long)}.
+		 */
+		public final boolean isOutboundLimited()
+			{
+				return outboundLimited;
+			}
+
+		/**
+		 * @return - The most packets which may be waiting to be written to a single client, if limited, or to the server.
+		 */
+		public final int getOutboundPacketLimit()
+			{
+				return outboundPackets;
+			}
+
+		/**
+		 * @return - The most bytes which may be waiting to be written to a single client, if limited.
+		 */
+		public final long getOutboundByteLimit()
+			{
+				return outboundBytes;
+			}
+
+		/**
+		 * @return - What a server does when a client's outbound queue is full.
+		 */
+		public final Overflow getOverflow()
+			{
+				return overflow;
+			}
+
+		/**
+		 * @return - <code>true</code> if datagrams are used alongside the connection, see {@link #setDatagrams(boolean)}.
+		 */
+		public final boolean isDatagrams()
+			{
+				return datagrams;
+			}
+
+		/**
+		 * @return - <code>true</code> if the server will link to peers, see {@link #setFederation(int, int, String...)}.
+		 */
+		public final boolean isFederated()
+			{
+				return nodeID > 0;
+			}
+
+		/**
+		 * @return - The ID of the server among its peers, or 0 if it isn't federated.
+		 */
+		public final int getNodeID()
+			{
+				return nodeID;
+			}
+
+		/**
+		 * @return - The port on which the server listens for its peers, or -1 if it isn't federated.
+		 */
+		public final int getPeerPort()
+			{
+				return peerPort;
+			}
+
+		/**
+		 * @return - The addresses of the server's peers.
+		 */
+		public final String[] getPeers()
+			{
+				return peers.clone();
+			}
+	}
\ No newline at end of file
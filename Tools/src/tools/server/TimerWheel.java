@@ -0,0 +1,169 @@
+package tools.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel, a single thread which runs tasks after a delay. Each tick of the wheel it moves on to the next of a fixed ring of
+ * buckets and runs the tasks in it which are due, so scheduling and cancelling cost the same however many tasks are waiting. Tasks are
+ * only run to the accuracy of a tick, which suits timeouts measured in seconds, such as checking that every client is still there.
+ * <p>
+ * Tasks are run on the wheel's own thread, so they should be quick.
+ *
+ * @author Sebastian Troy
+ */
+final class TimerWheel implements Runnable
+	{
+		private final long tickNanos;
+		private final Timeout[] buckets;
+		private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+		private final Thread thread;
+		private final long start = System.nanoTime();
+		private volatile boolean running = true;
+		private long tick = 0L;
+
+		/**
+		 * @param name
+		 *            - The name of the wheel's thread.
+		 * @param tickMillis
+		 *            - How often the wheel moves on, the accuracy with which tasks are run.
+		 * @param wheelSize
+		 *            - The number of buckets in the wheel, rounded up to a power of two.
+		 */
+		TimerWheel(String name, long tickMillis, int wheelSize)
+			{
+				tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+				buckets = new Timeout[Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1];
+				thread = new Thread(this, name);
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+		/**
+		 * @param task
+		 *            - Run once the delay has passed, unless cancelled first.
+		 * @param delayMillis
+		 *            - How long to wait before running the task.
+		 * @return - A handle which can be used to cancel the task.
+		 */
+		final Timeout schedule(Runnable task, long delayMillis)
+			{
+				Timeout timeout = new Timeout(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMillis)));
+				scheduled.add(timeout);
+				return timeout;
+			}
+
+		/**
+		 * Stops the wheel, any tasks still waiting are never run.
+		 */
+		final void stop()
+			{
+				running = false;
+				thread.interrupt();
+			}
+
+		@Override
+		public final void run()
+			{
+				while (running)
+					{
+						// Sleep until the start of the next tick
+						long sleep = (tick + 1) * tickNanos - (System.nanoTime() - start);
+						if (sleep > 0L)
+							try
+								{
+									TimeUnit.NANOSECONDS.sleep(sleep);
+								}
+							catch (InterruptedException e)
+								{
+									continue;
+								}
+
+						addScheduled();
+						expire(tick & (buckets.length - 1));
+						tick++;
+					}
+			}
+
+		/**
+		 * Moves newly scheduled tasks into the bucket of the tick in which they are due.
+		 */
+		private final void addScheduled()
+			{
+				Timeout timeout;
+				while ((timeout = scheduled.poll()) != null)
+					{
+						if (timeout.cancelled)
+							continue;
+
+						// A task which is already due is run this tick
+						long due = Math.max(tick, timeout.deadline / tickNanos);
+						timeout.rounds = (due - tick) / buckets.length;
+						int bucket = (int) (due & (buckets.length - 1));
+						timeout.next = buckets[bucket];
+						buckets[bucket] = timeout;
+					}
+			}
+
+		/**
+		 * Runs the tasks in the bucket which are due this time round the wheel, and drops any which have been cancelled.
+		 */
+		private final void expire(long bucket)
+			{
+				Timeout previous = null, timeout = buckets[(int) bucket];
+				while (timeout != null)
+					{
+						Timeout next = timeout.next;
+						if (timeout.cancelled || timeout.rounds <= 0L)
+							{
+								if (previous == null)
+									buckets[(int) bucket] = next;
+								else
+									previous.next = next;
+								timeout.next = null;
+
+								if (!timeout.cancelled)
+									try
+										{
+											timeout.task.run();
+										}
+									catch (RuntimeException e)
+										{
+											e.printStackTrace();
+										}
+							}
+						else
+							{
+								timeout.rounds--;
+								previous = timeout;
+							}
+						timeout = next;
+					}
+			}
+
+		/**
+		 * A task waiting on the wheel.
+		 */
+		static final class Timeout
+			{
+				private final Runnable task;
+				private final long deadline;
+				private long rounds;
+				private Timeout next;
+				private volatile boolean cancelled = false;
+
+				private Timeout(Runnable task, long deadline)
+					{
+						this.task = task;
+						this.deadline = deadline;
+					}
+
+				/**
+				 * Stops the task from being run, if it hasn't been already.
+				 */
+				final void cancel()
+					{
+						cancelled = true;
+					}
+			}
+	}
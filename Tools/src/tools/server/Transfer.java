@@ -0,0 +1,193 @@
+package tools.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A stream being received from a {@link TServer}, see {@link TClient#download(String, Path)}. Each chunk is written to the destination file
+ * as soon as it arrives, so the memory used is the same however large the stream is.
+ * <p>
+ * Whatever has arrived stays in the destination file if the transfer fails, e.g. because the connection was lost. Calling
+ * {@link #resume(TClient)}, with the same client or a new one, then only asks for the rest.
+ *
+ * @author Sebastian Troy
+ */
+public final class Transfer
+	{
+		private final TClient<?> client;
+		final long streamID;
+		private final String name;
+		private final Path destination;
+		private final FileChannel file;
+		private final long offset;
+		private volatile long received, length = -1L;
+		private final CompletableFuture<Path> completion = new CompletableFuture<Path>();
+
+		/**
+		 * @param file
+		 *            - The destination, open for writing, or <code>null</code> if it could not be opened.
+		 * @param offset
+		 *            - The number of bytes already in the destination, which the stream carries on from.
+		 */
+		Transfer(TClient<?> client, long streamID, String name, Path destination, FileChannel file, long offset)
+			{
+				this.client = client;
+				this.streamID = streamID;
+				this.name = name;
+				this.destination = destination;
+				this.file = file;
+				this.offset = offset;
+				this.received = offset;
+			}
+
+		/**
+		 * @return - The name of the stream, as passed to {@link TServer#openStream(long, String)}.
+		 */
+		public final String getName()
+			{
+				return name;
+			}
+
+		/**
+		 * @return - The file the stream is written to.
+		 */
+		public final Path getDestination()
+			{
+				return destination;
+			}
+
+		/**
+		 * @return - The number of bytes the destination held when this transfer started.
+		 */
+		public final long getOffset()
+			{
+				return offset;
+			}
+
+		/**
+		 * @return - The number of bytes of the stream in the destination so far, including any from earlier transfers.
+		 */
+		public final long getReceived()
+			{
+				return received;
+			}
+
+		/**
+		 * @return - The length of the whole stream, or -1 if the server hasn't said or does not know.
+		 */
+		public final long getLength()
+			{
+				return length;
+			}
+
+		/**
+		 * @return - A future which completes with the destination once the whole stream has arrived, or completes exceptionally if it
+		 *         could not be sent or the connection was lost.
+		 */
+		public final CompletableFuture<Path> getCompletion()
+			{
+				return completion;
+			}
+
+		/**
+		 * Stops the transfer, what has already arrived is kept so that it can be resumed later.
+		 */
+		public final void cancel()
+			{
+				if (fail(new CancellationException("Transfer of " + name + " cancelled")))
+					client.stopTransfer(this);
+			}
+
+		/**
+		 * Asks for the rest of a stream which did not complete.
+		 *
+		 * @param client
+		 *            - The client to fetch the rest with, which may be a new one if this transfer's client was disconnected.
+		 * @return - The transfer of the rest of the stream.
+		 */
+		public final Transfer resume(TClient<?> client)
+			{
+				if (!completion.isDone())
+					throw new IllegalStateException("Transfer of " + name + " has not finished");
+				return client.download(name, destination);
+			}
+
+		/**
+		 * Called by the client's reader when the server starts the stream.
+		 */
+		final void started(long length)
+			{
+				this.length = length < 0L ? -1L : length;
+			}
+
+		/**
+		 * Called by the client's reader with the next chunk of the stream.
+		 */
+		final synchronized void write(ByteBuffer data)
+			{
+				if (completion.isDone())
+					return;
+
+				try
+					{
+						while (data.hasRemaining())
+							received += file.write(data, received);
+					}
+				catch (IOException e)
+					{
+						if (fail(e))
+							client.stopTransfer(this);
+					}
+			}
+
+		/**
+		 * Called by the client's reader once the server has sent all it is going to.
+		 *
+		 * @param failure
+		 *            - The reason the server stopped, or <code>null</code> if the whole stream was sent.
+		 */
+		final synchronized void finish(String failure)
+			{
+				if (failure == null && length >= 0L && received != length)
+					failure = "Stream ended after " + received + " of " + length + " bytes";
+				if (failure != null)
+					{
+						fail(new IOException(failure));
+						return;
+					}
+
+				try
+					{
+						file.close();
+						completion.complete(destination);
+					}
+				catch (IOException e)
+					{
+						completion.completeExceptionally(e);
+					}
+			}
+
+		/**
+		 * @return - <code>true</code> if the transfer had not already finished.
+		 */
+		final synchronized boolean fail(Throwable failure)
+			{
+				if (completion.isDone())
+					return false;
+
+				if (file != null)
+					try
+						{
+							file.close();
+						}
+					catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+				return completion.completeExceptionally(failure);
+			}
+	}
@@ -1,106 +1,163 @@
-package tools.server.chat;
-
-import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import tools.Rand;
-import tools.server.TClient;
-
-/**
- * A simple example implementation of {@link TClient}.
- * <p>
- * This class represents a very simple client for an instant messenger. It sends and receives Strings from the server but relies on another
- * class to provide them and to process/display them.
- * 
- * @author Sebastian Troy
- */
-public class ChatClient extends TClient<String>
-	{
-		private LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<String>();
-		private String clientName, clientID;
-
-		/**
-		 * Connect to the host at the specified address and give the client a random 5 letter digit as a name.
-		 * 
-		 * @param hostAddress
-		 *            - The ip address of the host you wish to connect to.
-		 */
-		public ChatClient(String hostAddress)
-			{
-				this(hostAddress, "" + Rand.int_(10000, 100000));
-			}
-
-		/**
-		 * Connect to the specified host and give the client a specified name
-		 * 
-		 * @param hostAddress
-		 *            - The ip address of the host you wish to connect to.
-		 * @param clientName
-		 *            - The String that will be prepended onto every message in the form "clientName:message"
-		 */
-		public ChatClient(String hostAddress, String clientName)
-			{
-				super(hostAddress, ChatServer.PORT);
-				clientName.replace(':', '.');
-				this.clientName = clientName;
-			}
-
-		public final void setClientName(String clientName)
-			{
-				this.clientName = clientName;
-			}
-
-		/**
-		 * @return - Each String returned represents a unique message. The format of each message is: "ipaddress:clientname:\n message"
-		 */
-		public final ArrayList<String> getMessages()
-			{
-				ArrayList<String> m = new ArrayList<String>();
-				messages.drainTo(m);
-				return m;
-			}
-
-		/**
-		 * Sends a message to the server, prepending the ip address and the {@link ChatClient#clientName} to the message.
-		 * <p>
-		 * "uniqueID:client name:message"
-		 * 
-		 * @param message
-		 *            - The message to be sent.
-		 * @note - ignores empty and null Strings
-		 */
-		public final void sendMessage(String message)
-			{
-				// Ignore null or empty messages
-				if (message == null || message.length() < 2)
-					return;
-
-				message = clientID + ":" + clientName + ":" + message;
-				sendObject(message);
-			}
-
-		/**
-		 * Whenever we receive a String from the server, stick it into an array until it is asked for.
-		 */
-		@Override
-		protected final void processObject(long senderID, String message, boolean personal)
-			{
-				// If server is contacting only us, the message is our unique ID
-				if (senderID == 0L && personal)
-					clientID = message;
-				else
-					messages.add(message);
-			}
-
-		@Override
-		protected void serverDisconnected()
-			{
-				messages.add("0L:Server:Disconnected");
-			}
-
-		@Override
-		protected void kickedFromServer(String reason)
-			{
-				messages.add("0L:Server:Disconnected: " + reason);
-			}
-	}
\ No newline at end of file
+package tools.server.chat;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import tools.Rand;
+import tools.server.TClient;
+import tools.server.TSettings;
+
+/**
+ * A simple example implementation of {@link TClient}.
+ * <p>
+ * This class represents a very simple client for an instant messenger. It sends and receives {@link ChatMessage}s from the server but
+ * relies on another class to provide them and to process/display them.
+ * 
+ * @author Sebastian Troy
+ */
+public class ChatClient extends TClient<ChatObject>
+	{
+		// Not initialised here, the reader thread can deliver the server's history before this class's initialisers have run
+		private LinkedBlockingQueue<ChatMessage> messages;
+		private volatile String clientName;
+		// Also left to its default, 0L until the server says otherwise, as no history is older than that
+		private volatile long historyStart;
+
+		/**
+		 * Connect to the host at the specified address and give the client a random 5 letter digit as a name.
+		 * 
+		 * @param hostAddress
+		 *            - The ip address of the host you wish to connect to.
+		 */
+		public ChatClient(String hostAddress)
+			{
+				this(hostAddress, "" + Rand.int_(10000, 100000));
+			}
+
+		/**
+		 * Connect to the specified host and give the client a specified name
+		 * 
+		 * @param hostAddress
+		 *            - The ip address of the host you wish to connect to.
+		 * @param clientName
+		 *            - The name shown beside every message this client sends.
+		 */
+		public ChatClient(String hostAddress, String clientName)
+			{
+				this(hostAddress, ChatServer.PORT, clientName);
+			}
+
+		/**
+		 * Connect to a server listening on a port other than {@link ChatServer#PORT}, such as one of several federated servers on the same
+		 * machine.
+		 * 
+		 * @param hostAddress
+		 *            - The IP address of the server.
+		 * @param port
+		 *            - The port the server is listening on.
+		 * @param clientName
+		 *            - The name shown beside this client's messages.
+		 */
+		public ChatClient(String hostAddress, int port, String clientName)
+			{
+				super(hostAddress, port, new ChatCodec(), new TSettings().setFramed(true));
+				this.clientName = clientName.intern();
+			}
+
+		private final synchronized LinkedBlockingQueue<ChatMessage> messages()
+			{
+				if (messages == null)
+					messages = new LinkedBlockingQueue<ChatMessage>();
+				return messages;
+			}
+
+		public final void setClientName(String clientName)
+			{
+				this.clientName = clientName.intern();
+			}
+
+		/**
+		 * @return - Each message received since this was last called, oldest first.
+		 */
+		public final ArrayList<ChatMessage> getMessages()
+			{
+				ArrayList<ChatMessage> m = new ArrayList<ChatMessage>();
+				messages().drainTo(m);
+				return m;
+			}
+
+		/**
+		 * @return - The sequence number of the first message the server sent this client as history when it joined, pass it to
+		 *         {@link #fetchHistory(long, int)} for the messages before it.
+		 */
+		public final long getHistoryStart()
+			{
+				return historyStart;
+			}
+
+		/**
+		 * Asks the server for a page of the messages sent before those this client already has, such as when the user scrolls back past
+		 * the oldest of them. Only the latest messages are sent as a client joins, however long the server has been running. This method
+		 * is thread safe, and returns straight away.
+		 * 
+		 * @param beforeSequence
+		 *            - The sequence number of the message the page ends before, either {@link #getHistoryStart()} or the first of the last
+		 *            page fetched, see {@link HistoryPage#getFirst()}.
+		 * @param limit
+		 *            - The most messages to fetch, the server sends no more than {@link ChatServer#MAX_PAGE_MESSAGES}.
+		 * @return - A future which completes with the page, or completes exceptionally if the server does not answer.
+		 */
+		public final CompletableFuture<HistoryPage> fetchHistory(long beforeSequence, int limit)
+			{
+				return request(new HistoryRequest(beforeSequence, limit)).thenApply(reply -> (HistoryPage) reply);
+			}
+
+		/**
+		 * Sends a message to the server, which passes it on to every client with this client's uniqueID and
+		 * {@link ChatClient#clientName}.
+		 * 
+		 * @param message
+		 *            - The message to be sent.
+		 * @note - ignores empty and null Strings
+		 */
+		public final void sendMessage(String message)
+			{
+				// Ignore null or empty messages
+				if (message == null || message.length() < 2)
+					return;
+
+				// Don't wait for the message to be written, this is usually called from the event dispatch thread
+				sendAsync(new ChatMessage(getUniqueID(), clientName, ChatMessage.NO_SEQUENCE, System.currentTimeMillis(), message));
+			}
+
+		/**
+		 * Whenever we receive a message from the server, stick it into an array until it is asked for.
+		 */
+		@Override
+		protected final void processObject(long senderID, ChatObject object, boolean personal)
+			{
+				if (object instanceof ChatMessage)
+					messages().add((ChatMessage) object);
+				// The server says where the history it is about to send starts, before sending it
+				else if (object instanceof HistoryPage && personal)
+					historyStart = ((HistoryPage) object).getFirst();
+			}
+
+		@Override
+		protected void serverDisconnected()
+			{
+				messages().add(notice("Disconnected"));
+			}
+
+		@Override
+		protected void kickedFromServer(String reason)
+			{
+				messages().add(notice("Disconnected: " + reason));
+			}
+
+		private static ChatMessage notice(String body)
+			{
+				return new ChatMessage(ChatMessage.SERVER_ID, "Server", ChatMessage.NO_SEQUENCE, System.currentTimeMillis(), body);
+			}
+	}
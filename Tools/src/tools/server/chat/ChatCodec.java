@@ -0,0 +1,135 @@
+package tools.server.chat;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import tools.server.Codec;
+
+/**
+ * Encodes what a {@link ChatServer} and its {@link ChatClient}s pass between each other: each object is a byte saying what it is followed
+ * by its fields, numbers as they are and text as its length followed by its UTF-8 bytes.
+ *
+ * @author Sebastian Troy
+ */
+final class ChatCodec implements Codec<ChatObject>
+	{
+		private static final byte MESSAGE = 0, REQUEST = 1, PAGE = 2;
+
+		/**
+		 * Encodes messages alone, without saying what they are, for the {@link MessageLog}.
+		 */
+		static final Codec<ChatMessage> MESSAGES = new Codec<ChatMessage>()
+			{
+				@Override
+				public ByteBuffer encode(ChatMessage message, ByteBuffer buffer)
+					{
+						return putMessage(message, buffer);
+					}
+
+				@Override
+				public ChatMessage decode(ByteBuffer buffer) throws IOException
+					{
+						return getMessage(buffer);
+					}
+			};
+
+		@Override
+		public ByteBuffer encode(ChatObject object, ByteBuffer buffer) throws IOException
+			{
+				if (object instanceof ChatMessage)
+					return putMessage((ChatMessage) object, Codec.ensureRemaining(buffer, 1).put(MESSAGE));
+
+				if (object instanceof HistoryRequest)
+					{
+						HistoryRequest request = (HistoryRequest) object;
+						return Codec.ensureRemaining(buffer, 13).put(REQUEST).putLong(request.before).putInt(request.limit);
+					}
+
+				if (object instanceof HistoryPage)
+					{
+						HistoryPage page = (HistoryPage) object;
+						buffer = Codec.ensureRemaining(buffer, 21).put(PAGE).putLong(page.getFirst()).putLong(page.getOldest());
+						buffer.putInt(page.getMessages().size());
+						for (ChatMessage message : page.getMessages())
+							buffer = putMessage(message, buffer);
+						return buffer;
+					}
+
+				throw new NotSerializableException(object == null ? "null" : object.getClass().getName());
+			}
+
+		@Override
+		public ChatObject decode(ByteBuffer buffer) throws IOException
+			{
+				if (!buffer.hasRemaining())
+					throw new StreamCorruptedException("Empty chat object");
+
+				switch (buffer.get())
+					{
+						case MESSAGE:
+							return getMessage(buffer);
+						case REQUEST:
+							if (buffer.remaining() < 12)
+								throw new StreamCorruptedException("Truncated history request");
+							return new HistoryRequest(buffer.getLong(), buffer.getInt());
+						case PAGE:
+							if (buffer.remaining() < 20)
+								throw new StreamCorruptedException("Truncated history page");
+							long first = buffer.getLong(), oldest = buffer.getLong();
+							int count = buffer.getInt();
+							if (count < 0 || count > buffer.remaining() / 32)
+								throw new StreamCorruptedException("Invalid history page of " + count + " messages");
+							ArrayList<ChatMessage> messages = new ArrayList<ChatMessage>(count);
+							for (int i = 0; i < count; i++)
+								messages.add(getMessage(buffer));
+							return new HistoryPage(first, oldest, messages);
+						default:
+							throw new StreamCorruptedException("Unknown chat object");
+					}
+			}
+
+		private static ByteBuffer putMessage(ChatMessage message, ByteBuffer buffer)
+			{
+				buffer = Codec.ensureRemaining(buffer, 24).putLong(message.getSenderID()).putLong(message.getSequence()).putLong(message.getTimestamp());
+				buffer = putText(message.getSenderName(), buffer);
+				return putText(message.getBody(), buffer);
+			}
+
+		private static ChatMessage getMessage(ByteBuffer buffer) throws StreamCorruptedException
+			{
+				if (buffer.remaining() < 32)
+					throw new StreamCorruptedException("Truncated chat message");
+				long senderID = buffer.getLong(), sequence = buffer.getLong(), timestamp = buffer.getLong();
+				String senderName = getText(buffer);
+				return new ChatMessage(senderID, senderName, sequence, timestamp, getText(buffer));
+			}
+
+		private static ByteBuffer putText(String text, ByteBuffer buffer)
+			{
+				byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+				return Codec.ensureRemaining(buffer, 4 + bytes.length).putInt(bytes.length).put(bytes);
+			}
+
+		private static String getText(ByteBuffer buffer) throws StreamCorruptedException
+			{
+				int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+				if (length < 0 || length > buffer.remaining())
+					throw new StreamCorruptedException("Truncated chat message");
+
+				String text;
+				if (buffer.hasArray())
+					text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+				else
+					{
+						byte[] bytes = new byte[length];
+						buffer.duplicate().get(bytes);
+						text = new String(bytes, StandardCharsets.UTF_8);
+					}
+				buffer.position(buffer.position() + length);
+				return text;
+			}
+	}
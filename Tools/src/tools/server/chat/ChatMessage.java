@@ -0,0 +1,101 @@
+package tools.server.chat;
+
+/**
+ * A single message in a {@link ChatServer}'s conversation. The server fills in who sent it, when, and where it is in the history, so a
+ * client can't pretend to be another.
+ *
+ * @author Sebastian Troy
+ */
+public final class ChatMessage implements ChatObject
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The sender of notices from the server itself, such as when it shuts down.
+		 */
+		public static final long SERVER_ID = 0L;
+		/**
+		 * The sequence number of a message which is not part of the history, such as a notice or one not yet sent.
+		 */
+		public static final long NO_SEQUENCE = -1L;
+
+		private final long senderID, sequence, timestamp;
+		private final String senderName, body;
+
+		/**
+		 * @param senderID
+		 *            - The uniqueID of the client which sent the message, or {@link #SERVER_ID}.
+		 * @param senderName
+		 *            - The name the sender goes by, which is interned, as a conversation has far fewer names than messages.
+		 * @param sequence
+		 *            - The message's sequence number, or {@link #NO_SEQUENCE}.
+		 * @param timestamp
+		 *            - When the message was sent, in milliseconds since the epoch.
+		 * @param body
+		 *            - What the message says.
+		 */
+		public ChatMessage(long senderID, String senderName, long sequence, long timestamp, String body)
+			{
+				this.senderID = senderID;
+				this.senderName = senderName.intern();
+				this.sequence = sequence;
+				this.timestamp = timestamp;
+				this.body = body;
+			}
+
+		/**
+		 * @return - The uniqueID of the client which sent the message, or {@link #SERVER_ID}.
+		 */
+		public final long getSenderID()
+			{
+				return senderID;
+			}
+
+		/**
+		 * @return - The name the sender went by when it sent the message. Names are interned, so two messages from the same name share the
+		 *         same String.
+		 */
+		public final String getSenderName()
+			{
+				return senderName;
+			}
+
+		/**
+		 * @return - The sequence number the message was given by the server its sender is connected to, one more than that server's
+		 *         message before it, or {@link #NO_SEQUENCE}. In a federation each server numbers the messages of its own clients.
+		 */
+		public final long getSequence()
+			{
+				return sequence;
+			}
+
+		/**
+		 * @return - When the server received the message, in milliseconds since the epoch.
+		 */
+		public final long getTimestamp()
+			{
+				return timestamp;
+			}
+
+		/**
+		 * @return - What the message says.
+		 */
+		public final String getBody()
+			{
+				return body;
+			}
+
+		/**
+		 * Interns the name of a message which arrived by Java serialisation, as one from the codec already is.
+		 */
+		private Object readResolve()
+			{
+				return new ChatMessage(senderID, senderName, sequence, timestamp, body);
+			}
+
+		@Override
+		public final String toString()
+			{
+				return senderID + ":" + senderName + ":" + body;
+			}
+	}
@@ -0,0 +1,12 @@
+package tools.server.chat;
+
+import java.io.Serializable;
+
+/**
+ * Anything a {@link ChatServer} and its {@link ChatClient}s pass between each other: a {@link ChatMessage}, or a request for a page of the
+ * history and the {@link HistoryPage} sent back. {@link ChatCodec} knows how to encode each of them.
+ *
+ * @author Sebastian Troy
+ */
+public interface ChatObject extends Serializable
+	{}
@@ -1,66 +1,318 @@
-package tools.server.chat;
-
-import java.util.ArrayList;
-
-import tools.server.TServer;
-
-/**
- * A simple example implementation of a {@link TServer}.
- * 
- * @author Sebastian Troy
- */
-public class ChatServer extends TServer<String>
-	{
-		public static final int PORT = 10301;
-		
-		/**
-		 * Keep a list of all messages sent this session so we can send them to clients as they join.
-		 */
-		private final ArrayList<String> messageLog = new ArrayList<String>();
-
-		public ChatServer()
-			{
-				super(PORT);
-			}
-
-		/**
-		 * @param notify
-		 *            - if <code>true</code> A message is sent to all connected clients, notifying them that the server has closed.
-		 */
-		public final void closeServer(boolean notify)
-			{
-				if (notify)
-					sendToAll(0L, "Server has disconnected");
-
-				super.closeServer();
-			}
-
-		/**
-		 * Send a private message to the client, informing it of the private ID it was allocated. Now the client will always send out messages starting with its
-		 * privateID.
-		 */
-		@Override
-		protected boolean clientConnected(long uniqueID)
-			{
-				// Inform the client of its uniqueID (0L is an ID reserved for the server).
-				sendToClient(0L, "" + uniqueID, uniqueID);
-				// Get the client up to date with past messages
-				for (String s : messageLog)
-					sendToClient(-1L, s, uniqueID);
-				return true;
-			}
-
-		/**
-		 * Do nothing, rely on users to say goodbye
-		 */
-		@Override
-		protected void clientDisconnected(long uniqueID)
-			{}
-
-		@Override
-		protected void processObject(long senderID, String message)
-			{
-				messageLog.add(message);
-				sendToAll(senderID, message);
-			}
-	}
\ No newline at end of file
+package tools.server.chat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+import tools.server.TServer;
+import tools.server.TSettings;
+
+/**
+ * A simple example implementation of a {@link TServer}.
+ * 
+ * @author Sebastian Troy
+ */
+public class ChatServer extends TServer<ChatObject>
+	{
+		public static final int PORT = 10301;
+		/**
+		 * The topic the conversation is sent to, each client is subscribed to it once it has been sent the history.
+		 */
+		public static final String TOPIC = "chat";
+		/**
+		 * The senderID the history is sent to a client under, rather than as the messages are sent, each message still says who sent it.
+		 */
+		public static final long HISTORY_ID = -1L;
+		/**
+		 * How many of the latest messages a client is sent as it joins, older messages are fetched a page at a time as they are needed.
+		 */
+		public static final int JOIN_MESSAGES = 100;
+		/**
+		 * The most messages sent in a single page of history, however many are asked for.
+		 */
+		public static final int MAX_PAGE_MESSAGES = 500;
+		/**
+		 * How many messages are sent to a client in each batch of history.
+		 */
+		private static final int BATCH_MESSAGES = 256;
+		
+		/**
+		 * Every message sent, kept on disk so that the conversation carries on after a restart. Clients are sent the latest as they join.
+		 */
+		private final MessageLog<ChatMessage> messageLog;
+		/**
+		 * Held while a message is logged and sent, and while a client finishes catching up, so that each message reaches a joining client
+		 * exactly once, either as history or live.
+		 */
+		private final ReentrantLock liveLock = new ReentrantLock();
+
+		public ChatServer()
+			{
+				this(new TSettings());
+			}
+
+		/**
+		 * @param settings
+		 *            - Decides how the server will service its clients, e.g. which {@link TSettings.Engine} to use.
+		 */
+		public ChatServer(TSettings settings)
+			{
+				this(PORT, settings);
+			}
+
+		/**
+		 * Several servers may share one chat by linking them with {@link TSettings#setFederation(int, int, String...)}, each of them
+		 * listening on its own port if they are on the same machine. The history is kept in the directory <code>chat-log-</code> followed
+		 * by the port.
+		 * 
+		 * @param port
+		 *            - The port clients connect to.
+		 * @param settings
+		 *            - Decides how the server will service its clients, e.g. which {@link TSettings.Engine} to use.
+		 */
+		public ChatServer(int port, TSettings settings)
+			{
+				this(port, settings, Paths.get("chat-log-" + port));
+			}
+
+		/**
+		 * @param port
+		 *            - The port clients connect to.
+		 * @param settings
+		 *            - Decides how the server will service its clients, e.g. which {@link TSettings.Engine} to use.
+		 * @param logDirectory
+		 *            - Where the history is kept, see {@link MessageLog}.
+		 */
+		public ChatServer(int port, TSettings settings, Path logDirectory)
+			{
+				super(port, new ChatCodec(), settings);
+
+				MessageLog<ChatMessage> log = null;
+				try
+					{
+						log = new MessageLog<ChatMessage>(logDirectory, ChatCodec.MESSAGES);
+					}
+				catch (IOException e)
+					{
+						// Messages are still passed on, they just aren't remembered
+						e.printStackTrace();
+					}
+				messageLog = log;
+			}
+
+		/**
+		 * @param notify
+		 *            - if <code>true</code> A message is sent to all connected clients, notifying them that the server has closed.
+		 */
+		public final void closeServer(boolean notify)
+			{
+				if (notify)
+					sendToAll(ChatMessage.SERVER_ID, new ChatMessage(ChatMessage.SERVER_ID, "Server", ChatMessage.NO_SEQUENCE, System.currentTimeMillis(), "Server has disconnected"));
+
+				super.closeServer();
+				if (messageLog != null)
+					try
+						{
+							messageLog.close();
+						}
+					catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+			}
+
+		/**
+		 * Let every client in, each is sent the history once the server knows what it can do, see {@link #clientReady(long)}.
+		 */
+		@Override
+		protected boolean clientConnected(long uniqueID)
+			{
+				return true;
+			}
+
+		/**
+		 * Get the client up to date with the latest messages, on one of the server's workers rather than the thread which reads it.
+		 */
+		@Override
+		protected void clientReady(long uniqueID)
+			{
+				execute(() -> catchUp(uniqueID));
+			}
+
+		/**
+		 * Sends the client the latest messages in batches straight from the log, while messages carry on being sent to everyone else. Only
+		 * the last few, those sent since the bulk of the history was read, are sent while holding up the conversation, after which the
+		 * client is subscribed and receives the rest as they are sent.
+		 */
+		private final void catchUp(long uniqueID)
+			{
+				if (messageLog == null)
+					{
+						subscribe(uniqueID, TOPIC, null);
+						return;
+					}
+
+				try
+					{
+						MessageLog<ChatMessage>.Cursor cursor = messageLog.cursor(Math.max(messageLog.first(), messageLog.next() - JOIN_MESSAGES));
+						List<ChatMessage> batch = cursor.next(BATCH_MESSAGES);
+						// The client needs to know where its history starts to fetch what came before
+						long start = cursor.position() - batch.size();
+						sendToClient(HISTORY_ID, new HistoryPage(start, Math.min(start, messageLog.first()), new ArrayList<ChatMessage>()), uniqueID);
+						while (batch.size() == BATCH_MESSAGES)
+							{
+								sendBatchToClient(HISTORY_ID, batch, uniqueID);
+								batch = cursor.next(BATCH_MESSAGES);
+							}
+						List<ChatMessage> last = batch;
+
+						liveLock.lock();
+						try
+							{
+								subscribe(uniqueID, TOPIC, () ->
+									{
+										try
+											{
+												if (!last.isEmpty())
+													sendBatchToClient(HISTORY_ID, last, uniqueID);
+												// Messages sent before the lock was taken are still to be read, even if the log seemed to be read to its end
+												List<ChatMessage> rest = cursor.next(BATCH_MESSAGES);
+												while (!rest.isEmpty())
+													{
+														sendBatchToClient(HISTORY_ID, rest, uniqueID);
+														rest = cursor.next(BATCH_MESSAGES);
+													}
+											}
+										catch (IOException e)
+											{
+												e.printStackTrace();
+											}
+									});
+							}
+						finally
+							{
+								liveLock.unlock();
+							}
+					}
+				catch (IOException e)
+					{
+						// Without its history the client can still join the conversation
+						e.printStackTrace();
+						subscribe(uniqueID, TOPIC, null);
+					}
+			}
+
+		/**
+		 * Do nothing, rely on users to say goodbye
+		 */
+		@Override
+		protected void clientDisconnected(long uniqueID)
+			{}
+
+		/**
+		 * Passes a client's message on to everyone, having filled in who sent it and when, and added it to the history.
+		 */
+		@Override
+		protected void processObject(long senderID, ChatObject object)
+			{
+				// Nothing else a client sends is part of the conversation
+				if (!(object instanceof ChatMessage))
+					return;
+
+				ChatMessage sent = (ChatMessage) object;
+				liveLock.lock();
+				try
+					{
+						ChatMessage message = log(sequence -> new ChatMessage(senderID, sent.getSenderName(), sequence, System.currentTimeMillis(), sent.getBody()));
+						sendToTopic(TOPIC, senderID, message);
+					}
+				finally
+					{
+						liveLock.unlock();
+					}
+			}
+
+		/**
+		 * Answers a client's request for a page of history, see {@link ChatClient#fetchHistory(long, int)}. The page is read from the log
+		 * by one of the server's workers, so a client scrolling back holds up no one else.
+		 */
+		@Override
+		protected void processRequest(long senderID, ChatObject object, Reply reply)
+			{
+				// Anything else goes unanswered
+				if (object instanceof HistoryRequest)
+					execute(() -> sendPage((HistoryRequest) object, reply));
+			}
+
+		/**
+		 * Reads a page of the history from the log and sends it, which only ever holds a page of messages at a time.
+		 */
+		private final void sendPage(HistoryRequest request, Reply reply)
+			{
+				long before = request.before;
+				int limit = Math.max(0, Math.min(MAX_PAGE_MESSAGES, request.limit));
+				if (messageLog == null)
+					{
+						reply.send(new HistoryPage(before, before, new ArrayList<ChatMessage>()));
+						return;
+					}
+
+				try
+					{
+						long oldest = messageLog.first();
+						before = Math.min(before, messageLog.next());
+						MessageLog<ChatMessage>.Cursor cursor = messageLog.cursor(Math.max(oldest, before - limit));
+						List<ChatMessage> messages = cursor.next((int) Math.max(0L, before - cursor.position()));
+						// Messages deleted while the page was read are skipped, so it may start later and run on past where it was asked to end
+						long first = cursor.position() - messages.size();
+						if (cursor.position() > before)
+							messages = messages.subList(0, (int) Math.max(0L, before - first));
+						first = Math.min(first, before);
+						reply.send(new HistoryPage(first, Math.min(first, messageLog.first()), messages));
+					}
+				catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+			}
+
+		/**
+		 * Keep the messages sent to the other servers' clients too, so that every client joins the same conversation. Each server numbers
+		 * the messages in its own history, so a message from a peer is given this server's next sequence number before it is logged and sent
+		 * on.
+		 */
+		@Override
+		protected ChatObject processRelayed(long senderID, ChatObject object, String topic)
+			{
+				// The server's own notices are not part of the conversation
+				if (!TOPIC.equals(topic) || senderID == ChatMessage.SERVER_ID || !(object instanceof ChatMessage))
+					return object;
+
+				ChatMessage relayed = (ChatMessage) object;
+				return log(sequence -> new ChatMessage(relayed.getSenderID(), relayed.getSenderName(), sequence, relayed.getTimestamp(), relayed.getBody()));
+			}
+
+		/**
+		 * @param message
+		 *            - Makes the message, given its sequence number in the history.
+		 * @return - The message, with {@link ChatMessage#NO_SEQUENCE} if it could not be added to the history.
+		 */
+		private final ChatMessage log(LongFunction<ChatMessage> message)
+			{
+				if (messageLog != null)
+					try
+						{
+							return messageLog.append(message);
+						}
+					catch (IOException e)
+						{
+							// The message is still passed on, it just isn't remembered
+							e.printStackTrace();
+						}
+				return message.apply(ChatMessage.NO_SEQUENCE);
+			}
+	}
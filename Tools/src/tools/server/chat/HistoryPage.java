@@ -0,0 +1,57 @@
+package tools.server.chat;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A run of consecutive messages from a {@link ChatServer}'s history, see {@link ChatClient#fetchHistory(long, int)}. A client is also sent
+ * an empty page as it joins, saying where the history it is about to be sent starts.
+ *
+ * @author Sebastian Troy
+ */
+public final class HistoryPage implements ChatObject
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final long first, oldest;
+		private final List<ChatMessage> messages;
+
+		HistoryPage(long first, long oldest, List<ChatMessage> messages)
+			{
+				this.first = first;
+				this.oldest = oldest;
+				this.messages = Collections.unmodifiableList(messages);
+			}
+
+		/**
+		 * @return - The position in the history of the first message in the page, which is where the next older page ends.
+		 */
+		public final long getFirst()
+			{
+				return first;
+			}
+
+		/**
+		 * @return - The position in the history of the oldest message the server still has.
+		 */
+		final long getOldest()
+			{
+				return oldest;
+			}
+
+		/**
+		 * @return - <code>true</code> if the server has messages older than this page.
+		 */
+		public final boolean hasOlder()
+			{
+				return first > oldest;
+			}
+
+		/**
+		 * @return - The messages, oldest first.
+		 */
+		public final List<ChatMessage> getMessages()
+			{
+				return messages;
+			}
+	}
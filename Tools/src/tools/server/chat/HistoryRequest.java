@@ -0,0 +1,20 @@
+package tools.server.chat;
+
+/**
+ * Asks a {@link ChatServer} for a page of its history, see {@link ChatClient#fetchHistory(long, int)}.
+ *
+ * @author Sebastian Troy
+ */
+final class HistoryRequest implements ChatObject
+	{
+		private static final long serialVersionUID = 1L;
+
+		final long before;
+		final int limit;
+
+		HistoryRequest(long before, int limit)
+			{
+				this.before = before;
+				this.limit = limit;
+			}
+	}
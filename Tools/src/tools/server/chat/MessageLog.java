@@ -0,0 +1,560 @@
+package tools.server.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongFunction;
+
+import tools.server.Codec;
+
+/**
+ * The history of a {@link ChatServer}, an append-only log of messages kept in a directory of segment files so that it survives restarts.
+ * <p>
+ * Messages are appended to the newest segment, which is memory mapped, so appending is a copy into memory the operating system writes to
+ * disk in its own time. Once a segment is full a new one is started, and once there are more than the retention limit the oldest is
+ * deleted. Only the latest messages are kept on the heap, for the clients which join, everything older is read back from disk when asked
+ * for, so the heap used is the same however long the server runs.
+ * <p>
+ * Each message has a sequence number, one more than the message before it, which stays the same across restarts. Each segment is named
+ * after the sequence number of its first message and holds a run of records, each the length of the message plus one followed by the
+ * message as written by the log's {@link Codec}. A length of 0 marks the end of a segment which is not yet full.
+ *
+ * @author Sebastian Troy
+ *
+ * @param <DataType>
+ *            - The class of message kept in the log.
+ */
+public final class MessageLog<DataType> implements Closeable
+	{
+		/**
+		 * The default size of a segment, in bytes.
+		 */
+		public static final int SEGMENT_BYTES = 1 << 20;
+		/**
+		 * The default number of segments kept, older messages are deleted.
+		 */
+		public static final int MAX_SEGMENTS = 16;
+		/**
+		 * The default number of the latest messages kept on the heap.
+		 */
+		public static final int TAIL_MESSAGES = 1000;
+
+		private static final String SUFFIX = ".log";
+
+		private final Path directory;
+		private final Codec<DataType> codec;
+		private final int segmentBytes, maxSegments;
+		private final FileChannel lockChannel;
+		private final FileLock lock;
+		// Guards everything below, a lock rather than a monitor so that a virtual thread appending doesn't pin its carrier
+		private final ReentrantLock appendLock = new ReentrantLock();
+		private final ArrayList<Segment> segments = new ArrayList<Segment>();
+		private FileChannel activeChannel;
+		private MappedByteBuffer active;
+		// The latest messages, oldest first from tailStart
+		private final Object[] tail;
+		private int tailStart = 0, tailSize = 0;
+		private long nextSequence = 0L;
+		private boolean closed = false;
+
+		/**
+		 * Opens a log with the default limits, see {@link #MessageLog(Path, Codec, int, int, int)}.
+		 */
+		public MessageLog(Path directory, Codec<DataType> codec) throws IOException
+			{
+				this(directory, codec, SEGMENT_BYTES, MAX_SEGMENTS, TAIL_MESSAGES);
+			}
+
+		/**
+		 * Opens the log in a directory, carrying on from whatever it already holds.
+		 *
+		 * @param directory
+		 *            - The directory holding the segments, which is created if it does not exist. Only one log may use it at a time.
+		 * @param codec
+		 *            - Turns each message into the bytes kept on disk and back again.
+		 * @param segmentBytes
+		 *            - The size of each segment. A message too large to fit in one is given a segment of its own.
+		 * @param maxSegments
+		 *            - How many segments are kept before the oldest is deleted, so at most roughly this many times segmentBytes are kept.
+		 * @param tailMessages
+		 *            - How many of the latest messages are kept on the heap, see {@link #tail()}.
+		 * @throws IOException
+		 *             - If the directory can't be used, e.g. because another log already has it open.
+		 */
+		public MessageLog(Path directory, Codec<DataType> codec, int segmentBytes, int maxSegments, int tailMessages) throws IOException
+			{
+				if (segmentBytes < 64 || maxSegments < 1 || tailMessages < 1)
+					throw new IllegalArgumentException("segmentBytes must be at least 64, maxSegments and tailMessages at least 1");
+
+				this.directory = directory;
+				this.codec = codec;
+				this.segmentBytes = segmentBytes;
+				this.maxSegments = maxSegments;
+				this.tail = new Object[tailMessages];
+
+				Files.createDirectories(directory);
+				lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock;
+				try
+					{
+						lock = lockChannel.tryLock();
+					}
+				catch (OverlappingFileLockException e)
+					{
+						// Held by another log in this process
+						lock = null;
+					}
+				this.lock = lock;
+				if (lock == null)
+					{
+						lockChannel.close();
+						throw new IOException(directory + " is already in use by another message log");
+					}
+
+				try
+					{
+						recover();
+					}
+				catch (IOException | RuntimeException e)
+					{
+						closeFiles();
+						throw e;
+					}
+			}
+
+		/**
+		 * Finds the segments already in the directory, carries on appending to the newest and reads the latest messages into the tail.
+		 */
+		private final void recover() throws IOException
+			{
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX))
+					{
+						for (Path file : files)
+							{
+								String name = file.getFileName().toString();
+								try
+									{
+										segments.add(new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file));
+									}
+								catch (NumberFormatException e)
+									{
+										// Not one of ours
+									}
+							}
+					}
+				Collections.sort(segments, (a, b) -> Long.compare(a.first, b.first));
+
+				if (segments.isEmpty())
+					{
+						startSegment(0L, segmentBytes);
+						return;
+					}
+
+				Segment newest = segments.get(segments.size() - 1);
+				activeChannel = FileChannel.open(newest.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				// A newest segment left empty, e.g. by a crash just after it was created, is carried on with as if it had just been started
+				long size = activeChannel.size();
+				active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0L, size < 4L ? segmentBytes : size);
+				long count = 0L;
+				while (active.remaining() >= 4)
+					{
+						int length = active.getInt(active.position()) - 1;
+						if (length < 0 || length > active.remaining() - 4)
+							break;
+						active.position(active.position() + 4 + length);
+						count++;
+					}
+				nextSequence = newest.first + count;
+
+				for (DataType message : read(Math.max(first(), nextSequence - tail.length), tail.length))
+					addToTail(message);
+			}
+
+		/**
+		 * Adds a message to the end of the log. This method is thread safe.
+		 *
+		 * @return - The message's sequence number.
+		 * @throws IOException
+		 *             - If a new segment was needed but could not be created, or the log is closed.
+		 */
+		public final long append(DataType message) throws IOException
+			{
+				ByteBuffer bytes = encode(message);
+				appendLock.lock();
+				try
+					{
+						write(message, bytes);
+						return nextSequence++;
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+			}
+
+		/**
+		 * Adds a message which holds its own sequence number to the end of the log. The message is made once its sequence number is known,
+		 * so it should be quick to make, as appends wait for it. This method is thread safe.
+		 *
+		 * @param message
+		 *            - Makes the message, given its sequence number.
+		 * @return - The message.
+		 * @throws IOException
+		 *             - If a new segment was needed but could not be created, or the log is closed.
+		 */
+		public final DataType append(LongFunction<? extends DataType> message) throws IOException
+			{
+				appendLock.lock();
+				try
+					{
+						DataType numbered = message.apply(nextSequence);
+						write(numbered, encode(numbered));
+						nextSequence++;
+						return numbered;
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+			}
+
+		private final ByteBuffer encode(DataType message) throws IOException
+			{
+				ByteBuffer bytes = codec.encode(message, ByteBuffer.allocate(256));
+				bytes.flip();
+				return bytes;
+			}
+
+		/**
+		 * Writes a message to the active segment, starting a new one if it is full. The caller holds the lock.
+		 */
+		private final void write(DataType message, ByteBuffer bytes) throws IOException
+			{
+				if (closed)
+					throw new IOException("The message log is closed");
+
+				int length = bytes.remaining();
+				if (active.remaining() < length + 4)
+					startSegment(nextSequence, Math.max(segmentBytes, length + 8));
+
+				// The message goes in before its length, so that a reader never sees a length without the message behind it
+				int start = active.position();
+				active.position(start + 4);
+				active.put(bytes);
+				active.putInt(start, length + 1);
+				addToTail(message);
+			}
+
+		/**
+		 * Seals the active segment and starts a new one, deleting the oldest segments beyond the retention limit.
+		 */
+		private final void startSegment(long first, int bytes) throws IOException
+			{
+				if (active != null)
+					{
+						active.force();
+						activeChannel.close();
+					}
+
+				Segment segment = new Segment(first, directory.resolve(String.format("%020d", first) + SUFFIX));
+				activeChannel = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0L, bytes);
+				// A segment with nothing in it yet has the same file, which is made larger rather than listed twice
+				if (!segments.isEmpty() && segments.get(segments.size() - 1).first == first)
+					segments.remove(segments.size() - 1);
+				segments.add(segment);
+
+				while (segments.size() > maxSegments)
+					try
+						{
+							Files.deleteIfExists(segments.remove(0).file);
+						}
+					catch (IOException e)
+						{
+							// e.g. the file is still mapped on Windows, it is no longer part of the log either way
+							e.printStackTrace();
+						}
+			}
+
+		private final void addToTail(DataType message)
+			{
+				if (tailSize < tail.length)
+					tail[(tailStart + tailSize++) % tail.length] = message;
+				else
+					{
+						tail[tailStart] = message;
+						tailStart = (tailStart + 1) % tail.length;
+					}
+			}
+
+		/**
+		 * @return - A copy of the latest messages, oldest first, without touching the disk. This method is thread safe.
+		 */
+		@SuppressWarnings("unchecked")
+		public final List<DataType> tail()
+			{
+				appendLock.lock();
+				try
+					{
+						ArrayList<DataType> messages = new ArrayList<DataType>(tailSize);
+						for (int i = 0; i < tailSize; i++)
+							messages.add((DataType) tail[(tailStart + i) % tail.length]);
+						return messages;
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+			}
+
+		/**
+		 * Reads messages back from the log, from the tail if they are in it, otherwise from disk. This method is thread safe, appends carry
+		 * on while older segments are read.
+		 *
+		 * @param from
+		 *            - The sequence number of the first message to read. Messages which have been deleted are skipped.
+		 * @param max
+		 *            - The most messages to read.
+		 * @return - The messages, oldest first, with sequence numbers from <code>max(from, first())</code> onwards.
+		 */
+		public final List<DataType> read(long from, int max) throws IOException
+			{
+				ArrayList<DataType> messages = new ArrayList<DataType>();
+				read(from, max, messages);
+				return messages;
+			}
+
+		/**
+		 * Adds messages read back from the log to a list, see {@link #read(long, int)}.
+		 *
+		 * @return - The sequence number of the message after the last one read. The messages read are always consecutive, so this is also
+		 *         where a reader which wants every message kept should carry on from.
+		 */
+		@SuppressWarnings("unchecked")
+		private final long read(long from, int max, List<DataType> messages) throws IOException
+			{
+				ArrayList<Segment> sealed;
+				ByteBuffer unsealed;
+				long unsealedFirst;
+
+				appendLock.lock();
+				try
+					{
+						from = Math.max(from, first());
+						long to = Math.min(nextSequence, from + max);
+						if (from >= to)
+							return from;
+
+						// Everything in the tail is already on the heap
+						long tailFirst = nextSequence - tailSize;
+						if (from >= tailFirst)
+							{
+								for (long s = from; s < to; s++)
+									messages.add((DataType) tail[(int) ((tailStart + s - tailFirst) % tail.length)]);
+								return to;
+							}
+
+						// The bytes already written to the active segment never change, so can be read once the lock is released
+						sealed = new ArrayList<Segment>(segments.subList(0, segments.size() - 1));
+						unsealedFirst = segments.get(segments.size() - 1).first;
+						unsealed = active.duplicate();
+						unsealed.flip();
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+
+				for (int i = 0; i < sealed.size() && messages.size() < max; i++)
+					{
+						Segment segment = sealed.get(i);
+						long next = i + 1 < sealed.size() ? sealed.get(i + 1).first : unsealedFirst;
+						if (from < next)
+							try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ))
+								{
+									// Mapped rather than read onto the heap, so only the messages asked for are copied out of it
+									from = readRecords(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()), segment.first, from, max, messages);
+								}
+							catch (NoSuchFileException e)
+								{
+									// Deleted by the retention limit since we looked
+									from = next;
+								}
+					}
+				if (messages.size() < max)
+					from = readRecords(unsealed, unsealedFirst, from, max, messages);
+				return from;
+			}
+
+		/**
+		 * @param from
+		 *            - The sequence number of the first message to read, see {@link #read(long, int)}.
+		 * @return - A cursor which reads the log from there on, a batch at a time.
+		 */
+		public final Cursor cursor(long from)
+			{
+				return new Cursor(from);
+			}
+
+		/**
+		 * Adds the messages from a segment to the list, starting from a sequence number and stopping once there are max.
+		 *
+		 * @return - The sequence number of the message after the last one read from the segment.
+		 */
+		private final long readRecords(ByteBuffer bytes, long sequence, long from, int max, List<DataType> messages) throws IOException
+			{
+				while (bytes.remaining() >= 4 && messages.size() < max)
+					{
+						int length = bytes.getInt() - 1;
+						if (length < 0)
+							break;
+						if (length > bytes.remaining())
+							throw new StreamCorruptedException("Truncated message " + sequence + " in the message log");
+
+						if (sequence >= from)
+							{
+								ByteBuffer record = bytes.slice().limit(length);
+								// The segments are mapped, codecs may expect a buffer with an array behind it
+								if (!record.hasArray())
+									record = ByteBuffer.allocate(length).put(record).flip();
+								messages.add(codec.decode(record));
+								from = sequence + 1;
+							}
+						bytes.position(bytes.position() + length);
+						sequence++;
+					}
+				return Math.max(from, sequence);
+			}
+
+		/**
+		 * Reads through the log a batch at a time, for sending a long history without holding it all on the heap at once. Each batch carries
+		 * on from the message after the last one read, so nothing is read twice even if older messages are deleted meanwhile, and a cursor
+		 * which has caught up with the end of the log carries on with whatever is appended next. A cursor is not thread safe.
+		 */
+		public final class Cursor
+			{
+				private long position;
+
+				private Cursor(long position)
+					{
+						this.position = position;
+					}
+
+				/**
+				 * @param max
+				 *            - The most messages to read.
+				 * @return - The next messages, oldest first, fewer than max only once the cursor has reached the end of the log.
+				 */
+				public final List<DataType> next(int max) throws IOException
+					{
+						ArrayList<DataType> messages = new ArrayList<DataType>(Math.min(max, 1024));
+						position = read(position, max, messages);
+						return messages;
+					}
+
+				/**
+				 * @return - The sequence number of the next message this cursor will read.
+				 */
+				public final long position()
+					{
+						return position;
+					}
+			}
+
+		/**
+		 * @return - The sequence number of the oldest message still kept.
+		 */
+		public final long first()
+			{
+				appendLock.lock();
+				try
+					{
+						return segments.get(0).first;
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+			}
+
+		/**
+		 * @return - The sequence number the next message appended will have, which is also the number of messages ever appended.
+		 */
+		public final long next()
+			{
+				appendLock.lock();
+				try
+					{
+						return nextSequence;
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+			}
+
+		/**
+		 * Writes everything appended to disk and releases the directory, after which nothing more can be appended.
+		 */
+		@Override
+		public final void close() throws IOException
+			{
+				appendLock.lock();
+				try
+					{
+						if (closed)
+							return;
+						closed = true;
+						active.force();
+						closeFiles();
+					}
+				finally
+					{
+						appendLock.unlock();
+					}
+			}
+
+		private final void closeFiles() throws IOException
+			{
+				try
+					{
+						if (activeChannel != null)
+							activeChannel.close();
+					}
+				finally
+					{
+						if (lock != null)
+							lock.release();
+						lockChannel.close();
+					}
+			}
+
+		/**
+		 * A file holding a run of messages.
+		 */
+		private static final class Segment
+			{
+				private final long first;
+				private final Path file;
+
+				private Segment(long first, Path file)
+					{
+						this.first = first;
+						this.file = file;
+					}
+			}
+	}
@@ -1,260 +1,482 @@
-package tools.server.chat;
-
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.FontMetrics;
-import java.awt.Graphics2D;
-import java.awt.event.KeyEvent;
-import java.awt.event.KeyListener;
-import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-
-import tComponents.TComponent;
-import tComponents.components.TCollection;
-import tComponents.components.TMenu;
-import tComponents.components.TTextField;
-import tools.StringTools;
-import tools.server.TClient;
-import tools.server.TServer;
-
-/**
- * A class designed to work with the {@link TServer} & {@link TClient} example classes. It is also a {@link TComponent} and can therefore
- * easily be included in any program built around the TCode library.
- * 
- * @author Sebastian Troy
- */
-public class TChatBox extends TCollection implements KeyListener
-	{
-		// Chat variables
-		private MessageDisplay messageDisplay;
-		private TTextField messageInput;
-		private String lastSenderID = "0", lastSenderName = "xxx";
-
-		private final ChatClient client;
-		private Font font;
-
-		public TChatBox(ChatClient client)
-			{
-				this(0, 0, 100, 100, client);
-			}
-
-		public TChatBox(double x, double y, double width, double height, ChatClient client)
-			{
-				super(x, y, width, height);
-
-				this.client = client;
-				font = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getGraphics().getFont();
-
-				messageDisplay = new MessageDisplay(x, y, width, height - 23, TMenu.VERTICAL);
-				messageDisplay.setBackgroundColour(Color.WHITE);
-				messageDisplay.setTComponentAlignment(TMenu.ALIGN_START);
-				messageDisplay.setBorderSize(0);
-				messageDisplay.setTComponentSpacing(0);
-
-				messageInput = new TTextField(getXD() - 1, getYI() + (getHeightD() - 20), getWidthD() + 1, 20, "Click here to type");
-
-				add(messageDisplay);
-				add(messageInput);
-			}
-
-		@Override
-		protected void addedToComponent()
-			{
-				super.addedToComponent();
-				parentComponent.addKeyListener(this);
-			}
-
-		@Override
-		protected void removedFromComponent()
-			{
-				super.removedFromComponent();
-				parentComponent.removeKeyListener(this);
-			}
-
-		public final void setFont(Font newFont)
-			{
-				font = newFont;
-				setWidth(getWidthD());
-			}
-
-		@Override
-		public final void setDimensions(double width, double height)
-			{
-				setWidth(width);
-				setHeight(height);
-			}
-
-		@Override
-		public final void setWidth(double width)
-			{
-				super.setWidth(width);
-				messageDisplay.setWidth(width);
-				messageInput.setWidth(width);
-			}
-
-		@Override
-		public final void setHeight(double height)
-			{
-				super.setHeight(height);
-				messageDisplay.setHeight(height - 23);
-				messageInput.setY(getXD() + (height - messageInput.getHeightD()));
-			}
-
-		@Override
-		public final void render(Graphics2D g)
-			{
-				// Get any messages sent since last tick
-				for (String str : client.getMessages())
-					{
-						Message message = new Message(str);
-						if (message.uniqueID.equals(lastSenderID))
-							// User has changed their name
-							if (!message.senderName.equals(lastSenderName))
-								{
-									// Save the new senderName
-									String newName = new String(message.senderName);
-									// Give the message a name that indicates the change
-									message.senderName = lastSenderName + " -> " + message.senderName;
-									// Look for the new name next message
-									lastSenderName = newName;
-								}
-							else
-								message.setDisplayHeading(false);
-						else
-							{
-								lastSenderID = message.uniqueID;
-								lastSenderName = message.senderName;
-							}
-
-						messageDisplay.add(message, false);
-						messageDisplay.setScrollBarScrollPercent(100);
-					}
-
-				messageDisplay.render(g);
-				messageInput.render(g);
-			}
-
-		@Override
-		public final void keyPressed(KeyEvent e)
-			{
-				if (e.getKeyCode() == KeyEvent.VK_ENTER)
-					{
-						client.sendMessage(messageInput.getText());
-						messageInput.clearText();
-					}
-			}
-
-		@Override
-		public void keyTyped(KeyEvent e)
-			{}
-
-		@Override
-		public void keyReleased(KeyEvent e)
-			{}
-
-		private class Message extends TComponent
-			{
-				private final String uniqueID, message;
-				private String senderName;
-				private String[] splitMessage;
-				private boolean displayHeading = true;
-				private int lineHeight;
-
-				private Message(String message)
-					{
-						String[] subMessages = message.split(":", 3);
-						uniqueID = subMessages[0];
-						senderName = subMessages[1];
-						this.message = subMessages[2];
-
-						setWidth(messageDisplay.getWidthD());
-
-						wrapMessage();
-					}
-
-				private final void wrapMessage()
-					{
-						FontMetrics fm = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getGraphics().getFontMetrics(font);
-						lineHeight = fm.getHeight();
-
-						splitMessage = StringTools.wrapString(fm, message, getWidthI() - 25);
-
-						setHeight((splitMessage.length + 1) * lineHeight);
-					}
-
-				@Override
-				public void render(Graphics2D g)
-					{
-						g.setFont(font);
-
-						g.setColor(Color.GRAY);
-						if (displayHeading)
-							{
-								g.drawString(senderName + ":", getXI() + 5, getYI() + lineHeight);
-								g.drawLine(getXI() + 5, getYI() + 5, getXI() + getWidthI() - 10, getYI() + 5);
-							}
-
-						g.setColor(Color.BLACK);
-						for (int i = 0; i < this.splitMessage.length;)
-							g.drawString(splitMessage[i], getXI() + 10, getYI() + (displayHeading ? lineHeight - 1 : -1) + (lineHeight * ++i));
-					}
-
-				private final void setDisplayHeading(boolean displayHeading)
-					{
-						// If this is a change, adjust the height of the message accordingly
-						if (this.displayHeading != displayHeading)
-							if (displayHeading)
-								setHeight(getHeightD() + lineHeight);
-							else
-								setHeight(getHeightD() - (lineHeight));
-						this.displayHeading = displayHeading;
-					}
-
-				@Override
-				public final void setWidth(double width)
-					{
-						super.setWidth(width - 20);
-						wrapMessage();
-					}
-
-				@Override
-				protected void addedToComponent()
-					{}
-
-				@Override
-				protected void removedFromComponent()
-					{}
-			}
-
-		private class MessageDisplay extends TMenu
-			{
-
-				public MessageDisplay(double x, double y, double width, double height, boolean isVertical)
-					{
-						super(x, y, width, height, isVertical);
-					}
-
-				@Override
-				public final void add(TComponent component, boolean resize)
-					{
-						super.add(component, resize);
-						setWidth(getWidthD());
-					}
-
-				@Override
-				public final void setDimensions(double width, double height)
-					{
-						setWidth(width);
-						super.setHeight(height);
-					}
-
-				@Override
-				public final void setWidth(double width)
-					{
-						super.setWidth(width);
-						ArrayList<TComponent> messages = new ArrayList<TComponent>();
-						for (int i = 0; i < messages.size(); i++)
-							messages.get(i).setWidth(width - (usingScrollBar ? 20 : 0));
-					}
-			}
-	}
\ No newline at end of file
+package tools.server.chat;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import tComponents.TComponent;
+import tComponents.components.TCollection;
+import tComponents.components.TTextField;
+import tools.server.TClient;
+import tools.server.TServer;
+
+/**
+ * A class designed to work with the {@link TServer} & {@link TClient} example classes. It is also a {@link TComponent} and can therefore
+ * easily be included in any program built around the TCode library.
+ * <p>
+ * Each message is kept as a small record of where it sits and where its lines wrap, and only the messages which can be seen are drawn, so
+ * a frame takes as long with a hundred thousand messages as with ten.
+ *
+ * @author Sebastian Troy
+ */
+public class TChatBox extends TCollection implements KeyListener, MouseWheelListener
+	{
+		/**
+		 * How many older messages are fetched each time the user scrolls to the top.
+		 */
+		private static final int PAGE_MESSAGES = 50;
+		/**
+		 * How many lines one notch of the mouse wheel scrolls.
+		 */
+		private static final int WHEEL_LINES = 3;
+
+		// Chat variables
+		private final MessageList messageList = new MessageList();
+		private TTextField messageInput;
+		// No message has this sender, so the first always has a heading
+		private long lastSenderID = Long.MIN_VALUE;
+		private String lastSenderName;
+
+		// Older history, fetched from the server a page at a time as the user scrolls up to it
+		private CompletableFuture<HistoryPage> olderPage;
+		private long oldestSequence = -1L;
+		private boolean hasOlder = true;
+
+		private final ChatClient client;
+		private Font font;
+		// Measures text in the current font, made once for each font rather than for each message
+		private FontMetrics fontMetrics;
+
+		public TChatBox(ChatClient client)
+			{
+				this(0, 0, 100, 100, client);
+			}
+
+		public TChatBox(double x, double y, double width, double height, ChatClient client)
+			{
+				super(x, y, width, height);
+
+				this.client = client;
+				font = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getGraphics().getFont();
+				fontMetrics = metrics(font);
+
+				messageInput = new TTextField(getXD() - 1, getYI() + (getHeightD() - 20), getWidthD() + 1, 20, "Click here to type");
+
+				add(messageInput);
+			}
+
+		private static FontMetrics metrics(Font font)
+			{
+				return new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getGraphics().getFontMetrics(font);
+			}
+
+		@Override
+		protected void addedToComponent()
+			{
+				super.addedToComponent();
+				parentComponent.addKeyListener(this);
+				parentComponent.addMouseWheelListener(this);
+			}
+
+		@Override
+		protected void removedFromComponent()
+			{
+				super.removedFromComponent();
+				parentComponent.removeKeyListener(this);
+				parentComponent.removeMouseWheelListener(this);
+			}
+
+		public final void setFont(Font newFont)
+			{
+				font = newFont;
+				fontMetrics = metrics(newFont);
+				// Every message wraps differently in a new font
+				messageList.invalidate();
+			}
+
+		@Override
+		public final void setDimensions(double width, double height)
+			{
+				setWidth(width);
+				setHeight(height);
+			}
+
+		@Override
+		public final void setWidth(double width)
+			{
+				super.setWidth(width);
+				messageInput.setWidth(width);
+			}
+
+		@Override
+		public final void setHeight(double height)
+			{
+				super.setHeight(height);
+				messageInput.setY(getXD() + (height - messageInput.getHeightD()));
+			}
+
+		@Override
+		public final void render(Graphics2D g)
+			{
+				// Get any messages sent since last tick
+				for (ChatMessage chatMessage : client.getMessages())
+					{
+						String heading = chatMessage.getSenderName();
+						if (chatMessage.getSenderID() == lastSenderID)
+							// User has changed their name, names are interned so are the same String if they are the same
+							if (chatMessage.getSenderName() != lastSenderName)
+								{
+									// Give the message a name that indicates the change
+									heading = lastSenderName + " -> " + chatMessage.getSenderName();
+									// Look for the new name next message
+									lastSenderName = chatMessage.getSenderName();
+								}
+							else
+								heading = null;
+						else
+							{
+								lastSenderID = chatMessage.getSenderID();
+								lastSenderName = chatMessage.getSenderName();
+							}
+
+						messageList.add(chatMessage.getBody(), heading);
+					}
+
+				loadOlderMessages();
+
+				messageList.render(g);
+				messageInput.render(g);
+			}
+
+		/**
+		 * Once the user has scrolled to the top, fetches the page of messages before the oldest shown, and puts it in front of them once it
+		 * arrives.
+		 */
+		private final void loadOlderMessages()
+			{
+				if (olderPage == null)
+					{
+						// The server says where the history starts before sending it, so once a message has arrived the start is known
+						if (hasOlder && !messageList.isEmpty() && messageList.atTop())
+							{
+								if (oldestSequence < 0L)
+									oldestSequence = client.getHistoryStart();
+								olderPage = client.fetchHistory(oldestSequence, PAGE_MESSAGES);
+							}
+						return;
+					}
+				if (!olderPage.isDone())
+					return;
+
+				HistoryPage page;
+				try
+					{
+						page = olderPage.join();
+					}
+				catch (RuntimeException e)
+					{
+						// e.g. the request timed out, try again when the user next scrolls to the top
+						olderPage = null;
+						return;
+					}
+				olderPage = null;
+				oldestSequence = page.getFirst();
+				hasOlder = page.hasOlder();
+				messageList.addOlder(page.getMessages());
+			}
+
+		@Override
+		public final void keyPressed(KeyEvent e)
+			{
+				switch (e.getKeyCode())
+					{
+						case KeyEvent.VK_ENTER:
+							client.sendMessage(messageInput.getText());
+							messageInput.clearText();
+							break;
+						case KeyEvent.VK_PAGE_UP:
+							messageList.scrollBy(-messageList.viewHeight());
+							break;
+						case KeyEvent.VK_PAGE_DOWN:
+							messageList.scrollBy(messageList.viewHeight());
+							break;
+					}
+			}
+
+		@Override
+		public void keyTyped(KeyEvent e)
+			{}
+
+		@Override
+		public void keyReleased(KeyEvent e)
+			{}
+
+		@Override
+		public final void mouseWheelMoved(MouseWheelEvent e)
+			{
+				if (e.getX() >= getXI() && e.getX() < getXI() + getWidthI() && e.getY() >= getYI() && e.getY() < getYI() + messageList.viewHeight())
+					messageList.scrollBy(e.getWheelRotation() * WHEEL_LINES * fontMetrics.getHeight());
+			}
+
+		/**
+		 * A message as it is laid out in the list, small enough to keep one for every message however many there are.
+		 */
+		private static final class Row
+			{
+				private final String body;
+				// The name shown above the message, or null if it follows another from the same sender
+				private final String heading;
+				// Where each wrapped line of the body ends
+				private int[] lineEnds;
+				// Where the row starts, from the top of the first message, and how tall it is
+				private int top, height;
+
+				private Row(String body, String heading)
+					{
+						this.body = body;
+						this.heading = heading;
+					}
+			}
+
+		/**
+		 * Every message received, drawn in the space above the message input. Scrolling moves a window over the messages, only the rows
+		 * which reach into it are drawn, and finding the first of them is a binary search.
+		 */
+		private final class MessageList
+			{
+				private final ArrayList<Row> rows = new ArrayList<Row>();
+				// The width the rows were wrapped to, -1 if they need wrapping again
+				private int layoutWidth = -1, lineHeight;
+				private int contentHeight = 0;
+				// How far down the messages the top of the window is
+				private int scroll = 0;
+				// Whether the window stays on the latest message as more arrive
+				private boolean followLatest = true;
+
+				private final boolean isEmpty()
+					{
+						return rows.isEmpty();
+					}
+
+				private final boolean atTop()
+					{
+						return scroll <= 0;
+					}
+
+				private final int viewHeight()
+					{
+						return Math.max(0, getHeightI() - 23);
+					}
+
+				private final int maxScroll()
+					{
+						return Math.max(0, contentHeight - viewHeight());
+					}
+
+				private final void scrollBy(int pixels)
+					{
+						scroll = Math.max(0, Math.min(maxScroll(), scroll + pixels));
+						followLatest = scroll >= maxScroll();
+					}
+
+				private final void invalidate()
+					{
+						layoutWidth = -1;
+					}
+
+				private final void add(String body, String heading)
+					{
+						Row row = new Row(body, heading);
+						rows.add(row);
+						if (layoutWidth >= 0)
+							{
+								layout(row);
+								row.top = contentHeight;
+								contentHeight += row.height;
+							}
+						if (followLatest)
+							scroll = maxScroll();
+					}
+
+				/**
+				 * Puts a page of older messages in front of those already shown, keeping the window on the same messages.
+				 */
+				private final void addOlder(List<ChatMessage> messages)
+					{
+						ArrayList<Row> older = new ArrayList<Row>(messages.size());
+						ChatMessage previous = null;
+						for (ChatMessage message : messages)
+							{
+								boolean sameSender = previous != null && previous.getSenderID() == message.getSenderID() && previous.getSenderName() == message.getSenderName();
+								older.add(new Row(message.getBody(), sameSender ? null : message.getSenderName()));
+								previous = message;
+							}
+						rows.addAll(0, older);
+						if (layoutWidth < 0)
+							return;
+
+						int added = 0;
+						for (Row row : older)
+							{
+								layout(row);
+								row.top = added;
+								added += row.height;
+							}
+						for (int i = older.size(); i < rows.size(); i++)
+							rows.get(i).top += added;
+						contentHeight += added;
+						scroll += added;
+					}
+
+				/**
+				 * Wraps every row to the current width, which only happens when the width or font changes.
+				 */
+				private final void layoutAll(int width)
+					{
+						// Keep the window on the same row, or on the latest message
+						Row anchor = followLatest || rows.isEmpty() || layoutWidth < 0 ? null : rows.get(firstVisible());
+						int offset = anchor == null ? 0 : scroll - anchor.top;
+
+						layoutWidth = width;
+						lineHeight = fontMetrics.getHeight();
+						contentHeight = 0;
+						for (Row row : rows)
+							{
+								layout(row);
+								row.top = contentHeight;
+								contentHeight += row.height;
+							}
+						scroll = anchor == null ? maxScroll() : Math.max(0, Math.min(maxScroll(), anchor.top + Math.min(offset, anchor.height)));
+					}
+
+				/**
+				 * Wraps a row's body after the last space which fits on each line, or mid word if a word is wider than a line. Measuring a
+				 * character at a time keeps this linear in the length of the message, as every message is wrapped again when the width
+				 * changes.
+				 */
+				private final void layout(Row row)
+					{
+						String body = row.body;
+						int lineWidth = Math.max(layoutWidth - 45, fontMetrics.charWidth('w') * 2);
+						int[] ends = new int[2];
+						int lines = 0, start = 0, space = -1, width = 0;
+						for (int i = 0; i < body.length(); i++)
+							{
+								char c = body.charAt(i);
+								if (c == '\n')
+									{
+										ends = addLine(ends, lines++, i + 1);
+										start = i + 1;
+										width = 0;
+										continue;
+									}
+
+								width += fontMetrics.charWidth(c);
+								if (c == ' ')
+									space = i;
+								if (width > lineWidth && i > start)
+									{
+										int end = space >= start ? space + 1 : i;
+										ends = addLine(ends, lines++, end);
+										start = end;
+										width = 0;
+										for (int j = start; j <= i; j++)
+											width += fontMetrics.charWidth(body.charAt(j));
+									}
+							}
+						if (start < body.length() || lines == 0)
+							ends = addLine(ends, lines++, body.length());
+
+						row.lineEnds = lines == ends.length ? ends : Arrays.copyOf(ends, lines);
+						row.height = (lines + (row.heading == null ? 0 : 1)) * lineHeight;
+					}
+
+				private final int[] addLine(int[] ends, int line, int end)
+					{
+						if (line == ends.length)
+							ends = Arrays.copyOf(ends, line * 2);
+						ends[line] = end;
+						return ends;
+					}
+
+				/**
+				 * @return - The index of the first row which reaches into the window.
+				 */
+				private final int firstVisible()
+					{
+						int low = 0, high = rows.size() - 1;
+						while (low < high)
+							{
+								int middle = (low + high) >>> 1;
+								Row row = rows.get(middle);
+								if (row.top + row.height <= scroll)
+									low = middle + 1;
+								else
+									high = middle;
+							}
+						return low;
+					}
+
+				private final void render(Graphics2D g)
+					{
+						if (layoutWidth != getWidthI())
+							layoutAll(getWidthI());
+
+						int x = getXI(), y = getYI(), width = getWidthI(), height = viewHeight();
+						g.setColor(Color.WHITE);
+						g.fillRect(x, y, width, height);
+						if (rows.isEmpty())
+							return;
+
+						Shape clip = g.getClip();
+						g.clipRect(x, y, width, height);
+						g.setFont(font);
+						for (int i = firstVisible(); i < rows.size(); i++)
+							{
+								Row row = rows.get(i);
+								int top = y + row.top - scroll;
+								if (top >= y + height)
+									break;
+
+								g.setColor(Color.GRAY);
+								if (row.heading != null)
+									{
+										g.drawString(row.heading + ":", x + 5, top + lineHeight);
+										g.drawLine(x + 5, top + 5, x + width - 30, top + 5);
+									}
+
+								g.setColor(Color.BLACK);
+								int baseline = top + (row.heading != null ? lineHeight - 1 : -1), start = 0;
+								for (int l = 0; l < row.lineEnds.length; l++)
+									{
+										baseline += lineHeight;
+										// The lines of a tall message which are out of sight are skipped too
+										if (baseline >= y && baseline - lineHeight < y + height)
+											g.drawString(row.body.substring(start, row.lineEnds[l]), x + 10, baseline);
+										start = row.lineEnds[l];
+									}
+							}
+
+						// Where the window is, in proportion to all of the messages
+						if (contentHeight > height)
+							{
+								int thumb = Math.max(10, (int) ((long) height * height / contentHeight));
+								int thumbTop = (int) ((long) (height - thumb) * scroll / maxScroll());
+								g.setColor(Color.LIGHT_GRAY);
+								g.fillRect(x + width - 8, y + thumbTop, 5, thumb);
+							}
+						g.setClip(clip);
+					}
+			}
+	}